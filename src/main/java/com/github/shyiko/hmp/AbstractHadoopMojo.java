@@ -17,20 +17,42 @@ package com.github.shyiko.hmp;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteStreamHandler;
 import org.apache.commons.exec.Executor;
 import org.apache.commons.exec.ShutdownHookProcessDestroyer;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
  */
 abstract class AbstractHadoopMojo extends AbstractMojo {
 
+    private static final Pattern COMMAND_ARGUMENT_PATTERN = Pattern.compile("-?[a-zA-Z]+");
+
+    /**
+     * Line of "bin/hadoop fs -lsr" output (permissions, replication, owner, group, length, modification time, path).
+     */
+    private static final Pattern LISTING_LINE_PATTERN = Pattern.compile(
+            "([d-])\\S{9}\\S*\\s+\\S+\\s+\\S+\\s+\\S+\\s+(\\d+)\\s+(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2})\\s(.+)");
+
     /**
      * Hadoop Home directory
      * @parameter expression="${hmp.hadoopHome}"
@@ -50,19 +72,180 @@ abstract class AbstractHadoopMojo extends AbstractMojo {
      */
     protected boolean quiet;
 
+    /**
+     * True if DFS operations should be performed in-process (through Hadoop FileSystem API loaded from
+     * hadoopHome), false if "bin/hadoop fs" should be forked for each of them instead
+     * @parameter expression="${hmp.inProcessClient}" default-value="true"
+     */
+    protected boolean inProcessClient;
+
+    /**
+     * True if Hadoop cluster should be confined to the build directory (free ports, own hadoop.tmp.dir and
+     * generated conf directory), so that multiple builds could run their clusters on the same host simultaneously.
+     * Has to be specified for all of the goals
+     * @parameter expression="${hmp.isolated}" default-value="false"
+     */
+    protected boolean isolated;
+
+    /**
+     * JDK/JRE forked Hadoop processes should be launched with (by default, the one Maven runs on)
+     * @parameter expression="${hmp.javaHome}"
+     */
+    private File javaHome;
+
+    /**
+     * JVM options preset of the forked Hadoop processes (daemons as well as "bin/hadoop fs", "bin/hadoop jar", etc.):
+     * "default" (whatever Hadoop scripts use), "fast-startup" (small heap, SerialGC, C1 only) or "throughput"
+     * (larger heap, ParallelGC)
+     * @parameter expression="${hmp.jvmProfile}" default-value="default"
+     */
+    private String jvmProfile;
+
+    /**
+     * JVM options by process (NameNode, DataNode, JobTracker, TaskTracker, ResourceManager, NodeManager,
+     * JobHistoryServer or Client), appended to the ones of hmp.jvmProfile
+     * @parameter
+     */
+    private Map<String, String> jvmOptions;
+
+    /**
+     * True if each kind of forked Hadoop process should record class data sharing archive of the classes it loads
+     * on first exit, so that subsequent launches start faster. Requires JDK 13+ (see hmp.javaHome) and MRv1.
+     * hadoop-env.sh of the Hadoop 'conf' directory is not sourced while this option is on
+     * @parameter expression="${hmp.classDataSharing}" default-value="false"
+     */
+    private boolean classDataSharing;
+
+    /**
+     * Directory class data sharing archives (see hmp.classDataSharing) are kept in
+     * @parameter expression="${hmp.classDataSharingDirectory}" default-value="${java.io.tmpdir}/hmp.cds"
+     */
+    private File classDataSharingDirectory;
+
+    /**
+     * File timings of the goals executed so far (and of their phases, e.g. NameNode formatting, startup of each
+     * daemon, each DFS operation and forked command) along with the counters (commands forked, bytes copied,
+     * readiness check retries) are written to after each goal. Same numbers are exposed to the rest of the build
+     * as ${hmp.timing.&lt;goal&gt;[.&lt;phase&gt;]} (milliseconds) and ${hmp.counter.&lt;counter&gt;}
+     * @parameter expression="${hmp.buildReportFile}" default-value="${project.build.directory}/hadoop-build.json"
+     */
+    private File buildReportFile;
+
+    /**
+     * @parameter expression="${project.build.directory}"
+     * @readonly
+     */
+    protected File buildDirectory;
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    protected MavenProject project;
+
+    /**
+     * @parameter expression="${session.startTime}"
+     * @readonly
+     */
+    protected Date buildStartTime;
+
     @Override
     public final void execute() throws MojoExecutionException, MojoFailureException {
-        HadoopSettings hadoopSettings;
+        Instrumentation instrumentation = getInstrumentation();
+        instrumentation.startGoal(getGoalName());
+        boolean succeeded = false;
         try {
-            hadoopSettings = new HadoopSettings(hadoopHome, hadoopConf);
-        } catch (IOException e) {
-            throw new MojoFailureException(e.getMessage());
+            HadoopSettings hadoopSettings;
+            long startTime = System.nanoTime();
+            try {
+                hadoopSettings = new HadoopSettings(hadoopHome, hadoopConf);
+                if (isolated) {
+                    long isolationStartTime = System.nanoTime();
+                    hadoopSettings = isolate(hadoopSettings);
+                    instrumentation.recordSince("isolation", isolationStartTime);
+                }
+                if (javaHome != null) {
+                    hadoopSettings.getEnvironment().put("JAVA_HOME", javaHome.getCanonicalPath());
+                }
+                hadoopSettings.setJvmProfile(createJvmProfile(hadoopSettings));
+            } catch (IOException e) {
+                throw new MojoFailureException(e.getMessage());
+            }
+            instrumentation.recordSince("settings", startTime);
+            execute(hadoopSettings);
+            succeeded = true;
+        } finally {
+            instrumentation.completeGoal(succeeded);
+            instrumentation.report(getLog(), buildReportFile, project);
+        }
+    }
+
+    /**
+     * @return name of the goal (e.g. "copyFromLocal" for CopyFromLocalMojo)
+     */
+    private String getGoalName() {
+        String name = getClass().getSimpleName();
+        if (name.endsWith("Mojo")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name.isEmpty() ? name : Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    protected Instrumentation getInstrumentation() {
+        return Instrumentation.get(buildDirectory, buildStartTime);
+    }
+
+    private JvmProfile createJvmProfile(HadoopSettings hadoopSettings) throws MojoExecutionException {
+        File archiveDirectory = null;
+        if (classDataSharing) {
+            File processJavaHome = new File(hadoopSettings.getEnvironment().get("JAVA_HOME"));
+            if (!JvmProfile.isClassDataSharingSupported(processJavaHome)) {
+                getLog().warn("Class data sharing requires JDK 13+ (" + processJavaHome + " is not one of them). " +
+                        "hmp.classDataSharing=true ignored");
+            } else
+            if (hadoopSettings.isYarn()) {
+                getLog().warn("Class data sharing is supported for MRv1 only (hmp.classDataSharing=true ignored)");
+            } else {
+                archiveDirectory = classDataSharingDirectory;
+            }
+        }
+        try {
+            return new JvmProfile(jvmProfile, jvmOptions, archiveDirectory);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
         }
-        execute(hadoopSettings);
     }
 
     protected abstract void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException;
 
+    /**
+     * @return settings of the isolated cluster (see hmp.isolated)
+     */
+    protected HadoopSettings isolate(HadoopSettings hadoopSettings) throws IOException {
+        return new IsolatedCluster(buildDirectory).getSettings(hadoopHome);
+    }
+
+    /**
+     * @return in-process DFS client (if enabled and Hadoop classes can be loaded from hadoopHome),
+     * "bin/hadoop fs"-based one otherwise
+     */
+    protected HadoopFileSystem getFileSystem(HadoopSettings hadoopSettings) {
+        if (inProcessClient) {
+            long startTime = System.nanoTime();
+            try {
+                return new InstrumentedHadoopFileSystem(new EmbeddedHadoopFileSystem(HadoopRuntime.get(hadoopSettings),
+                        hadoopSettings.getDFSURI()));
+            } catch (IOException e) {
+                getLog().warn("Unable to initialize in-process DFS client (" + e.getMessage() +
+                        "). Falling back to bin/hadoop fs");
+            } finally {
+                getInstrumentation().recordSince("fs.client", startTime);
+            }
+        }
+        return new InstrumentedHadoopFileSystem(new ForkedHadoopFileSystem(hadoopSettings));
+    }
+
     protected void executeCommand(HadoopSettings hadoopSettings, String command) throws IOException {
         executeCommand(hadoopSettings, command, null, false);
     }
@@ -79,15 +262,415 @@ abstract class AbstractHadoopMojo extends AbstractMojo {
 
     protected void executeCommand(HadoopSettings hadoopSettings, String command, String automaticResponseOnPrompt,
                                   boolean bindProcessDestroyerToShutdownHook) throws IOException {
+        executeCommand(hadoopSettings, command, automaticResponseOnPrompt, bindProcessDestroyerToShutdownHook, null);
+    }
+
+    protected void executeCommand(HadoopSettings hadoopSettings, String command, String automaticResponseOnPrompt,
+                                  boolean bindProcessDestroyerToShutdownHook, LineListener lineListener)
+            throws IOException {
+        executeCommand(hadoopSettings, command, new ExecutionStreamHandler(quiet, automaticResponseOnPrompt,
+                lineListener), bindProcessDestroyerToShutdownHook, null);
+    }
+
+    protected void executeCommand(HadoopSettings hadoopSettings, String command, ExecuteStreamHandler streamHandler,
+                                  boolean bindProcessDestroyerToShutdownHook, ProcessListener processListener)
+            throws IOException {
+        executeCommand(hadoopSettings, CommandLine.parse(command), streamHandler, bindProcessDestroyerToShutdownHook,
+                processListener);
+    }
+
+    protected void executeCommand(HadoopSettings hadoopSettings, CommandLine commandLine,
+                                  ExecuteStreamHandler streamHandler, boolean bindProcessDestroyerToShutdownHook,
+                                  final ProcessListener processListener) throws IOException {
         if (getLog().isDebugEnabled()) {
-            getLog().debug("Executing " + command);
+            getLog().debug("Executing " + commandLine);
         }
-        Executor executor = new DefaultExecutor();
-        executor.setStreamHandler(new ExecutionStreamHandler(quiet, automaticResponseOnPrompt));
+        Executor executor = new DefaultExecutor() {
+
+            @Override
+            @SuppressWarnings("rawtypes")
+            protected Process launch(CommandLine command, Map env, File dir) throws IOException {
+                Process process = super.launch(command, env, dir);
+                getInstrumentation().increment(Instrumentation.COMMANDS_FORKED, 1);
+                if (processListener != null) {
+                    processListener.onStart(process);
+                }
+                return process;
+            }
+        };
+        executor.setStreamHandler(streamHandler);
         executor.setWorkingDirectory(hadoopSettings.getHomeDirectory());
         if (bindProcessDestroyerToShutdownHook) {
             executor.setProcessDestroyer(new ShutdownHookProcessDestroyer());
         }
-        executor.execute(CommandLine.parse(command), hadoopSettings.getEnvironment());
+        long startTime = System.nanoTime();
+        try {
+            executor.execute(commandLine, hadoopSettings.getLaunchEnvironment());
+        } finally {
+            getInstrumentation().recordSince(describe(commandLine), startTime);
+        }
+    }
+
+    /**
+     * @return name of the phase command belongs to (e.g. "command.hadoop.fs.mkdir" for
+     * "bin/hadoop fs -mkdir /path")
+     */
+    private String describe(CommandLine commandLine) {
+        StringBuilder sb = new StringBuilder("command.").append(new File(commandLine.getExecutable()).getName());
+        String[] arguments = commandLine.getArguments();
+        for (int i = 0; i < Math.min(arguments.length, 2); i++) {
+            if (!COMMAND_ARGUMENT_PATTERN.matcher(arguments[i]).matches()) {
+                break;
+            }
+            sb.append(".").append(arguments[i].startsWith("-") ? arguments[i].substring(1) : arguments[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * {@link HadoopFileSystem} forking "bin/hadoop fs" for each operation.
+     */
+    private class ForkedHadoopFileSystem implements HadoopFileSystem {
+
+        private final HadoopSettings hadoopSettings;
+
+        private ForkedHadoopFileSystem(HadoopSettings hadoopSettings) {
+            this.hadoopSettings = hadoopSettings;
+        }
+
+        @Override
+        public boolean isInProcess() {
+            return false;
+        }
+
+        @Override
+        public void delete(String path) throws IOException {
+            executeCommand(hadoopSettings, "bin/hadoop fs -rmr " + hadoopSettings.getDFSURI() + path);
+        }
+
+        @Override
+        public void mkdirs(String path) throws IOException {
+            executeCommand(hadoopSettings, "bin/hadoop fs -mkdir " + path);
+        }
+
+        @Override
+        public boolean isDirectory(String path) throws IOException {
+            try {
+                executeCommand(hadoopSettings, "bin/hadoop fs -test -d " + path);
+                return true;
+            } catch (ExecuteException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @throws IOException if existence of the path cannot be determined (e.g. NameNode is unreachable)
+         */
+        private boolean exists(String path) throws IOException {
+            final String[] lastLine = new String[1];
+            try {
+                executeCommand(hadoopSettings, "bin/hadoop fs -test -e " + path, null, false, new LineListener() {
+
+                    @Override
+                    public void onLine(String line) {
+                        lastLine[0] = line;
+                    }
+                });
+                return true;
+            } catch (ExecuteException e) {
+                // "fs -test" exits with 1 if condition is false and with -1 (255) if something went wrong
+                if (e.getExitValue() == 1) {
+                    return false;
+                }
+                throw new IOException("Unable to check whether dfs:" + path + " exists (" +
+                        (lastLine[0] == null ? e.getMessage() : lastLine[0]) + ")");
+            }
+        }
+
+        /**
+         * Parses "bin/hadoop fs -lsr" output. Modification times are precise to a minute.
+         */
+        @Override
+        public List<HadoopFileStatus> list(String path) throws IOException {
+            final String root = path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            if (!exists(root)) {
+                return new ArrayList<HadoopFileStatus>();
+            }
+            final List<HadoopFileStatus> result = new ArrayList<HadoopFileStatus>();
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            final IOException[] parseFailure = new IOException[1];
+            final String[] lastUnrecognizedLine = new String[1];
+            LineListener lineListener = new LineListener() {
+
+                @Override
+                public void onLine(String line) {
+                    Matcher matcher = LISTING_LINE_PATTERN.matcher(line);
+                    if (!matcher.matches()) {
+                        // "Found N items" or (stderr) error message
+                        if (!line.trim().isEmpty()) {
+                            lastUnrecognizedLine[0] = line;
+                        }
+                        return;
+                    }
+                    String relativePath = relativize(root, matcher.group(4));
+                    if (relativePath != null) {
+                        try {
+                            result.add(new HadoopFileStatus(relativePath, "d".equals(matcher.group(1)),
+                                    Long.parseLong(matcher.group(2)), dateFormat.parse(matcher.group(3)).getTime()));
+                        } catch (ParseException e) {
+                            parseFailure[0] = new IOException("Unable to parse \"" + line + "\"", e);
+                        }
+                    }
+                }
+            };
+            try {
+                executeCommand(hadoopSettings, "bin/hadoop fs -lsr " + root,
+                        new ExecutionStreamHandler(true, null, lineListener), false, null);
+            } catch (ExecuteException e) {
+                throw new IOException("Unable to list dfs:" + root + " (" +
+                        (lastUnrecognizedLine[0] == null ? e.getMessage() : lastUnrecognizedLine[0]) + ")");
+            }
+            if (parseFailure[0] != null) {
+                throw parseFailure[0];
+            }
+            return result;
+        }
+
+        /**
+         * @param listedPath path as printed by "bin/hadoop fs -lsr root" (relative root is printed either as is
+         * (YARN) or resolved against the home directory (MRv1))
+         * @return path relative to the root ("" if it's the root itself), null if path doesn't belong to the root
+         */
+        private String relativize(String root, String listedPath) {
+            if (listedPath.equals(root)) {
+                return "";
+            }
+            String prefix = root.endsWith("/") ? root : root + "/";
+            if (listedPath.startsWith(prefix)) {
+                return listedPath.substring(prefix.length());
+            }
+            if (root.startsWith("/")) {
+                return null;
+            }
+            int index = listedPath.indexOf("/" + prefix);
+            if (index != -1) {
+                return listedPath.substring(index + prefix.length() + 1);
+            }
+            return listedPath.endsWith("/" + root) ? "" : null;
+        }
+
+        /**
+         * Streams stdout of "bin/hadoop fs -cat" (executed in a separate thread) through a pipe. Failure of the
+         * command is reported once its output has been read, closing the stream before that destroys the process.
+         */
+        @Override
+        public InputStream open(final String path) throws IOException {
+            final PipedOutputStream outputStream = new PipedOutputStream();
+            final PipedCommandOutput inputStream = new PipedCommandOutput(outputStream, path);
+            final String[] lastErrorLine = new String[1];
+            final ExecutionStreamHandler streamHandler = new ExecutionStreamHandler(outputStream, quiet,
+                    new LineListener() {
+
+                @Override
+                public void onLine(String line) {
+                    lastErrorLine[0] = line;
+                }
+            });
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        executeCommand(hadoopSettings, "bin/hadoop fs -cat " + path, streamHandler, false,
+                                inputStream);
+                    } catch (IOException e) {
+                        inputStream.failure = lastErrorLine[0] == null ? e.getMessage() : lastErrorLine[0];
+                    } finally {
+                        try {
+                            // in case process hasn't been launched
+                            outputStream.close();
+                        } catch (IOException e) {
+                            getLog().debug(e);
+                        }
+                    }
+                }
+            }, "hmp-cat");
+            thread.setDaemon(true);
+            inputStream.command = thread;
+            thread.start();
+            return inputStream;
+        }
+
+        @Override
+        public void copyFromLocal(File source, String target) throws IOException {
+            executeCommand(hadoopSettings, "bin/hadoop fs -copyFromLocal " + source.getCanonicalPath() + " " + target);
+        }
+
+        @Override
+        public void copyToLocal(String source, File target) throws IOException {
+            executeCommand(hadoopSettings, "bin/hadoop fs -copyToLocal " + source + " " + target.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Read end of the pipe stdout of the command is written to (see {@link ForkedHadoopFileSystem#open(String)}).
+     */
+    private static class PipedCommandOutput extends InputStream implements ProcessListener {
+
+        private static final int PIPE_SIZE = 65536;
+
+        private final PipedInputStream pipe;
+        private final String path;
+        private Thread command;
+        private volatile String failure;
+        private Process process;
+        private boolean closed;
+
+        private PipedCommandOutput(PipedOutputStream outputStream, String path) throws IOException {
+            this.pipe = new PipedInputStream(outputStream, PIPE_SIZE);
+            this.path = path;
+        }
+
+        @Override
+        public synchronized void onStart(Process process) {
+            if (closed) {
+                process.destroy();
+            }
+            this.process = process;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return checkFailure(pipe.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return checkFailure(pipe.read(b, off, len));
+        }
+
+        @Override
+        public int available() throws IOException {
+            return pipe.available();
+        }
+
+        /**
+         * Waits for the command to complete once its output has been read.
+         */
+        private int checkFailure(int result) throws IOException {
+            if (result == -1) {
+                try {
+                    command.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for bin/hadoop fs -cat " + path);
+                }
+                if (failure != null) {
+                    throw new IOException("Unable to read dfs:" + path + " (" + failure + ")");
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+            pipe.close();
+        }
+    }
+
+    /**
+     * {@link HadoopFileSystem} recording time of each operation (as "fs.&lt;operation&gt;" phase) and size of the
+     * copied files.
+     */
+    private class InstrumentedHadoopFileSystem implements HadoopFileSystem {
+
+        private final HadoopFileSystem fileSystem;
+
+        private InstrumentedHadoopFileSystem(HadoopFileSystem fileSystem) {
+            this.fileSystem = fileSystem;
+        }
+
+        @Override
+        public boolean isInProcess() {
+            return fileSystem.isInProcess();
+        }
+
+        @Override
+        public void delete(String path) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                fileSystem.delete(path);
+            } finally {
+                getInstrumentation().recordSince("fs.delete", startTime);
+            }
+        }
+
+        @Override
+        public void mkdirs(String path) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                fileSystem.mkdirs(path);
+            } finally {
+                getInstrumentation().recordSince("fs.mkdirs", startTime);
+            }
+        }
+
+        @Override
+        public boolean isDirectory(String path) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                return fileSystem.isDirectory(path);
+            } finally {
+                getInstrumentation().recordSince("fs.isDirectory", startTime);
+            }
+        }
+
+        @Override
+        public List<HadoopFileStatus> list(String path) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                return fileSystem.list(path);
+            } finally {
+                getInstrumentation().recordSince("fs.list", startTime);
+            }
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                return fileSystem.open(path);
+            } finally {
+                getInstrumentation().recordSince("fs.open", startTime);
+            }
+        }
+
+        @Override
+        public void copyFromLocal(File source, String target) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                fileSystem.copyFromLocal(source, target);
+            } finally {
+                getInstrumentation().recordSince("fs.copyFromLocal", startTime);
+            }
+            getInstrumentation().increment(Instrumentation.BYTES_COPIED, LocalFileSystem.size(source));
+        }
+
+        @Override
+        public void copyToLocal(String source, File target) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                fileSystem.copyToLocal(source, target);
+            } finally {
+                getInstrumentation().recordSince("fs.copyToLocal", startTime);
+            }
+            getInstrumentation().increment(Instrumentation.BYTES_COPIED, LocalFileSystem.size(target));
+        }
     }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.jar.JarFile;
+
+/**
+ * Base class for the goals submitting jobs (either by forking "bin/hadoop jar" or in-process, see
+ * {@link EmbeddedJob}). Jobs submitted to the cluster are tracked by {@link JobMonitor}.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+abstract class AbstractJobMojo extends AbstractHadoopMojo {
+
+    protected static final long JOB_POLLING_INTERVAL_IN_MILLISECONDS = 1000;
+
+    /**
+     * Jar file containing job.
+     * @parameter expression="${hmp.jar}" default-value="${basedir}/target/${project.build.finalName}.jar"
+     * @required
+     */
+    protected File jobJar;
+
+    /**
+     * Job parameters (split on whitespace, quotes can be used to keep parameter containing spaces together).
+     * @parameter expression="${hmp.jobParameters}"
+     */
+    protected String jobParameters;
+
+    /**
+     * Job arguments passed as is (after the jobParameters).
+     * @parameter
+     */
+    protected List<String> jobArguments;
+
+    /**
+     * True indicates that any output should be suppressed, false otherwise
+     * @parameter expression="${hmp.job.quiet}" default-value="false"
+     */
+    protected boolean jobQuiet;
+
+    /**
+     * True if job should be run inside of Maven JVM (main class is loaded from jobJar on top of Hadoop classes
+     * loaded from hadoopHome), false if "bin/hadoop jar" should be forked instead. System.exit called by the
+     * job is trapped (unless main class implements org.apache.hadoop.util.Tool, in which case it's run through
+     * ToolRunner)
+     * @parameter expression="${hmp.inProcessJob}" default-value="false"
+     */
+    protected boolean inProcessJob;
+
+    /**
+     * File counters of the jobs submitted to the cluster are written to (in JSON), so that they can be compared
+     * between builds. Requires hmp.inProcessClient=true
+     * @parameter expression="${hmp.jobCountersFile}"
+     * default-value="${project.build.directory}/hadoop-job-counters.json"
+     */
+    protected File jobCountersFile;
+
+    /**
+     * @return monitor tracking jobs submitted by the goal (see {@link #createSubmission}), null if it cannot be
+     * initialized (or in-process client is disabled)
+     */
+    protected JobMonitor createJobMonitor(HadoopSettings hadoopSettings) {
+        if (inProcessClient) {
+            try {
+                return new JobMonitor(HadoopRuntime.get(hadoopSettings));
+            } catch (IOException e) {
+                getLog().warn("Unable to initialize job monitor (" + e.getMessage() + "). " +
+                        "Progress and counters won't be available");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param mainClass class to run, null if the one specified by jar (Main-Class) should be used
+     * @param parameters parameters split on whitespace (quotes can be used to keep parameter containing spaces
+     * together)
+     * @param arguments arguments passed as is (after the parameters)
+     * @param workingDirectory directory in-process job can use to extract jars packaged into the job jar to
+     * @param monitor monitor jobs submitted by the task should be tracked by, null if there is none
+     * @return task running the job and returning its exit code
+     */
+    protected Callable<Integer> createSubmission(final HadoopSettings hadoopSettings, final File jar,
+                                                 final String mainClass, final String parameters,
+                                                 final List<String> arguments, File workingDirectory,
+                                                 final JobMonitor monitor) throws MojoExecutionException {
+        if (inProcessJob) {
+            try {
+                final EmbeddedJob job = new EmbeddedJob(HadoopRuntime.get(hadoopSettings), jar, workingDirectory);
+                return new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws Exception {
+                        LineListener submissionListener = createSubmissionListener(monitor);
+                        long startTime = System.nanoTime();
+                        try {
+                            return job.run(mainClass, listArguments(parameters, arguments), submissionListener);
+                        } finally {
+                            getInstrumentation().recordSince("job", startTime);
+                        }
+                    }
+                };
+            } catch (IOException e) {
+                getLog().warn("Unable to load Hadoop classes (" + e.getMessage() + "). Falling back to bin/hadoop jar");
+            }
+        }
+        if (mainClass != null && !isMainClassOverridable(jar)) {
+            throw new MojoExecutionException(jar + " specifies Main-Class, which can be overridden only with " +
+                    "-Dhmp.inProcessJob=true");
+        }
+        return new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                CommandLine commandLine = CommandLine.parse("bin/hadoop jar " + jar.getAbsolutePath() +
+                        (mainClass == null ? "" : " " + mainClass) + (parameters == null ? "" : " " + parameters));
+                if (arguments != null) {
+                    for (String argument : arguments) {
+                        commandLine.addArgument(argument, false);
+                    }
+                }
+                LineListener submissionListener = createSubmissionListener(monitor);
+                long startTime = System.nanoTime();
+                try {
+                    executeCommand(hadoopSettings, commandLine,
+                            new ExecutionStreamHandler(quiet, null, submissionListener), false, null);
+                } catch (ExecuteException e) {
+                    return e.getExitValue();
+                } finally {
+                    getInstrumentation().recordSince("job", startTime);
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * @return listener passing ids of the jobs reported by the client's output/log (see
+     * {@link JobMonitor#parseJobId(String)}) to the monitor, null if there is no monitor (or JobTracker cannot be
+     * reached)
+     */
+    private LineListener createSubmissionListener(final JobMonitor monitor) {
+        if (monitor == null) {
+            return null;
+        }
+        final Set<String> preexistingJobIds;
+        try {
+            preexistingJobIds = monitor.listJobIds();
+        } catch (IOException e) {
+            getLog().warn("Unable to list jobs (" + e.getMessage() + "). Progress and counters won't be available");
+            return null;
+        }
+        return new LineListener() {
+
+            @Override
+            public void onLine(String line) {
+                String id = JobMonitor.parseJobId(line);
+                if (id != null) {
+                    monitor.track(id, preexistingJobIds);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if main class can be passed to "bin/hadoop jar" (which is the case only if jar doesn't specify
+     * Main-Class)
+     */
+    private boolean isMainClassOverridable(File jar) throws MojoExecutionException {
+        try {
+            JarFile jarFile = new JarFile(jar);
+            try {
+                return EmbeddedJob.getMainClassName(jarFile) == null;
+            } finally {
+                jarFile.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to read " + jar, e);
+        }
+    }
+
+    /**
+     * @return arguments the same way "bin/hadoop jar" would get them
+     */
+    private List<String> listArguments(String parameters, List<String> arguments) {
+        List<String> result = new ArrayList<String>();
+        if (parameters != null && !parameters.trim().isEmpty()) {
+            for (String argument : CommandLine.parse("jar " + parameters).getArguments()) {
+                // CommandLine quotes arguments containing spaces/quotes
+                int length = argument.length();
+                if (length > 1 && (argument.charAt(0) == '"' || argument.charAt(0) == '\'') &&
+                        argument.charAt(length - 1) == argument.charAt(0)) {
+                    argument = argument.substring(1, length - 1);
+                }
+                result.add(argument);
+            }
+        }
+        if (arguments != null) {
+            result.addAll(arguments);
+        }
+        return result;
+    }
+
+    /**
+     * Logs progress (and counters, once completed) of the jobs which have changed since the last report.
+     */
+    protected void report(JobMonitor monitor) {
+        if (monitor == null) {
+            return;
+        }
+        Collection<JobMonitor.Job> jobs;
+        try {
+            jobs = monitor.poll();
+        } catch (IOException e) {
+            getLog().debug("Unable to poll JobTracker", e);
+            return;
+        }
+        if (jobQuiet || !getLog().isInfoEnabled()) {
+            return;
+        }
+        for (JobMonitor.Job job : jobs) {
+            if (!job.isComplete()) {
+                getLog().info(job + ": map " + job.getMapProgress() + "% reduce " + job.getReduceProgress() + "%");
+                continue;
+            }
+            getLog().info(job + " " + job.getState() + " in " + job.getDurationInMilliseconds() + "ms");
+            for (Map.Entry<String, Map<String, Long>> group : job.getCounters().entrySet()) {
+                getLog().info("  " + group.getKey());
+                for (Map.Entry<String, Long> counter : group.getValue().entrySet()) {
+                    getLog().info("    " + counter.getKey() + "=" + counter.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the monitor and writes counters of the jobs it has observed to jobCountersFile.
+     */
+    protected void complete(JobMonitor monitor) {
+        if (monitor == null) {
+            return;
+        }
+        try {
+            monitor.close();
+        } catch (IOException e) {
+            getLog().debug("Unable to close job monitor", e);
+        }
+        List<Map<String, Object>> jobs = new ArrayList<Map<String, Object>>();
+        for (JobMonitor.Job job : monitor.getJobs()) {
+            jobs.add(job.toMap());
+        }
+        try {
+            Json.write(Collections.singletonMap("jobs", jobs), jobCountersFile);
+        } catch (IOException e) {
+            getLog().warn("Unable to write " + jobCountersFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @throws MojoExecutionException if any of the jobs observed by the monitor didn't succeed
+     */
+    protected void assertSucceeded(JobMonitor monitor) throws MojoExecutionException {
+        if (monitor == null) {
+            return;
+        }
+        for (JobMonitor.Job job : monitor.getJobs()) {
+            if (job.isComplete() && !"SUCCEEDED".equals(job.getState())) {
+                throw new MojoExecutionException("Hadoop Job " + job + " " + job.getState());
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the job a number of times (warmup iterations first) and reports statistics of the measured ones.
+ *
+ * @goal benchmark
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class BenchmarkMojo extends AbstractJobMojo {
+
+    private static final String[] RECORD_COUNTERS = {"MAP_INPUT_RECORDS"};
+    private static final String[] BYTE_COUNTERS = {"HDFS_BYTES_READ", "BYTES_READ"};
+
+    /**
+     * Number of runs which are not measured
+     * @parameter expression="${hmp.benchmarkWarmupIterations}" default-value="1"
+     */
+    private int benchmarkWarmupIterations;
+
+    /**
+     * Number of measured runs
+     * @parameter expression="${hmp.benchmarkIterations}" default-value="5"
+     */
+    private int benchmarkIterations;
+
+    /**
+     * Comma-separated list of DFS paths (e.g. job output directory) which should be deleted before each run
+     * @parameter expression="${hmp.benchmarkCleanPaths}"
+     */
+    private String benchmarkCleanPaths;
+
+    /**
+     * File benchmark report is written to (in JSON)
+     * @parameter expression="${hmp.benchmarkReportFile}"
+     * default-value="${project.build.directory}/hadoop-benchmark.json"
+     */
+    private File benchmarkReportFile;
+
+    /**
+     * Report of one of the previous runs (see hmp.benchmarkReportFile) current median time is compared against.
+     * If file doesn't exist, current report is stored there
+     * @parameter expression="${hmp.benchmarkBaselineFile}"
+     */
+    private File benchmarkBaselineFile;
+
+    /**
+     * Percentage by which median time may exceed the one of the baseline before build is failed
+     * @parameter expression="${hmp.benchmarkRegressionThreshold}" default-value="10"
+     */
+    private double benchmarkRegressionThreshold;
+
+    @Override
+    protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
+        if (benchmarkWarmupIterations < 0 || benchmarkIterations < 1) {
+            throw new MojoExecutionException("Benchmark requires non-negative number of warmup iterations and " +
+                    "at least one measured iteration");
+        }
+        this.quiet = jobQuiet;
+        HadoopFileSystem fileSystem = getFileSystem(hadoopSettings);
+        List<Map<String, Object>> runs = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < benchmarkWarmupIterations + benchmarkIterations; i++) {
+            boolean warmup = i < benchmarkWarmupIterations;
+            Map<String, Object> run = run(hadoopSettings, fileSystem);
+            if (getLog().isInfoEnabled()) {
+                getLog().info((warmup ? "Warmup run " + (i + 1) : "Run " + (i - benchmarkWarmupIterations + 1)) +
+                        " completed in " + run.get("timeInMilliseconds") + "ms");
+            }
+            if (!warmup) {
+                runs.add(run);
+            }
+        }
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("warmupIterations", benchmarkWarmupIterations);
+        report.put("iterations", benchmarkIterations);
+        report.put("statistics", summarize(runs));
+        report.put("runs", runs);
+        try {
+            Json.write(report, benchmarkReportFile);
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to write " + benchmarkReportFile + ": " + e.getMessage());
+        }
+        if (getLog().isInfoEnabled()) {
+            logStatistics(report);
+        }
+        if (benchmarkBaselineFile != null) {
+            compareAgainstBaseline(report);
+        }
+    }
+
+    /**
+     * @return time, ids of the jobs submitted by the run and their counters (summed up). Each run has a monitor of
+     * its own, so that neither jobs of the previous runs nor the ones of the other builds are counted
+     */
+    private Map<String, Object> run(HadoopSettings hadoopSettings, HadoopFileSystem fileSystem)
+            throws MojoExecutionException, MojoFailureException {
+        if (benchmarkCleanPaths != null) {
+            for (String path : benchmarkCleanPaths.split(",")) {
+                if (!path.trim().isEmpty()) {
+                    try {
+                        fileSystem.delete(path.trim());
+                    } catch (IOException e) {
+                        getLog().debug("Unable to delete dfs:" + path.trim(), e);
+                    }
+                }
+            }
+        }
+        JobMonitor monitor = createJobMonitor(hadoopSettings);
+        long timeInMilliseconds;
+        List<String> jobIds = new ArrayList<String>();
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        try {
+            Callable<Integer> submission = createSubmission(hadoopSettings, jobJar, null, jobParameters,
+                    jobArguments, new File(buildDirectory, "hmp/job"), monitor);
+            long startTime = System.currentTimeMillis();
+            int exitCode;
+            try {
+                exitCode = submission.call();
+            } catch (Exception e) {
+                throw new MojoFailureException("Hadoop Job submission failed: " + e.getMessage());
+            }
+            timeInMilliseconds = System.currentTimeMillis() - startTime;
+            if (exitCode != 0) {
+                throw new MojoExecutionException("Hadoop Job failed");
+            }
+            if (monitor != null) {
+                try {
+                    monitor.poll();
+                } catch (IOException e) {
+                    getLog().warn("Unable to collect job counters: " + e.getMessage());
+                }
+                assertSucceeded(monitor);
+                for (JobMonitor.Job job : monitor.getJobs()) {
+                    jobIds.add(job.getId());
+                    if (job.getCounters() == null) {
+                        continue;
+                    }
+                    for (Map<String, Long> group : job.getCounters().values()) {
+                        for (Map.Entry<String, Long> counter : group.entrySet()) {
+                            Long value = counters.get(counter.getKey());
+                            counters.put(counter.getKey(), (value == null ? 0 : value) + counter.getValue());
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (monitor != null) {
+                try {
+                    monitor.close();
+                } catch (IOException e) {
+                    getLog().debug("Unable to close job monitor", e);
+                }
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("timeInMilliseconds", timeInMilliseconds);
+        result.put("jobs", jobIds);
+        result.put("recordsPerSecond", throughput(counters, RECORD_COUNTERS, timeInMilliseconds));
+        result.put("bytesPerSecond", throughput(counters, BYTE_COUNTERS, timeInMilliseconds));
+        result.put("counters", counters);
+        return result;
+    }
+
+    /**
+     * @return value of the first available counter per second, null if none of the counters is available
+     */
+    private Double throughput(Map<String, Long> counters, String[] names, long timeInMilliseconds) {
+        for (String name : names) {
+            Long value = counters.get(name);
+            if (value != null) {
+                return value * 1000d / Math.max(timeInMilliseconds, 1);
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> summarize(List<Map<String, Object>> runs) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String metric : new String[] {"timeInMilliseconds", "recordsPerSecond", "bytesPerSecond"}) {
+            List<Double> values = new ArrayList<Double>();
+            for (Map<String, Object> run : runs) {
+                Object value = run.get(metric);
+                if (value != null) {
+                    values.add(((Number) value).doubleValue());
+                }
+            }
+            if (values.isEmpty()) {
+                continue;
+            }
+            Collections.sort(values);
+            Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+            statistics.put("min", values.get(0));
+            statistics.put("median", values.size() % 2 == 1 ? values.get(values.size() / 2) :
+                    (values.get(values.size() / 2 - 1) + values.get(values.size() / 2)) / 2);
+            // nearest-rank
+            statistics.put("p95", values.get((int) Math.ceil(0.95 * values.size()) - 1));
+            statistics.put("max", values.get(values.size() - 1));
+            result.put(metric, statistics);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void logStatistics(Map<String, Object> report) {
+        Map<String, Map<String, Object>> statistics = (Map<String, Map<String, Object>>) report.get("statistics");
+        getLog().info("Benchmark (" + benchmarkIterations + " run(s) after " + benchmarkWarmupIterations +
+                " warmup run(s)):");
+        getLog().info(String.format(Locale.ENGLISH, "  %-12s %12s %12s %12s %12s", "", "min", "median", "p95",
+                "max"));
+        String[][] rows = {
+            {"timeInMilliseconds", "time, ms"},
+            {"recordsPerSecond", "records/s"},
+            {"bytesPerSecond", "bytes/s"}
+        };
+        for (String[] row : rows) {
+            Map<String, Object> values = statistics.get(row[0]);
+            if (values == null) {
+                continue;
+            }
+            getLog().info(String.format(Locale.ENGLISH, "  %-12s %12.1f %12.1f %12.1f %12.1f", row[1],
+                    values.get("min"), values.get("median"), values.get("p95"), values.get("max")));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compareAgainstBaseline(Map<String, Object> report) throws MojoExecutionException,
+            MojoFailureException {
+        if (!benchmarkBaselineFile.exists()) {
+            try {
+                Json.write(report, benchmarkBaselineFile);
+            } catch (IOException e) {
+                throw new MojoFailureException("Unable to write " + benchmarkBaselineFile + ": " + e.getMessage());
+            }
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Baseline stored in " + benchmarkBaselineFile);
+            }
+            return;
+        }
+        double baselineMedian;
+        try {
+            Map<String, Object> baseline = (Map<String, Object>) Json.parse(benchmarkBaselineFile);
+            baselineMedian = ((Number) ((Map<String, Object>) ((Map<String, Object>) baseline.get("statistics")).
+                    get("timeInMilliseconds")).get("median")).doubleValue();
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to read " + benchmarkBaselineFile + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            throw new MojoFailureException(benchmarkBaselineFile + " is not a benchmark report");
+        }
+        double median = (Double) ((Map<String, Map<String, Object>>) report.get("statistics")).
+                get("timeInMilliseconds").get("median");
+        double change = (median - baselineMedian) * 100 / Math.max(baselineMedian, 1);
+        String message = String.format(Locale.ENGLISH, "Median time %.1fms vs %.1fms of the baseline (%+.1f%%)",
+                median, baselineMedian, change);
+        if (change > benchmarkRegressionThreshold) {
+            throw new MojoExecutionException(message + " exceeds regression threshold of " +
+                    benchmarkRegressionThreshold + "%");
+        }
+        if (getLog().isInfoEnabled()) {
+            getLog().info(message);
+        }
+    }
+}
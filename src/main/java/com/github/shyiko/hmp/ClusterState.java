@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * State of the Hadoop cluster shared between Maven invocations. Instance holds exclusive lock on the state file
+ * until closed, so concurrent builds observe (and update) the state one at a time.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class ClusterState implements Closeable {
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String LEASES = "leases";
+    private static final String ENDPOINTS = "endpoints";
+    private static final String PROCESSES = "processes";
+    private static final String HADOOP_HOME = "hadoopHome";
+    private static final String HADOOP_CONF = "hadoopConf";
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileLock lock;
+    private final Properties properties = new Properties();
+
+    private ClusterState(File file) throws IOException {
+        this.file = file;
+        File parentFile = file.getAbsoluteFile().getParentFile();
+        if (!parentFile.exists() && !parentFile.mkdirs()) {
+            throw new IOException("Unable to create " + parentFile);
+        }
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            this.lock = randomAccessFile.getChannel().lock();
+            InputStream inputStream = Channels.newInputStream(randomAccessFile.getChannel());
+            properties.load(inputStream);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks until exclusive lock on the file is acquired.
+     */
+    public static ClusterState open(File file) throws IOException {
+        return new ClusterState(file);
+    }
+
+    /**
+     * @return true if cluster has been recorded, false otherwise
+     */
+    public boolean isPresent() {
+        return properties.containsKey(FINGERPRINT);
+    }
+
+    public String getFingerprint() {
+        return properties.getProperty(FINGERPRINT);
+    }
+
+    public int getLeases() {
+        return Integer.parseInt(properties.getProperty(LEASES, "0"));
+    }
+
+    public void setLeases(int leases) {
+        properties.setProperty(LEASES, String.valueOf(leases));
+    }
+
+    public List<InetSocketAddress> getEndpoints() {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+        String endpoints = properties.getProperty(ENDPOINTS, "");
+        for (String endpoint : endpoints.split(",")) {
+            int positionOfDelimiter = endpoint.lastIndexOf(":");
+            if (positionOfDelimiter > -1) {
+                result.add(new InetSocketAddress(endpoint.substring(0, positionOfDelimiter),
+                        Integer.parseInt(endpoint.substring(positionOfDelimiter + 1))));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return daemons started by the 'start' goal mapped to their PIDs
+     */
+    public Map<String, Integer> getProcesses() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        String processes = properties.getProperty(PROCESSES, "");
+        for (String process : processes.split(",")) {
+            int positionOfDelimiter = process.lastIndexOf(":");
+            if (positionOfDelimiter > -1) {
+                result.put(process.substring(0, positionOfDelimiter),
+                        Integer.parseInt(process.substring(positionOfDelimiter + 1)));
+            }
+        }
+        return result;
+    }
+
+    public void setProcesses(Map<String, Integer> processes) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : processes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(entry.getKey()).append(":").append(entry.getValue());
+        }
+        properties.setProperty(PROCESSES, sb.toString());
+    }
+
+    /**
+     * @return settings cluster has been started with, null if they haven't been recorded
+     */
+    public HadoopSettings getHadoopSettings() throws IOException {
+        String homeDirectory = properties.getProperty(HADOOP_HOME);
+        String confDirectory = properties.getProperty(HADOOP_CONF);
+        if (homeDirectory == null || confDirectory == null) {
+            return null;
+        }
+        return new HadoopSettings(new File(homeDirectory), new File(confDirectory));
+    }
+
+    public void setHadoopSettings(HadoopSettings hadoopSettings) throws IOException {
+        properties.setProperty(HADOOP_HOME, hadoopSettings.getHomeDirectory().getCanonicalPath());
+        properties.setProperty(HADOOP_CONF, hadoopSettings.getConfDirectory().getCanonicalPath());
+    }
+
+    /**
+     * Replaces recorded cluster with the new one (having no leases).
+     */
+    public void reset(String fingerprint, List<InetSocketAddress> endpoints) {
+        properties.clear();
+        properties.setProperty(FINGERPRINT, fingerprint);
+        StringBuilder sb = new StringBuilder();
+        for (InetSocketAddress endpoint : endpoints) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(endpoint.getHostName()).append(":").append(endpoint.getPort());
+        }
+        properties.setProperty(ENDPOINTS, sb.toString());
+        setLeases(0);
+    }
+
+    public void clear() {
+        properties.clear();
+    }
+
+    public void save() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        properties.store(outputStream, "hadoop-maven-plugin cluster state");
+        FileChannel channel = randomAccessFile.getChannel();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(outputStream.toByteArray()), 0);
+        channel.force(false);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Set of worker nodes (each running DataNode and/or TaskTracker/NodeManager) sharing the same host.
+ * Every node gets its own configuration directory (generated out of the cluster's one), storage directories,
+ * log directory and ports. When racks are specified, nodes are assigned to them in a round-robin fashion and
+ * bound to distinct loopback addresses (127.0.0.&lt;node number&gt;), which is what generated topology script
+ * maps to racks.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class ClusterTopology {
+
+    private static final String DEFAULT_RACK = "/default-rack";
+    private static final int MAXIMUM_NUMBER_OF_RACK_AWARE_NODES = 254;
+
+    private final File directory;
+    private final int numberOfDataNodes;
+    private final int numberOfWorkers;
+    private final List<String> racks;
+    private File storageDirectory;
+    private HadoopSettings masterSettings;
+    private final List<HadoopSettings> nodeSettings = new ArrayList<HadoopSettings>();
+
+    /**
+     * @param racks racks nodes should be assigned to (empty if cluster is not rack-aware)
+     */
+    public ClusterTopology(File directory, int numberOfDataNodes, int numberOfWorkers, List<String> racks) {
+        if (numberOfDataNodes < 1 || numberOfWorkers < 1) {
+            throw new IllegalArgumentException("Cluster must have at least one DataNode and one worker");
+        }
+        if (!racks.isEmpty() && Math.max(numberOfDataNodes, numberOfWorkers) > MAXIMUM_NUMBER_OF_RACK_AWARE_NODES) {
+            throw new IllegalArgumentException("Rack-aware cluster cannot have more than " +
+                    MAXIMUM_NUMBER_OF_RACK_AWARE_NODES + " nodes");
+        }
+        this.directory = directory;
+        this.numberOfDataNodes = numberOfDataNodes;
+        this.numberOfWorkers = numberOfWorkers;
+        this.racks = racks;
+        this.storageDirectory = directory;
+    }
+
+    public int getNumberOfDataNodes() {
+        return numberOfDataNodes;
+    }
+
+    public int getNumberOfWorkers() {
+        return numberOfWorkers;
+    }
+
+    public int getNumberOfNodes() {
+        return Math.max(numberOfDataNodes, numberOfWorkers);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param storageDirectory directory nodes' storage (dfs.data.dir, mapred.local.dir, etc.) should be kept in
+     * (by default, the one configuration and logs are kept in)
+     */
+    public void setStorageDirectory(File storageDirectory) {
+        this.storageDirectory = storageDirectory;
+    }
+
+    /**
+     * @param index zero-based index of the node
+     */
+    public File getNodeDirectory(int index) {
+        return new File(directory, "node-" + (index + 1));
+    }
+
+    private File getNodeStorageDirectory(int index) {
+        return new File(storageDirectory, "node-" + (index + 1)).getAbsoluteFile();
+    }
+
+    public String getHost(int index) {
+        return racks.isEmpty() ? "localhost" : "127.0.0." + (index + 1);
+    }
+
+    public String getRack(int index) {
+        return racks.isEmpty() ? DEFAULT_RACK : racks.get(index % racks.size());
+    }
+
+    /**
+     * @return settings masters (NameNode, JobTracker/ResourceManager, etc.) should be started with
+     */
+    public HadoopSettings getMasterSettings() {
+        return masterSettings;
+    }
+
+    public HadoopSettings getNodeSettings(int index) {
+        return nodeSettings.get(index);
+    }
+
+    /**
+     * Picks up configuration generated by one of the previous builds.
+     * @return false if there is nothing to pick up (topology has to be generated)
+     */
+    public boolean load(HadoopSettings clusterSettings) throws IOException {
+        if (!racks.isEmpty() && !getMasterConfDirectory().isDirectory()) {
+            return false;
+        }
+        for (int i = 0; i < getNumberOfNodes(); i++) {
+            if (!new File(getNodeDirectory(i), "conf").isDirectory()) {
+                return false;
+            }
+        }
+        if (new File(getNodeDirectory(getNumberOfNodes()), "conf").exists()) {
+            return false;
+        }
+        initSettings(clusterSettings);
+        return true;
+    }
+
+    /**
+     * Generates configuration of each node (and topology script, if cluster is rack-aware).
+     * @param addressProperties properties holding [scheme://]host:port (or just port, if property name ends with
+     * ".port") node daemons are going to listen on
+     */
+    public void generate(HadoopSettings clusterSettings, Collection<String> addressProperties) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        // configuration of the nodes left from the bigger topology (their storage is retained though)
+        for (int i = getNumberOfNodes(); new File(getNodeDirectory(i), "conf").exists(); i++) {
+            LocalFileSystem.delete(new File(getNodeDirectory(i), "conf"));
+        }
+        if (!racks.isEmpty()) {
+            File script = new File(directory, "topology.sh");
+            writeTopologyScript(script);
+            Map<String, String> overrides = new LinkedHashMap<String, String>();
+            overrides.put("topology.script.file.name", script.getAbsolutePath());
+            ConfigurationGenerator.generate(clusterSettings.getConfDirectory(), getMasterConfDirectory(), overrides);
+        }
+        Iterator<Integer> ports = ConfigurationGenerator.allocatePorts(
+                addressProperties.size() * getNumberOfNodes()).iterator();
+        for (int i = 0; i < getNumberOfNodes(); i++) {
+            File nodeDirectory = getNodeDirectory(i).getAbsoluteFile();
+            File nodeStorageDirectory = getNodeStorageDirectory(i);
+            String host = getHost(i);
+            Map<String, String> overrides = new LinkedHashMap<String, String>();
+            overrides.put("dfs.data.dir", new File(nodeStorageDirectory, "dfs/data").getPath());
+            overrides.put("mapred.local.dir", new File(nodeStorageDirectory, "mapred/local").getPath());
+            overrides.put("yarn.nodemanager.local-dirs", new File(nodeStorageDirectory, "yarn/local").getPath());
+            overrides.put("yarn.nodemanager.log-dirs", new File(nodeDirectory, "yarn/logs").getPath());
+            if (!racks.isEmpty()) {
+                overrides.put("slave.host.name", host);
+                overrides.put("yarn.nodemanager.hostname", host);
+            }
+            for (String addressProperty : addressProperties) {
+                overrides.put(addressProperty, ConfigurationGenerator.bind(addressProperty,
+                        clusterSettings.getConf(addressProperty, ""), host, ports.next()));
+            }
+            if (!nodeDirectory.isDirectory() && !nodeDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + nodeDirectory);
+            }
+            ConfigurationGenerator.generate(clusterSettings.getConfDirectory(), new File(nodeDirectory, "conf"),
+                    overrides);
+        }
+        initSettings(clusterSettings);
+    }
+
+    private File getMasterConfDirectory() {
+        return new File(directory, "conf");
+    }
+
+    private void writeTopologyScript(File file) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+            writer.write("#!/bin/sh\n");
+            writer.write("# maps node addresses to racks (generated by hadoop-maven-plugin)\n");
+            writer.write("for node in \"$@\"; do\n");
+            writer.write("    case \"$node\" in\n");
+            for (int i = 0; i < getNumberOfNodes(); i++) {
+                writer.write("        " + getHost(i) + ") echo " + getRack(i) + " ;;\n");
+            }
+            writer.write("        *) echo " + DEFAULT_RACK + " ;;\n");
+            writer.write("    esac\n");
+            writer.write("done\n");
+            writer.flush();
+        } finally {
+            outputStream.close();
+        }
+        if (!file.setExecutable(true)) {
+            throw new IOException("Unable to make " + file + " executable");
+        }
+    }
+
+    private void initSettings(HadoopSettings clusterSettings) throws IOException {
+        masterSettings = racks.isEmpty() ? clusterSettings :
+                clusterSettings.withConfDirectory(getMasterConfDirectory());
+        nodeSettings.clear();
+        for (int i = 0; i < getNumberOfNodes(); i++) {
+            File nodeDirectory = getNodeDirectory(i);
+            HadoopSettings settings = clusterSettings.withConfDirectory(new File(nodeDirectory, "conf"));
+            settings.getEnvironment().put("HADOOP_LOG_DIR", new File(nodeDirectory, "logs").getCanonicalPath());
+            nodeSettings.add(settings);
+        }
+    }
+}
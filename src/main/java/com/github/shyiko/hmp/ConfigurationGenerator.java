@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Generates Hadoop configuration directories (copies of existing ones with some of the properties overridden).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+final class ConfigurationGenerator {
+
+    private static final String[] SITE_FILE_NAMES = {"core-site.xml", "hdfs-site.xml", "mapred-site.xml",
+        "yarn-site.xml"};
+
+    private ConfigurationGenerator() {
+    }
+
+    /**
+     * Copies source directory to the target one (unless they are the same) and overrides properties.
+     */
+    public static void generate(File sourceDirectory, File targetDirectory, Map<String, String> overrides)
+            throws IOException {
+        if (!sourceDirectory.getCanonicalFile().equals(targetDirectory.getCanonicalFile())) {
+            LocalFileSystem.delete(targetDirectory);
+            LocalFileSystem.copyDirectory(sourceDirectory, targetDirectory);
+        }
+        // property may be defined in any of *-site.xml files (not necessarily the one it belongs to)
+        Set<String> overriddenNames = new HashSet<String>();
+        for (String name : overrides.keySet()) {
+            overriddenNames.addAll(Arrays.asList(HadoopConfiguration.getAliases(name)));
+        }
+        for (String fileName : SITE_FILE_NAMES) {
+            Map<String, String> fileOverrides = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> entry : overrides.entrySet()) {
+                if (getSiteFileName(entry.getKey()).equals(fileName)) {
+                    fileOverrides.put(entry.getKey(), entry.getValue());
+                }
+            }
+            File file = new File(targetDirectory, fileName);
+            if (file.exists() || !fileOverrides.isEmpty()) {
+                override(file, overriddenNames, fileOverrides);
+            }
+        }
+    }
+
+    /**
+     * @param property name of the property (if it ends with ".port" value is expected to be just a port)
+     * @param address current value of the property ([scheme://]host:port)
+     * @return address with the same scheme bound to the given host and port
+     */
+    public static String bind(String property, String address, String host, int port) {
+        if (property.endsWith(".port")) {
+            return String.valueOf(port);
+        }
+        int positionOfScheme = address.indexOf("://");
+        return (positionOfScheme > -1 ? address.substring(0, positionOfScheme + 3) : "") + host + ":" + port;
+    }
+
+    /**
+     * Sockets are kept open until all ports are allocated, so that the same port isn't returned twice.
+     */
+    public static List<Integer> allocatePorts(int numberOfPorts) throws IOException {
+        List<Integer> result = new ArrayList<Integer>();
+        List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+        try {
+            for (int i = 0; i < numberOfPorts; i++) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                result.add(socket.getLocalPort());
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return result;
+    }
+
+    private static String getSiteFileName(String property) {
+        if (property.startsWith("dfs.")) {
+            return "hdfs-site.xml";
+        }
+        if (property.startsWith("mapred.") || property.startsWith("mapreduce.")) {
+            return "mapred-site.xml";
+        }
+        if (property.startsWith("yarn.")) {
+            return "yarn-site.xml";
+        }
+        return "core-site.xml";
+    }
+
+    /**
+     * Removes overridden properties from the configuration file (creating it if necessary) and adds new ones.
+     */
+    private static void override(File file, Set<String> overriddenNames, Map<String, String> properties)
+            throws IOException {
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            Document document;
+            if (file.exists()) {
+                document = documentBuilderFactory.newDocumentBuilder().parse(file);
+            } else {
+                document = documentBuilderFactory.newDocumentBuilder().newDocument();
+                document.appendChild(document.createElement("configuration"));
+            }
+            Element root = document.getDocumentElement();
+            NodeList propertyNodes = root.getElementsByTagName("property");
+            for (int i = propertyNodes.getLength() - 1; i > -1; i--) {
+                Element property = (Element) propertyNodes.item(i);
+                NodeList names = property.getElementsByTagName("name");
+                if (names.getLength() > 0 && overriddenNames.contains(names.item(0).getTextContent().trim())) {
+                    Node previousSibling = property.getPreviousSibling();
+                    if (previousSibling != null && previousSibling.getNodeType() == Node.TEXT_NODE &&
+                            previousSibling.getTextContent().trim().isEmpty()) {
+                        previousSibling.getParentNode().removeChild(previousSibling);
+                    }
+                    property.getParentNode().removeChild(property);
+                }
+            }
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                Element property = document.createElement("property");
+                Element name = document.createElement("name");
+                name.setTextContent(entry.getKey());
+                property.appendChild(document.createTextNode("\n        "));
+                property.appendChild(name);
+                Element value = document.createElement("value");
+                value.setTextContent(entry.getValue());
+                property.appendChild(document.createTextNode("\n        "));
+                property.appendChild(value);
+                property.appendChild(document.createTextNode("\n    "));
+                root.appendChild(document.createTextNode("    "));
+                root.appendChild(property);
+                root.appendChild(document.createTextNode("\n"));
+            }
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            Files.deleteIfExists(file.toPath());
+            transformer.transform(new DOMSource(document), new StreamResult(file));
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to generate " + file, e);
+        } catch (SAXException e) {
+            throw new IOException("Unable to generate " + file, e);
+        } catch (TransformerException e) {
+            throw new IOException("Unable to generate " + file, e);
+        }
+    }
+}
@@ -20,6 +20,13 @@ import org.apache.maven.plugin.MojoFailureException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * @goal copyFromLocal
@@ -46,6 +53,29 @@ public class CopyFromLocalMojo extends AbstractHadoopMojo {
      */
     private boolean autoCleanCopyFromLocalTarget;
 
+    /**
+     * Number of threads used to copy content of copyFromLocalSource directory (files are copied largest first).
+     * Takes effect only with hmp.inProcessClient=true
+     * @parameter expression="${hmp.copyFromLocalThreads}" default-value="1"
+     */
+    private int copyFromLocalThreads;
+
+    /**
+     * True if DFS target should be synchronized with copyFromLocalSource (only new/modified files are uploaded and
+     * only removed ones are deleted), false if target should be copied over (see hmp.autoCleanCopyFromLocalTarget).
+     * Local files are compared against the manifest of the previous synchronization (kept in build directory) by
+     * size and modification time. Takes effect only with hmp.inProcessClient=true
+     * @parameter expression="${hmp.syncCopyFromLocal}" default-value="false"
+     */
+    private boolean syncCopyFromLocal;
+
+    /**
+     * True if files which differ from the manifest only by modification time should be compared by checksum
+     * before being uploaded again (see hmp.syncCopyFromLocal)
+     * @parameter expression="${hmp.syncCopyFromLocalChecksum}" default-value="false"
+     */
+    private boolean syncCopyFromLocalChecksum;
+
     @Override
     protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
         if (!copyFromLocalSource.exists()) {
@@ -60,24 +90,226 @@ public class CopyFromLocalMojo extends AbstractHadoopMojo {
         if (copyFromLocalTarget == null || copyFromLocalTarget.trim().isEmpty()) {
             copyFromLocalTarget = canonicalLocalSource;
         }
+        HadoopFileSystem fileSystem = getFileSystem(hadoopSettings);
+        if (syncCopyFromLocal) {
+            if (fileSystem.isInProcess()) {
+                try {
+                    synchronize(fileSystem, canonicalLocalSource);
+                } catch (IOException e) {
+                    throw new MojoFailureException("Unable to synchronize dfs:" + copyFromLocalTarget + ": " +
+                            e.getMessage());
+                }
+                return;
+            }
+            getLog().warn("Incremental copyFromLocal requires in-process client. Copying everything instead");
+        }
         if (autoCleanCopyFromLocalTarget) {
-            String dfsTargetURI = hadoopSettings.getDFSURI() + copyFromLocalTarget;
             if (getLog().isInfoEnabled()) {
                 getLog().info("Cleaning dfs:" + copyFromLocalTarget);
             }
             try {
-                executeCommand(hadoopSettings, "bin/hadoop fs -rmr " + dfsTargetURI);
+                fileSystem.delete(copyFromLocalTarget);
             } catch (IOException e) {
-                getLog().warn("Unable to clean dfs:" + dfsTargetURI);
+                getLog().warn("Unable to clean dfs:" + copyFromLocalTarget);
             }
         }
         try {
             if (getLog().isInfoEnabled()) {
                 getLog().info("Copying data from " + canonicalLocalSource + " to dfs:" + copyFromLocalTarget);
             }
-            executeCommand(hadoopSettings, "bin/hadoop fs -copyFromLocal " + canonicalLocalSource + " " + copyFromLocalTarget);
+            if (copyFromLocalThreads > 1 && copyFromLocalSource.isDirectory()) {
+                if (fileSystem.isInProcess()) {
+                    ParallelTransfer.Statistics statistics = copyInParallel(fileSystem);
+                    if (getLog().isInfoEnabled()) {
+                        getLog().info("Copied " + statistics);
+                    }
+                    return;
+                }
+                getLog().warn("Parallel copyFromLocal requires in-process client. Using single thread instead");
+            }
+            long startTime = System.currentTimeMillis();
+            fileSystem.copyFromLocal(copyFromLocalSource, copyFromLocalTarget);
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Copied in " + (System.currentTimeMillis() - startTime) + "ms");
+            }
         } catch (IOException e) {
             throw new MojoFailureException("Unable to perform Hadoop copyFromLocal: " + e.getMessage());
         }
     }
+
+    private ParallelTransfer.Statistics copyInParallel(final HadoopFileSystem fileSystem) throws IOException {
+        // same semantics as "fs -copyFromLocal" (existing target directory gets source directory copied into it)
+        final String targetRoot = !autoCleanCopyFromLocalTarget && fileSystem.isDirectory(copyFromLocalTarget) ?
+                copyFromLocalTarget + "/" + copyFromLocalSource.getName() : copyFromLocalTarget;
+        final Path sourceRoot = copyFromLocalSource.getCanonicalFile().toPath();
+        final ParallelTransfer transfer = new ParallelTransfer(copyFromLocalThreads);
+        fileSystem.mkdirs(targetRoot);
+        Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String[] children = dir.toFile().list();
+                if (children != null && children.length == 0) {
+                    fileSystem.mkdirs(resolveTarget(dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    final String target = resolveTarget(file);
+                    transfer.add(attrs.size(), new Callable<Object>() {
+
+                        @Override
+                        public Object call() throws Exception {
+                            fileSystem.copyFromLocal(file.toFile(), target);
+                            return null;
+                        }
+                    });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String resolveTarget(Path path) {
+                return targetRoot + "/" + sourceRoot.relativize(path).toString().replace(File.separatorChar, '/');
+            }
+        });
+        return transfer.execute();
+    }
+
+    private void synchronize(final HadoopFileSystem fileSystem, String canonicalLocalSource) throws IOException {
+        long startTime = System.currentTimeMillis();
+        File manifestFile = new File(buildDirectory, "hmp/copyFromLocal-" +
+                Integer.toHexString((canonicalLocalSource + " " + copyFromLocalTarget).hashCode()) + ".manifest");
+        TransferManifest manifest = TransferManifest.load(manifestFile);
+        final Map<String, File> localFiles = new TreeMap<String, File>();
+        final Set<String> localDirectories = new TreeSet<String>();
+        if (copyFromLocalSource.isDirectory()) {
+            final Path sourceRoot = copyFromLocalSource.getCanonicalFile().toPath();
+            Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    localDirectories.add(relativize(dir));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        localFiles.put(relativize(file), file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private String relativize(Path path) {
+                    return sourceRoot.relativize(path).toString().replace(File.separatorChar, '/');
+                }
+            });
+        } else {
+            localFiles.put("", copyFromLocalSource);
+        }
+        if (!copyFromLocalSource.isDirectory() && fileSystem.isDirectory(copyFromLocalTarget)) {
+            fileSystem.delete(copyFromLocalTarget);
+        }
+        Map<String, HadoopFileStatus> remoteFiles = HadoopFileStatus.index(fileSystem.list(copyFromLocalTarget));
+        // removed files (as well as files which turned into directories and vice versa)
+        List<String> deletedPaths = new ArrayList<String>();
+        for (HadoopFileStatus remoteFile : remoteFiles.values()) {
+            String path = remoteFile.getPath();
+            boolean obsolete = remoteFile.isDirectory() ? !localDirectories.contains(path) :
+                    !localFiles.containsKey(path);
+            if (obsolete && !isNested(path, deletedPaths)) {
+                fileSystem.delete(resolveTarget(path));
+                deletedPaths.add(path);
+            }
+        }
+        for (String path : localDirectories) {
+            HadoopFileStatus remoteFile = remoteFiles.get(path);
+            if (remoteFile == null || !remoteFile.isDirectory()) {
+                fileSystem.mkdirs(resolveTarget(path));
+            }
+        }
+        // new/modified files
+        Map<String, String> checksums = new HashMap<String, String>();
+        ParallelTransfer transfer = new ParallelTransfer(Math.max(copyFromLocalThreads, 1));
+        int numberOfUnchangedFiles = 0;
+        for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+            final String path = entry.getKey();
+            final File file = entry.getValue();
+            HadoopFileStatus remoteFile = isNested(path, deletedPaths) ? null : remoteFiles.get(path);
+            if (isUpToDate(file, manifest.get(path), remoteFile, checksums, path)) {
+                numberOfUnchangedFiles++;
+                continue;
+            }
+            transfer.add(file.length(), new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    fileSystem.copyFromLocal(file, resolveTarget(path));
+                    return null;
+                }
+            });
+        }
+        ParallelTransfer.Statistics statistics = transfer.execute();
+        // manifest reflects state right after synchronization
+        remoteFiles = HadoopFileStatus.index(fileSystem.list(copyFromLocalTarget));
+        for (String path : new ArrayList<String>(manifest.getPaths())) {
+            if (!localFiles.containsKey(path)) {
+                manifest.remove(path);
+            }
+        }
+        for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+            String path = entry.getKey();
+            File file = entry.getValue();
+            HadoopFileStatus remoteFile = remoteFiles.get(path);
+            if (remoteFile == null) {
+                manifest.remove(path);
+                continue;
+            }
+            String checksum = checksums.get(path);
+            if (checksum == null && syncCopyFromLocalChecksum) {
+                checksum = TransferManifest.checksum(file);
+            }
+            manifest.put(path, new TransferManifest.Entry(file.length(), file.lastModified(),
+                    remoteFile.getLength(), remoteFile.getModificationTime(), checksum));
+        }
+        manifest.save();
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Synchronized dfs:" + copyFromLocalTarget + " in " + (System.currentTimeMillis() - startTime) +
+                    "ms (uploaded " + statistics + "; deleted " + deletedPaths.size() + ", unchanged " +
+                    numberOfUnchangedFiles + ")");
+        }
+    }
+
+    private boolean isUpToDate(File file, TransferManifest.Entry manifestEntry, HadoopFileStatus remoteFile,
+                               Map<String, String> checksums, String path) throws IOException {
+        if (manifestEntry == null || !manifestEntry.matchesRemote(remoteFile)) {
+            return false;
+        }
+        if (manifestEntry.matchesLocal(file)) {
+            return true;
+        }
+        if (!syncCopyFromLocalChecksum || manifestEntry.getChecksum() == null ||
+                file.length() != manifestEntry.getLocalLength()) {
+            return false;
+        }
+        String checksum = TransferManifest.checksum(file);
+        checksums.put(path, checksum);
+        return checksum.equals(manifestEntry.getChecksum());
+    }
+
+    private boolean isNested(String path, Collection<String> parentPaths) {
+        for (String parentPath : parentPaths) {
+            if (parentPath.isEmpty() || path.equals(parentPath) || path.startsWith(parentPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String resolveTarget(String path) {
+        return path.isEmpty() ? copyFromLocalTarget : copyFromLocalTarget + "/" + path;
+    }
 }
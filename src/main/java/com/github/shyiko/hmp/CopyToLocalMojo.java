@@ -20,6 +20,14 @@ import org.apache.maven.plugin.MojoFailureException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * @goal copyToLocal
@@ -46,6 +54,21 @@ public class CopyToLocalMojo extends AbstractHadoopMojo {
      */
     private boolean autoCleanCopyToLocalTarget;
 
+    /**
+     * Number of threads used to copy content of copyToLocalSource directory (files are copied largest first).
+     * Takes effect only with hmp.inProcessClient=true
+     * @parameter expression="${hmp.copyToLocalThreads}" default-value="1"
+     */
+    private int copyToLocalThreads;
+
+    /**
+     * True if copyToLocalTarget should be synchronized with copyToLocalSource (only files which changed since the
+     * previous synchronization are copied and only files which no longer exist in DFS are removed), false if target
+     * should be copied over (see hmp.autoCleanCopyToLocalTarget). Takes effect only with hmp.inProcessClient=true
+     * @parameter expression="${hmp.syncCopyToLocal}" default-value="false"
+     */
+    private boolean syncCopyToLocal;
+
     @Override
     protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
         if (copyToLocalSource == null || copyToLocalSource.trim().isEmpty()) {
@@ -55,31 +78,200 @@ public class CopyToLocalMojo extends AbstractHadoopMojo {
                 throw new MojoExecutionException("Unable to resolve copyToLocalTarget " + copyToLocalTarget, e);
             }
         }
+        HadoopFileSystem fileSystem = getFileSystem(hadoopSettings);
+        boolean parallel = copyToLocalThreads > 1;
+        if ((parallel || syncCopyToLocal) && !fileSystem.isInProcess()) {
+            getLog().warn("Parallel/incremental copyToLocal requires in-process client. Using plain copy instead");
+            parallel = syncCopyToLocal = false;
+        }
+        if (syncCopyToLocal) {
+            try {
+                synchronize(fileSystem);
+            } catch (IOException e) {
+                throw new MojoFailureException("Unable to synchronize " + copyToLocalTarget + ": " + e.getMessage());
+            }
+            return;
+        }
         if (autoCleanCopyToLocalTarget && copyToLocalTarget.exists()) {
             if (getLog().isInfoEnabled()) {
                 getLog().info("Cleaning " + copyToLocalTarget);
             }
-            delete(copyToLocalTarget);
+            try {
+                LocalFileSystem.delete(copyToLocalTarget);
+            } catch (IOException e) {
+                throw new MojoFailureException("Unable to clean " + copyToLocalTarget + ": " + e.getMessage());
+            }
         }
         try {
             if (getLog().isInfoEnabled()) {
                 getLog().info("Copying data from dfs:" + copyToLocalSource + " to " + copyToLocalTarget);
             }
-            executeCommand(hadoopSettings, "bin/hadoop fs -copyToLocal " + copyToLocalSource + " " + copyToLocalTarget.getCanonicalPath());
+            if (parallel) {
+                // same semantics as "fs -copyToLocal" (existing target directory gets source copied into it)
+                File targetRoot = copyToLocalTarget.isDirectory() ?
+                        new File(copyToLocalTarget, new File(copyToLocalSource).getName()) : copyToLocalTarget;
+                ParallelTransfer.Statistics statistics = copyInParallel(fileSystem, listRemoteFiles(fileSystem),
+                        targetRoot, null);
+                if (getLog().isInfoEnabled()) {
+                    getLog().info("Copied " + statistics);
+                }
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            fileSystem.copyToLocal(copyToLocalSource, copyToLocalTarget);
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Copied in " + (System.currentTimeMillis() - startTime) + "ms");
+            }
         } catch (IOException e) {
             throw new MojoFailureException("Unable to perform Hadoop copyToLocal: " + e.getMessage());
         }
     }
 
-    private void delete(File file) {
-        if (file.isDirectory()) {
-            File[] children = file.listFiles();
-            if (children != null) {
-                for (File child : children) {
-                    delete(child);
+    private void synchronize(HadoopFileSystem fileSystem) throws IOException {
+        long startTime = System.currentTimeMillis();
+        File manifestFile = new File(buildDirectory, "hmp/copyToLocal-" +
+                Integer.toHexString((copyToLocalSource + " " + copyToLocalTarget.getCanonicalPath()).hashCode()) +
+                ".manifest");
+        TransferManifest manifest = TransferManifest.load(manifestFile);
+        Map<String, HadoopFileStatus> remoteFiles = listRemoteFiles(fileSystem);
+        int numberOfDeletedFiles = deleteStaleFiles(remoteFiles);
+        int numberOfRemoteFiles = 0;
+        for (HadoopFileStatus remoteFile : remoteFiles.values()) {
+            if (!remoteFile.isDirectory()) {
+                numberOfRemoteFiles++;
+            }
+        }
+        ParallelTransfer.Statistics statistics = copyInParallel(fileSystem, remoteFiles, copyToLocalTarget,
+                manifest);
+        for (String path : manifest.getPaths().toArray(new String[0])) {
+            if (!remoteFiles.containsKey(path)) {
+                manifest.remove(path);
+            }
+        }
+        manifest.save();
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Synchronized " + copyToLocalTarget + " in " + (System.currentTimeMillis() - startTime) +
+                    "ms (copied " + statistics + "; deleted " + numberOfDeletedFiles + ", unchanged " +
+                    (numberOfRemoteFiles - statistics.getNumberOfFiles()) + ")");
+        }
+    }
+
+    /**
+     * @return files/directories of hmp.copyToLocalSource keyed by relative path (empty if it's an empty directory)
+     * @throws IOException if hmp.copyToLocalSource doesn't exist
+     */
+    private Map<String, HadoopFileStatus> listRemoteFiles(HadoopFileSystem fileSystem) throws IOException {
+        Map<String, HadoopFileStatus> result = HadoopFileStatus.index(fileSystem.list(copyToLocalSource));
+        if (result.isEmpty() && !fileSystem.isDirectory(copyToLocalSource)) {
+            throw new IOException("dfs:" + copyToLocalSource + " doesn't exist");
+        }
+        return result;
+    }
+
+    /**
+     * @param remoteFiles see {@link #listRemoteFiles(HadoopFileSystem)}
+     * @param manifest manifest of the previous synchronization (files matching it are skipped), null to copy
+     * everything. Updated in place
+     */
+    private ParallelTransfer.Statistics copyInParallel(final HadoopFileSystem fileSystem,
+                                                       Map<String, HadoopFileStatus> remoteFiles, File targetRoot,
+                                                       TransferManifest manifest) throws IOException {
+        if (!remoteFiles.containsKey("") && !targetRoot.isDirectory() && !targetRoot.mkdirs()) {
+            throw new IOException("Unable to create " + targetRoot);
+        }
+        ParallelTransfer transfer = new ParallelTransfer(Math.max(copyToLocalThreads, 1));
+        Map<String, File> copiedFiles = new HashMap<String, File>();
+        for (HadoopFileStatus remoteFile : remoteFiles.values()) {
+            final String path = remoteFile.getPath();
+            final File localFile = path.isEmpty() ? targetRoot : new File(targetRoot, path);
+            if (remoteFile.isDirectory()) {
+                if (!localFile.isDirectory() && !localFile.mkdirs()) {
+                    throw new IOException("Unable to create " + localFile);
+                }
+                continue;
+            }
+            if (manifest != null) {
+                TransferManifest.Entry manifestEntry = manifest.get(path);
+                if (manifestEntry != null && manifestEntry.matchesRemote(remoteFile) &&
+                        manifestEntry.matchesLocal(localFile)) {
+                    continue;
                 }
             }
+            File parentFile = localFile.getAbsoluteFile().getParentFile();
+            if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+                throw new IOException("Unable to create " + parentFile);
+            }
+            copiedFiles.put(path, localFile);
+            transfer.add(remoteFile.getLength(), new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    fileSystem.copyToLocal(copyToLocalSource + (path.isEmpty() ? "" : "/" + path), localFile);
+                    return null;
+                }
+            });
         }
-        file.delete();
+        ParallelTransfer.Statistics statistics = transfer.execute();
+        if (manifest != null) {
+            for (Map.Entry<String, File> entry : copiedFiles.entrySet()) {
+                HadoopFileStatus remoteFile = remoteFiles.get(entry.getKey());
+                File localFile = entry.getValue();
+                manifest.put(entry.getKey(), new TransferManifest.Entry(localFile.length(), localFile.lastModified(),
+                        remoteFile.getLength(), remoteFile.getModificationTime(), null));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Removes local files/directories which either don't exist in DFS or changed their type.
+     * @return number of deleted files/directories
+     */
+    private int deleteStaleFiles(final Map<String, HadoopFileStatus> remoteFiles) throws IOException {
+        HadoopFileStatus remoteRoot = remoteFiles.get("");
+        if (!copyToLocalTarget.exists()) {
+            return 0;
+        }
+        if (remoteRoot != null || !copyToLocalTarget.isDirectory()) {
+            // single file on either side
+            if (remoteRoot == null || copyToLocalTarget.isDirectory()) {
+                LocalFileSystem.delete(copyToLocalTarget);
+                return 1;
+            }
+            return 0;
+        }
+        final Path root = copyToLocalTarget.getCanonicalFile().toPath();
+        final int[] numberOfDeletedFiles = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String path = relativize(dir);
+                if (!path.isEmpty()) {
+                    HadoopFileStatus remoteFile = remoteFiles.get(path);
+                    if (remoteFile == null || !remoteFile.isDirectory()) {
+                        LocalFileSystem.delete(dir.toFile());
+                        numberOfDeletedFiles[0]++;
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                HadoopFileStatus remoteFile = remoteFiles.get(relativize(file));
+                if (remoteFile == null || remoteFile.isDirectory()) {
+                    Files.delete(file);
+                    numberOfDeletedFiles[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String relativize(Path path) {
+                return root.relativize(path).toString().replace(File.separatorChar, '/');
+            }
+        });
+        return numberOfDeletedFiles[0];
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Asynchronous sink for the output of a daemon. Lines are put into a bounded buffer (by the threads pumping
+ * stdout/stderr of the process) and written to the rolling log file by a dedicated thread. Lines matching console
+ * pattern are mirrored to the console as well.
+ * <p/>
+ * Daemon is never blocked by a slow disk/console: if buffer is full, lines are dropped (and number of dropped
+ * lines is recorded in the log file).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class DaemonLog implements LineListener, Closeable {
+
+    private static final int NUMBER_OF_BACKUPS = 3;
+    private static final long FLUSH_INTERVAL_IN_MILLISECONDS = 1000;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final String name;
+    private final File file;
+    private final Pattern consolePattern;
+    private final PrintStream console;
+    private final long maximumFileSize;
+    private final BlockingQueue<String> buffer;
+    private final AtomicLong numberOfDroppedLines = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private Writer writer;
+    private long fileSize;
+
+    /**
+     * @param consolePattern pattern lines which should be mirrored to the console must match, null if none should be
+     * @param bufferSize maximum number of lines waiting to be written
+     * @param maximumFileSize size (in bytes) at which log file is rolled over
+     */
+    public DaemonLog(String name, File directory, Pattern consolePattern, PrintStream console, int bufferSize,
+                     long maximumFileSize) throws IOException {
+        this.name = name;
+        this.file = new File(directory, name + ".log");
+        this.consolePattern = consolePattern;
+        this.console = console;
+        this.maximumFileSize = maximumFileSize;
+        this.buffer = new ArrayBlockingQueue<String>(bufferSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        // output of the previous run is kept as a backup
+        roll();
+        this.writerThread = new Thread("hmp-log-" + name) {
+
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    DaemonLog.this.console.println("Unable to write " + file + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    // log is being closed
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void onLine(String line) {
+        if (!buffer.offer(line)) {
+            numberOfDroppedLines.incrementAndGet();
+        }
+    }
+
+    private void drain() throws IOException, InterruptedException {
+        try {
+            long lastFlushTime = System.currentTimeMillis();
+            while (true) {
+                String line = buffer.poll(FLUSH_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    write(line);
+                } else if (closed) {
+                    break;
+                }
+                long droppedLines = numberOfDroppedLines.getAndSet(0);
+                if (droppedLines > 0) {
+                    write("[hadoop-maven-plugin] " + droppedLines + " line(s) dropped (log buffer is full)");
+                }
+                if (line == null || System.currentTimeMillis() - lastFlushTime > FLUSH_INTERVAL_IN_MILLISECONDS) {
+                    writer.flush();
+                    lastFlushTime = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (fileSize > maximumFileSize) {
+            writer.close();
+            roll();
+        }
+        writer.write(line);
+        writer.write(LINE_SEPARATOR);
+        fileSize += line.length() + LINE_SEPARATOR.length();
+        if (consolePattern != null && consolePattern.matcher(line).matches()) {
+            console.println("[" + name + "] " + line);
+        }
+    }
+
+    /**
+     * Shifts backups (name.log -&gt; name.log.1 -&gt; name.log.2 ...) and opens new log file.
+     */
+    private void roll() throws IOException {
+        for (int i = NUMBER_OF_BACKUPS; i > 0; i--) {
+            File source = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+            File target = new File(file.getPath() + "." + i);
+            if (source.exists() && (target.exists() && !target.delete() || !source.renameTo(target))) {
+                throw new IOException("Unable to roll over " + file);
+            }
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        fileSize = 0;
+    }
+
+    /**
+     * Writes out whatever is left in the buffer (waiting for at most timeoutInMilliseconds).
+     */
+    public void close(long timeoutInMilliseconds) throws InterruptedException {
+        closed = true;
+        writerThread.join(timeoutInMilliseconds);
+    }
+
+    @Override
+    public void close() {
+        try {
+            close(FLUSH_INTERVAL_IN_MILLISECONDS * 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Detects moment when daemon becomes ready to serve requests.
+ * <p/>
+ * Daemon is considered to be ready when all of its endpoints accept connections. Endpoints are probed with an
+ * exponential backoff, which is cut short each time daemon reports (through its output) that something
+ * has been started, so that readiness is usually observed right after it happens. Probing stops as soon as daemon
+ * is reported to have exited.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class DaemonReadiness implements LineListener {
+
+    private static final long INITIAL_BACKOFF_IN_MILLISECONDS = 10;
+    private static final long MAXIMUM_BACKOFF_IN_MILLISECONDS = 1000;
+    private static final long CONNECT_TIMEOUT_IN_MILLISECONDS = 500;
+
+    private final Pattern startupMarker;
+    private final Object monitor = new Object();
+    private int numberOfMarkersObserved;
+    private int numberOfRetries;
+    private String exitReason;
+
+    public DaemonReadiness(Pattern startupMarker) {
+        this.startupMarker = startupMarker;
+    }
+
+    @Override
+    public void onLine(String line) {
+        if (startupMarker.matcher(line).matches()) {
+            synchronized (monitor) {
+                numberOfMarkersObserved++;
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Notifies {@link #await(java.util.Collection, long)} that daemon is gone (and there is no point in waiting).
+     */
+    public void onExit(String reason) {
+        synchronized (monitor) {
+            exitReason = reason;
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if all addresses accepted connection within the specified timeout, false otherwise
+     * @throws IOException if daemon exited before all of the addresses accepted connection
+     */
+    public boolean await(Collection<InetSocketAddress> addresses, long timeoutInMilliseconds)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+        List<InetSocketAddress> pendingAddresses = new ArrayList<InetSocketAddress>(addresses);
+        long backoff = INITIAL_BACKOFF_IN_MILLISECONDS;
+        while (true) {
+            int markersObservedBeforeProbing;
+            String exitReasonBeforeProbing;
+            synchronized (monitor) {
+                markersObservedBeforeProbing = numberOfMarkersObserved;
+                exitReasonBeforeProbing = exitReason;
+            }
+            for (int i = pendingAddresses.size() - 1; i > -1; i--) {
+                if (isAcceptingConnections(pendingAddresses.get(i))) {
+                    pendingAddresses.remove(i);
+                }
+            }
+            if (pendingAddresses.isEmpty()) {
+                return true;
+            }
+            if (exitReasonBeforeProbing != null) {
+                throw new IOException(exitReasonBeforeProbing);
+            }
+            long timeLeft = deadline - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+                return false;
+            }
+            numberOfRetries++;
+            synchronized (monitor) {
+                if (numberOfMarkersObserved == markersObservedBeforeProbing && exitReason == null) {
+                    monitor.wait(Math.min(backoff, timeLeft));
+                }
+                if (numberOfMarkersObserved != markersObservedBeforeProbing || exitReason != null) {
+                    backoff = INITIAL_BACKOFF_IN_MILLISECONDS;
+                    continue;
+                }
+            }
+            backoff = Math.min(backoff * 2, MAXIMUM_BACKOFF_IN_MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return number of times endpoints had to be probed again (since some of them weren't accepting connections)
+     */
+    public int getNumberOfRetries() {
+        return numberOfRetries;
+    }
+
+    /**
+     * Non-blocking connect, which (unlike java.net.Socket) can be bounded by the timeout without affecting
+     * probing frequency.
+     */
+    static boolean isAcceptingConnections(InetSocketAddress address) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    return true;
+                }
+                Selector selector = Selector.open();
+                try {
+                    channel.register(selector, SelectionKey.OP_CONNECT);
+                    return selector.select(CONNECT_TIMEOUT_IN_MILLISECONDS) > 0 && channel.finishConnect();
+                } finally {
+                    selector.close();
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
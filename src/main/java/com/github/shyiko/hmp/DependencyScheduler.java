@@ -0,0 +1,255 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a set of named tasks as a dependency graph. Each task is started as soon as all of its dependencies are
+ * completed, so that independent tasks are executed concurrently (optionally, no more than given number at a time).
+ * Execution fails as soon as any of the tasks does.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class DependencyScheduler {
+
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final BlockingQueue<Node> completedNodes = new LinkedBlockingQueue<Node>();
+    private final Semaphore semaphore;
+
+    public DependencyScheduler() {
+        this(0);
+    }
+
+    /**
+     * @param maximumNumberOfConcurrentTasks maximum number of tasks running at the same time (0 - unlimited)
+     */
+    public DependencyScheduler(int maximumNumberOfConcurrentTasks) {
+        if (maximumNumberOfConcurrentTasks < 0) {
+            throw new IllegalArgumentException("Maximum number of concurrent tasks cannot be negative");
+        }
+        this.semaphore = maximumNumberOfConcurrentTasks == 0 ? null : new Semaphore(maximumNumberOfConcurrentTasks);
+    }
+
+    public void schedule(String name, Collection<String> dependencies, Callable<?> task) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Task " + name + " is already scheduled");
+        }
+        nodes.put(name, new Node(name, dependencies, task));
+    }
+
+    /**
+     * @return future which is completed when task is finished (either successfully or not)
+     */
+    public Future<?> getFuture(String name) {
+        Node node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown task " + name);
+        }
+        return node.future;
+    }
+
+    /**
+     * @param timeoutInMilliseconds overall deadline (0 - no deadline)
+     * @throws TimeoutException if some of the tasks didn't complete within timeoutInMilliseconds
+     * @throws ExecutionException if any of the tasks failed (tasks still running are interrupted)
+     */
+    public Report execute(long timeoutInMilliseconds) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        for (Node node : nodes.values()) {
+            for (String dependency : node.dependencies) {
+                if (!nodes.containsKey(dependency)) {
+                    throw new IllegalArgumentException(node.name + " depends on unknown task " + dependency);
+                }
+            }
+        }
+        assertAcyclic();
+        ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hmp-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        try {
+            for (Node node : nodes.values()) {
+                executorService.execute(node.future);
+            }
+            // tasks are checked in order of completion, so that the first failure is reported right away
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node;
+                if (timeoutInMilliseconds > 0) {
+                    long timeLeft = startTime + timeoutInMilliseconds - System.currentTimeMillis();
+                    node = timeLeft > 0 ? completedNodes.poll(timeLeft, TimeUnit.MILLISECONDS) : null;
+                    if (node == null) {
+                        throw new TimeoutException(describePendingTasks());
+                    }
+                } else {
+                    node = completedNodes.take();
+                }
+                node.future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return new Report(startTime, System.currentTimeMillis());
+    }
+
+    private void assertAcyclic() {
+        Set<String> visited = new HashSet<String>();
+        for (String name : nodes.keySet()) {
+            assertAcyclic(name, new LinkedHashSet<String>(), visited);
+        }
+    }
+
+    private void assertAcyclic(String name, LinkedHashSet<String> path, Set<String> visited) {
+        if (!path.add(name)) {
+            throw new IllegalArgumentException("Cyclic dependency: " + path + " -> " + name);
+        }
+        if (visited.add(name)) {
+            for (String dependency : nodes.get(name).dependencies) {
+                assertAcyclic(dependency, path, visited);
+            }
+        }
+        path.remove(name);
+    }
+
+    private String describePendingTasks() {
+        List<String> pending = new ArrayList<String>();
+        for (Node node : nodes.values()) {
+            if (!node.future.isDone()) {
+                pending.add(node.name);
+            }
+        }
+        return "Timed out waiting for " + pending;
+    }
+
+    private final class Node implements Callable<Void> {
+
+        private final String name;
+        private final Collection<String> dependencies;
+        private final Callable<?> task;
+        private final FutureTask<Void> future;
+        private volatile long startTime;
+        private volatile long endTime;
+
+        private Node(String name, Collection<String> dependencies, Callable<?> task) {
+            this.name = name;
+            this.dependencies = dependencies == null ? Collections.<String>emptyList() : dependencies;
+            this.task = task;
+            this.future = new FutureTask<Void>(this) {
+
+                @Override
+                protected void done() {
+                    completedNodes.add(Node.this);
+                }
+            };
+        }
+
+        @Override
+        public Void call() throws Exception {
+            for (String dependency : dependencies) {
+                try {
+                    nodes.get(dependency).future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(name + " was not started because " + dependency + " failed");
+                }
+            }
+            if (semaphore != null) {
+                semaphore.acquire();
+            }
+            try {
+                startTime = System.currentTimeMillis();
+                try {
+                    task.call();
+                } finally {
+                    endTime = System.currentTimeMillis();
+                }
+            } finally {
+                if (semaphore != null) {
+                    semaphore.release();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Wall-clock summary of completed execution.
+     */
+    public final class Report {
+
+        private final long startTime;
+        private final long endTime;
+
+        private Report(long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        public long getTotalTimeInMilliseconds() {
+            return endTime - startTime;
+        }
+
+        public long getTimeInMilliseconds(String name) {
+            Node node = nodes.get(name);
+            return node.endTime - node.startTime;
+        }
+
+        /**
+         * @return time spent by the task waiting for its dependencies (and a free slot, if number of concurrent
+         * tasks is limited)
+         */
+        public long getWaitTimeInMilliseconds(String name) {
+            return nodes.get(name).startTime - startTime;
+        }
+
+        /**
+         * @return chain of tasks which determined total execution time (from the first to the last one)
+         */
+        public List<String> getCriticalPath() {
+            LinkedList<String> result = new LinkedList<String>();
+            Node current = latest(nodes.values());
+            while (current != null) {
+                result.addFirst(current.name);
+                List<Node> dependencies = new ArrayList<Node>();
+                for (String dependency : current.dependencies) {
+                    dependencies.add(nodes.get(dependency));
+                }
+                current = latest(dependencies);
+            }
+            return result;
+        }
+
+        private Node latest(Collection<Node> candidates) {
+            Node result = null;
+            for (Node node : candidates) {
+                if (result == null || node.endTime > result.endTime) {
+                    result = node;
+                }
+            }
+            return result;
+        }
+
+        public Collection<String> getTasks() {
+            return Collections.unmodifiableCollection(nodes.keySet());
+        }
+    }
+}
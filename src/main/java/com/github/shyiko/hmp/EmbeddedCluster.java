@@ -0,0 +1,291 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Hadoop cluster running inside of Maven JVM: MiniDFSCluster and MiniMRCluster (both come with Hadoop's test jar)
+ * loaded from hadoopHome through {@link HadoopRuntime}. NameNode and JobTracker are bound to the ports specified
+ * by the configuration, so that the rest of the goals talk to the cluster the same way they talk to the forked
+ * daemons.
+ * <p/>
+ * Mini clusters rely on system properties (storage & log directories, classpath of the task JVMs), so there can be
+ * only one embedded cluster per JVM (see {@link #getRunning()}). Storage directory is needed only while
+ * MiniDFSCluster starts. Log directory and classpath are read on each job submission and task launch, so they are
+ * visible only to the threads of the cluster (see {@link ClusterProperties}). The rest of Maven JVM sees its own
+ * values.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class EmbeddedCluster {
+
+    private static final String LAYOUT_PATTERN = "%d{yy/MM/dd HH:mm:ss} %p %c{2}: %m%n";
+
+    private static EmbeddedCluster running;
+
+    private final HadoopSettings hadoopSettings;
+    private final HadoopRuntime runtime;
+    private final File workingDirectory;
+    private ClusterProperties clusterProperties;
+    private Object dfsCluster;
+    private Object mrCluster;
+    private Object jobConf;
+
+    /**
+     * @param workingDirectory directory storage, logs and local directories of the daemons are kept in
+     */
+    public EmbeddedCluster(HadoopSettings hadoopSettings, File workingDirectory) throws IOException {
+        this.hadoopSettings = hadoopSettings;
+        this.runtime = HadoopRuntime.get(hadoopSettings);
+        this.workingDirectory = workingDirectory.getAbsoluteFile();
+        try {
+            runtime.loadClass("org.apache.hadoop.hdfs.MiniDFSCluster");
+            runtime.loadClass("org.apache.hadoop.mapred.MiniMRCluster");
+        } catch (IOException e) {
+            throw new IOException("MiniDFSCluster/MiniMRCluster not found in " + hadoopSettings.getHomeDirectory() +
+                    " (Hadoop test jar is required)", e);
+        }
+    }
+
+    /**
+     * @return cluster started within this JVM, null if there is none
+     */
+    public static synchronized EmbeddedCluster getRunning() {
+        return running;
+    }
+
+    public HadoopSettings getHadoopSettings() {
+        return hadoopSettings;
+    }
+
+    /**
+     * Sends output of the daemons (which otherwise would go wherever log4j.properties of hadoopConf says) to the
+     * rolling file (3 backups are kept).
+     * @param console true if WARN/ERROR/FATAL messages should also be printed to System.err
+     */
+    public void redirectLogs(File file, long maximumFileSize, boolean console) throws IOException {
+        File parentFile = file.getAbsoluteFile().getParentFile();
+        if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+            throw new IOException("Unable to create " + parentFile);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("log4j.rootLogger", "INFO,file" + (console ? ",console" : ""));
+        properties.setProperty("log4j.appender.file", "org.apache.log4j.RollingFileAppender");
+        properties.setProperty("log4j.appender.file.File", file.getAbsolutePath());
+        properties.setProperty("log4j.appender.file.MaxFileSize", String.valueOf(maximumFileSize));
+        properties.setProperty("log4j.appender.file.MaxBackupIndex", "3");
+        properties.setProperty("log4j.appender.file.layout", "org.apache.log4j.PatternLayout");
+        properties.setProperty("log4j.appender.file.layout.ConversionPattern", LAYOUT_PATTERN);
+        properties.setProperty("log4j.appender.console", "org.apache.log4j.ConsoleAppender");
+        properties.setProperty("log4j.appender.console.target", "System.err");
+        properties.setProperty("log4j.appender.console.Threshold", "WARN");
+        properties.setProperty("log4j.appender.console.layout", "org.apache.log4j.PatternLayout");
+        properties.setProperty("log4j.appender.console.layout.ConversionPattern", LAYOUT_PATTERN);
+        runtime.invokeStatic("org.apache.log4j.LogManager", "resetConfiguration");
+        runtime.invokeStatic("org.apache.log4j.PropertyConfigurator", "configure", properties);
+    }
+
+    /**
+     * @param racks racks nodes should be assigned to (in a round-robin fashion), empty if none
+     * @param format true if NameNode should be formatted, false if storage of the previous run should be reused
+     * @throws IOException if cluster cannot be started (or another embedded cluster is already running)
+     */
+    public void start(int dataNodes, int workers, List<String> racks, boolean format) throws IOException {
+        synchronized (EmbeddedCluster.class) {
+            if (running != null) {
+                throw new IOException("Embedded Hadoop cluster is already running in this JVM");
+            }
+            running = this;
+        }
+        boolean started = false;
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("hadoop.log.dir", new File(workingDirectory, "logs").getPath());
+        // TaskTracker launches task JVMs with the classpath of the current one
+        properties.put("java.class.path", getClasspath());
+        clusterProperties = new ClusterProperties(System.getProperties(), properties);
+        System.setProperties(clusterProperties);
+        ClusterProperties.enterScope();
+        try {
+            Object configuration = runtime.newInstance("org.apache.hadoop.mapred.JobConf");
+            String dataDirectory = System.setProperty("test.build.data", new File(workingDirectory, "data").getPath());
+            try {
+                dfsCluster = runtime.newInstance("org.apache.hadoop.hdfs.MiniDFSCluster",
+                        getPort(hadoopSettings.getConf("fs.default.name")), configuration, dataNodes, format, true,
+                        null, assignRacks(racks, dataNodes));
+            } finally {
+                restoreSystemProperty("test.build.data", dataDirectory);
+            }
+            runtime.invoke(dfsCluster, "waitActive");
+            String nameNode = runtime.invoke(runtime.invoke(dfsCluster, "getFileSystem"), "getUri").toString();
+            // threads started by MiniMRCluster (and the ones they start) inherit the scope
+            mrCluster = runtime.newInstance("org.apache.hadoop.mapred.MiniMRCluster",
+                    getPort(hadoopSettings.getConf("mapred.job.tracker")), 0, workers, nameNode, 1,
+                    assignRacks(racks, workers), null, null, configuration);
+            jobConf = runtime.invoke(mrCluster, "createJobConf");
+            started = true;
+        } finally {
+            ClusterProperties.exitScope();
+            if (!started) {
+                try {
+                    shutdown();
+                } catch (IOException e) {
+                    // startup failure is the one to report
+                }
+            }
+        }
+    }
+
+    private static void restoreSystemProperty(String key, String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+    private String getClasspath() {
+        StringBuilder sb = new StringBuilder();
+        for (URL url : ((URLClassLoader) runtime.getClassLoader()).getURLs()) {
+            try {
+                sb.append(sb.length() == 0 ? "" : File.pathSeparator).append(new File(url.toURI()).getPath());
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param address [scheme://]host:port
+     * @return port, 0 (any free one) if address doesn't specify it
+     */
+    private int getPort(String address) {
+        if (address == null) {
+            return 0;
+        }
+        int port = URI.create(address.contains("://") ? address : "hdfs://" + address).getPort();
+        return port == -1 ? 0 : port;
+    }
+
+    /**
+     * @return rack of each node, null if there are no racks
+     */
+    private String[] assignRacks(List<String> racks, int numberOfNodes) {
+        if (racks.isEmpty()) {
+            return null;
+        }
+        String[] result = new String[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            result[i] = racks.get(i % racks.size());
+        }
+        return result;
+    }
+
+    /**
+     * @return value of the property as seen by the clients of the cluster (e.g. "fs.default.name"), null if
+     * cluster isn't running or property isn't set
+     */
+    public String getConf(String property) throws IOException {
+        return jobConf == null ? null : (String) runtime.invoke(jobConf, "get", property);
+    }
+
+    /**
+     * Stops MapReduce and then HDFS daemons (in case of failure, the rest of them are stopped anyway).
+     */
+    public void shutdown() throws IOException {
+        ClusterProperties.enterScope();
+        try {
+            if (mrCluster != null) {
+                runtime.invoke(mrCluster, "shutdown");
+            }
+        } finally {
+            try {
+                if (dfsCluster != null) {
+                    runtime.invoke(dfsCluster, "shutdown");
+                }
+            } finally {
+                ClusterProperties.exitScope();
+                mrCluster = null;
+                dfsCluster = null;
+                jobConf = null;
+                if (clusterProperties != null) {
+                    clusterProperties.uninstall();
+                    clusterProperties = null;
+                }
+                synchronized (EmbeddedCluster.class) {
+                    if (running == this) {
+                        running = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * System properties (a copy of the original ones, which is put back by {@link #uninstall()}) with overrides
+     * visible only to the threads of the cluster, i.e. the ones which have entered the scope and the threads they
+     * have started. System.setProperty/clearProperty calls are applied to the copy as usual.
+     */
+    private static final class ClusterProperties extends Properties {
+
+        private static final long serialVersionUID = 1L;
+        private static final InheritableThreadLocal<Boolean> SCOPE = new InheritableThreadLocal<Boolean>();
+
+        private final transient Properties originalProperties;
+        private final Map<String, String> overrides;
+
+        private ClusterProperties(Properties originalProperties, Map<String, String> overrides) {
+            this.originalProperties = originalProperties;
+            this.overrides = overrides;
+            putAll(originalProperties);
+        }
+
+        private static void enterScope() {
+            SCOPE.set(Boolean.TRUE);
+        }
+
+        private static void exitScope() {
+            SCOPE.remove();
+        }
+
+        @Override
+        public String getProperty(String key) {
+            String value = SCOPE.get() == null ? null : overrides.get(key);
+            return value == null ? super.getProperty(key) : value;
+        }
+
+        /**
+         * Puts original properties back (along with the changes made to the copy in the meantime).
+         */
+        private void uninstall() {
+            synchronized (originalProperties) {
+                originalProperties.clear();
+                originalProperties.putAll(this);
+            }
+            System.setProperties(originalProperties);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link HadoopFileSystem} backed by Hadoop FileSystem API running inside of Maven JVM (see {@link HadoopRuntime}).
+ * Unlike "bin/hadoop fs" it doesn't pay for JVM startup on each operation.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class EmbeddedHadoopFileSystem implements HadoopFileSystem {
+
+    private final HadoopRuntime runtime;
+    private final Object configuration;
+    private final Object fileSystem;
+    private final Object localFileSystem;
+
+    public EmbeddedHadoopFileSystem(HadoopRuntime runtime, String dfsURI) throws IOException {
+        this.runtime = runtime;
+        this.configuration = runtime.newInstance("org.apache.hadoop.conf.Configuration");
+        this.fileSystem = runtime.invokeStatic("org.apache.hadoop.fs.FileSystem", "get",
+                URI.create(dfsURI), configuration);
+        // raw file system is used in order to avoid .crc files (just like "fs -copyToLocal" does)
+        this.localFileSystem = runtime.invoke(runtime.invokeStatic("org.apache.hadoop.fs.FileSystem", "getLocal",
+                configuration), "getRawFileSystem");
+    }
+
+    @Override
+    public boolean isInProcess() {
+        return true;
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        runtime.invoke(fileSystem, "delete", path(path), true);
+    }
+
+    @Override
+    public void mkdirs(String path) throws IOException {
+        if (!Boolean.TRUE.equals(runtime.invoke(fileSystem, "mkdirs", path(path)))) {
+            throw new IOException("Unable to create " + path);
+        }
+    }
+
+    @Override
+    public boolean isDirectory(String path) throws IOException {
+        Object dfsPath = path(path);
+        return Boolean.TRUE.equals(runtime.invoke(fileSystem, "exists", dfsPath)) &&
+                isDirectory(runtime.invoke(fileSystem, "getFileStatus", dfsPath));
+    }
+
+    @Override
+    public List<HadoopFileStatus> list(String path) throws IOException {
+        List<HadoopFileStatus> result = new ArrayList<HadoopFileStatus>();
+        Object root = path(path);
+        if (Boolean.TRUE.equals(runtime.invoke(fileSystem, "exists", root))) {
+            Object rootStatus = runtime.invoke(fileSystem, "getFileStatus", root);
+            if (isDirectory(rootStatus)) {
+                String rootPath = getPath(rootStatus);
+                list(rootPath.endsWith("/") ? rootPath : rootPath + "/", root, result);
+            } else {
+                result.add(toFileStatus("", rootStatus));
+            }
+        }
+        return result;
+    }
+
+    private void list(String rootPath, Object directory, List<HadoopFileStatus> result) throws IOException {
+        Object[] statuses = (Object[]) runtime.invoke(fileSystem, "listStatus", directory);
+        if (statuses == null) {
+            return;
+        }
+        for (Object status : statuses) {
+            HadoopFileStatus fileStatus = toFileStatus(getPath(status).substring(rootPath.length()), status);
+            result.add(fileStatus);
+            if (fileStatus.isDirectory()) {
+                list(rootPath, runtime.invoke(status, "getPath"), result);
+            }
+        }
+    }
+
+    private HadoopFileStatus toFileStatus(String relativePath, Object status) throws IOException {
+        return new HadoopFileStatus(relativePath, isDirectory(status), (Long) runtime.invoke(status, "getLen"),
+                (Long) runtime.invoke(status, "getModificationTime"));
+    }
+
+    private boolean isDirectory(Object status) throws IOException {
+        return Boolean.TRUE.equals(runtime.invoke(status, "isDir"));
+    }
+
+    private String getPath(Object status) throws IOException {
+        return ((URI) runtime.invoke(runtime.invoke(status, "getPath"), "toUri")).getPath();
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        return (InputStream) runtime.invoke(fileSystem, "open", path(path));
+    }
+
+    @Override
+    public void copyFromLocal(File source, String target) throws IOException {
+        copy(localFileSystem, path(source.getCanonicalPath()), fileSystem, path(target));
+    }
+
+    @Override
+    public void copyToLocal(String source, File target) throws IOException {
+        copy(fileSystem, path(source), localFileSystem, path(target.getCanonicalPath()));
+    }
+
+    private void copy(Object sourceFileSystem, Object source, Object targetFileSystem, Object target)
+            throws IOException {
+        Object result = runtime.invokeStatic("org.apache.hadoop.fs.FileUtil", "copy",
+                sourceFileSystem, source, targetFileSystem, target, false, configuration);
+        if (!Boolean.TRUE.equals(result)) {
+            throw new IOException("Unable to copy " + source + " to " + target);
+        }
+    }
+
+    private Object path(String path) throws IOException {
+        return runtime.newInstance("org.apache.hadoop.fs.Path", path);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Job jar run inside of Maven JVM (the way "bin/hadoop jar" would run it). Job classes (along with the jars
+ * packaged into the job jar's "lib" directory) are loaded by a classloader whose parent is the one of
+ * {@link HadoopRuntime}.
+ * <p/>
+ * If main class implements org.apache.hadoop.util.Tool it's run through ToolRunner. Otherwise its main method is
+ * invoked with System.exit being trapped (so that job cannot terminate Maven). Jobs can be run concurrently (exit
+ * trap stays in place until the last of them completes).
+ * <p/>
+ * Messages job client logs upon submission (e.g. "Running job: job_201210101010_0001") can be observed, which is
+ * how ids of the submitted jobs are learned (log4j appender is attached to the client's loggers for the duration of
+ * the run, picking up only the messages logged by the thread running the job).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class EmbeddedJob {
+
+    private static final String[] SUBMISSION_LOGGERS = {"org.apache.hadoop.mapred.JobClient",
+            "org.apache.hadoop.mapreduce.Job", "org.apache.hadoop.mapreduce.JobSubmitter"};
+
+    private static int numberOfTrappingJobs;
+    private static SecurityManager originalSecurityManager;
+
+    private final HadoopRuntime runtime;
+    private final File jar;
+    private final File workingDirectory;
+
+    /**
+     * @param workingDirectory directory jars packaged into the job jar are extracted to
+     */
+    public EmbeddedJob(HadoopRuntime runtime, File jar, File workingDirectory) {
+        this.runtime = runtime;
+        this.jar = jar;
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * @param mainClassName class to run, null if the one specified by job jar (Main-Class) should be used
+     * @param arguments job arguments (first one is treated as a main class if neither mainClassName is given nor
+     * job jar specifies Main-Class)
+     * @param submissionListener listener of the messages job client logs (at INFO level) while submitting/monitoring
+     * the job, null if there is none
+     * @return exit code
+     */
+    public int run(String mainClassName, List<String> arguments, LineListener submissionListener)
+            throws IOException {
+        List<String> args = new ArrayList<String>(arguments);
+        List<URL> classpath = new ArrayList<URL>();
+        classpath.add(jar.toURI().toURL());
+        JarFile jarFile = new JarFile(jar);
+        try {
+            if (mainClassName == null) {
+                mainClassName = getMainClassName(jarFile);
+            }
+            classpath.addAll(extractLibraries(jarFile));
+        } finally {
+            jarFile.close();
+        }
+        if (mainClassName == null) {
+            if (args.isEmpty()) {
+                throw new IOException(jar + " doesn't specify Main-Class (and no class was given as an argument)");
+            }
+            mainClassName = args.remove(0);
+        }
+        URLClassLoader classLoader = new URLClassLoader(classpath.toArray(new URL[classpath.size()]),
+                runtime.getClassLoader());
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        Object appender = submissionListener == null ? null : attachAppender(submissionListener);
+        try {
+            Class<?> mainClass;
+            try {
+                mainClass = Class.forName(mainClassName.trim(), true, classLoader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to load " + mainClassName, e);
+            }
+            String[] argsArray = args.toArray(new String[args.size()]);
+            Class<?> toolClass = runtime.loadClass("org.apache.hadoop.util.Tool");
+            if (toolClass.isAssignableFrom(mainClass) && !Modifier.isAbstract(mainClass.getModifiers())) {
+                return runTool(mainClass, toolClass, classLoader, argsArray);
+            }
+            return runMain(mainClass, argsArray);
+        } finally {
+            if (appender != null) {
+                detachAppender(appender);
+            }
+            currentThread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * @return log4j appender passing messages logged by the current thread to the listener
+     */
+    private Object attachAppender(final LineListener listener) throws IOException {
+        final Thread thread = Thread.currentThread();
+        Object appender = Proxy.newProxyInstance(runtime.getClassLoader(),
+                new Class<?>[] {runtime.loadClass("org.apache.log4j.Appender")}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("doAppend".equals(name)) {
+                    if (Thread.currentThread() == thread) {
+                        Object message = runtime.invoke(args[0], "getRenderedMessage");
+                        if (message != null) {
+                            listener.onLine(message.toString());
+                        }
+                    }
+                    return null;
+                }
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                }
+                if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                }
+                if ("getName".equals(name) || "toString".equals(name)) {
+                    return "hmp-submission-" + thread.getName();
+                }
+                if ("requiresLayout".equals(name)) {
+                    return false;
+                }
+                return null;
+            }
+        });
+        for (String loggerName : SUBMISSION_LOGGERS) {
+            runtime.invoke(runtime.invokeStatic("org.apache.log4j.Logger", "getLogger", loggerName),
+                    "addAppender", appender);
+        }
+        return appender;
+    }
+
+    private void detachAppender(Object appender) throws IOException {
+        for (String loggerName : SUBMISSION_LOGGERS) {
+            runtime.invoke(runtime.invokeStatic("org.apache.log4j.Logger", "getLogger", loggerName),
+                    "removeAppender", appender);
+        }
+    }
+
+    /**
+     * @return Main-Class of the jar, null if manifest doesn't specify one
+     */
+    public static String getMainClassName(JarFile jarFile) throws IOException {
+        Manifest manifest = jarFile.getManifest();
+        return manifest == null ? null : manifest.getMainAttributes().getValue("Main-Class");
+    }
+
+    private int runTool(Class<?> mainClass, Class<?> toolClass, ClassLoader classLoader, String[] args)
+            throws IOException {
+        Class<?> configurationClass = runtime.loadClass("org.apache.hadoop.conf.Configuration");
+        try {
+            Object tool = mainClass.newInstance();
+            Object configuration = configurationClass.newInstance();
+            configurationClass.getMethod("setClassLoader", ClassLoader.class).invoke(configuration, classLoader);
+            Method method = runtime.loadClass("org.apache.hadoop.util.ToolRunner").getMethod("run",
+                    configurationClass, toolClass, String[].class);
+            return (Integer) method.invoke(null, configuration, tool, args);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (Exception e) {
+            throw new IOException("Unable to run " + mainClass.getName(), e);
+        }
+    }
+
+    private int runMain(Class<?> mainClass, String[] args) throws IOException {
+        Method method;
+        try {
+            method = mainClass.getMethod("main", String[].class);
+        } catch (NoSuchMethodException e) {
+            throw new IOException(mainClass.getName() + " has no main method");
+        }
+        try {
+            trapExit();
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Unable to trap System.exit (either run Maven with -Djava.security.manager=allow " +
+                    "or make " + mainClass.getName() + " implement org.apache.hadoop.util.Tool)");
+        }
+        try {
+            method.invoke(null, (Object) args);
+            return 0;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof ExitTrap.ExitException) {
+                return ((ExitTrap.ExitException) e.getCause()).getStatus();
+            }
+            throw unwrap(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to run " + mainClass.getName(), e);
+        } finally {
+            releaseExit();
+        }
+    }
+
+    private static synchronized void trapExit() {
+        if (numberOfTrappingJobs == 0) {
+            originalSecurityManager = System.getSecurityManager();
+            System.setSecurityManager(new ExitTrap(originalSecurityManager));
+        }
+        numberOfTrappingJobs++;
+    }
+
+    private static synchronized void releaseExit() {
+        if (--numberOfTrappingJobs == 0) {
+            System.setSecurityManager(originalSecurityManager);
+            originalSecurityManager = null;
+        }
+    }
+
+    /**
+     * Same as "bin/hadoop jar" does, jars packaged into job jar's "lib" directory are put on the classpath.
+     */
+    private List<URL> extractLibraries(JarFile jarFile) throws IOException {
+        List<URL> result = new ArrayList<URL>();
+        LocalFileSystem.delete(workingDirectory);
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.startsWith("lib/") || !name.endsWith(".jar")) {
+                continue;
+            }
+            File file = new File(workingDirectory, name);
+            File parentFile = file.getParentFile();
+            if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+                throw new IOException("Unable to create " + parentFile);
+            }
+            InputStream inputStream = jarFile.getInputStream(entry);
+            try {
+                OutputStream outputStream = new FileOutputStream(file);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+            result.add(file.toURI().toURL());
+        }
+        return result;
+    }
+
+    private IOException unwrap(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause.toString(), cause);
+    }
+
+    /**
+     * Turns System.exit into {@link ExitException} (everything else is delegated to the original security
+     * manager, if any).
+     */
+    private static final class ExitTrap extends SecurityManager {
+
+        private final SecurityManager delegate;
+
+        private ExitTrap(SecurityManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkExit(int status) {
+            throw new ExitException(status);
+        }
+
+        @Override
+        public void checkPermission(Permission permission) {
+            if (delegate != null) {
+                delegate.checkPermission(permission);
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+            if (delegate != null) {
+                delegate.checkPermission(permission, context);
+            }
+        }
+
+        private static final class ExitException extends SecurityException {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int status;
+
+            private ExitException(int status) {
+                super("System.exit(" + status + ") has been trapped");
+                this.status = status;
+            }
+
+            public int getStatus() {
+                return status;
+            }
+        }
+    }
+}
@@ -18,7 +18,9 @@ package com.github.shyiko.hmp;
 import org.apache.commons.exec.PumpStreamHandler;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
@@ -31,16 +33,87 @@ class ExecutionStreamHandler extends PumpStreamHandler {
      */
     private static final NullOutputStream NULL_OUTPUT_STREAM = new NullOutputStream();
 
+    private final boolean closeOutputWhenExhausted;
+
     public ExecutionStreamHandler(boolean suppressOutput) {
         this(suppressOutput, null);
     }
 
     public ExecutionStreamHandler(boolean suppressOutput, String input) {
+        this(suppressOutput, input, null);
+    }
+
+    /**
+     * @param lineListener listener to notify about each line of stdout/stderr (regardless of suppressOutput),
+     * null if not needed
+     */
+    public ExecutionStreamHandler(boolean suppressOutput, String input, LineListener lineListener) {
         super(
-                suppressOutput ? NULL_OUTPUT_STREAM : System.out,
-                suppressOutput ? NULL_OUTPUT_STREAM : System.err,
+                observe(suppressOutput ? NULL_OUTPUT_STREAM : System.out, lineListener),
+                observe(suppressOutput ? NULL_OUTPUT_STREAM : System.err, lineListener),
                 input == null ? null : new ByteArrayInputStream(input.getBytes())
         );
+        this.closeOutputWhenExhausted = false;
+    }
+
+    /**
+     * @param outputStream stream stdout should be copied to (regardless of suppressOutput), closed (by the thread
+     * which has been copying) once stdout is exhausted
+     * @param lineListener listener to notify about each line of stderr (regardless of suppressOutput),
+     * null if not needed
+     */
+    public ExecutionStreamHandler(OutputStream outputStream, boolean suppressOutput, LineListener lineListener) {
+        super(outputStream, observe(suppressOutput ? NULL_OUTPUT_STREAM : System.err, lineListener), null);
+        this.closeOutputWhenExhausted = true;
+    }
+
+    @Override
+    protected Thread createPump(InputStream is, OutputStream os) {
+        return createPump(is, os, closeOutputWhenExhausted && os == getOut());
+    }
+
+    private static OutputStream observe(OutputStream outputStream, LineListener lineListener) {
+        return lineListener == null ? outputStream : new LineObservingOutputStream(outputStream, lineListener);
+    }
+
+    private static class LineObservingOutputStream extends OutputStream {
+
+        private static final int MAXIMUM_LINE_LENGTH = 8192;
+
+        private final OutputStream outputStream;
+        private final LineListener lineListener;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private LineObservingOutputStream(OutputStream outputStream, LineListener lineListener) {
+            this.outputStream = outputStream;
+            this.lineListener = lineListener;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off, end = off + len; i < end; i++) {
+                observe(b[i]);
+            }
+            outputStream.write(b, off, len);
+        }
+
+        public void write(int b) throws IOException {
+            observe((byte) b);
+            outputStream.write(b);
+        }
+
+        private void observe(byte b) {
+            if (b == '\n') {
+                lineListener.onLine(line.toString());
+                line.reset();
+            } else
+            if (b != '\r' && line.size() < MAXIMUM_LINE_LENGTH) {
+                line.write(b);
+            }
+        }
+
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
     }
 
     private static class NullOutputStream extends OutputStream {
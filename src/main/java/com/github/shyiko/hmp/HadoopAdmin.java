@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Administrative operations on the running cluster (performed in-process, see {@link HadoopRuntime}).
+ * Clients are configured not to retry connections, so that operations fail fast if daemons are gone.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class HadoopAdmin {
+
+    private static final String[] SAFE_MODE_ACTION_CLASSES = {
+        "org.apache.hadoop.hdfs.protocol.FSConstants$SafeModeAction", // Hadoop 1.x
+        "org.apache.hadoop.hdfs.protocol.HdfsConstants$SafeModeAction"
+    };
+
+    private final HadoopRuntime runtime;
+    private final String dfsURI;
+    private final Object configuration;
+    private Object jobClient;
+
+    public HadoopAdmin(HadoopRuntime runtime, String dfsURI) throws IOException {
+        this.runtime = runtime;
+        this.dfsURI = dfsURI;
+        this.configuration = runtime.newInstance("org.apache.hadoop.mapred.JobConf");
+        runtime.invoke(configuration, "set", "ipc.client.connect.max.retries", "0");
+        runtime.invoke(configuration, "set", "fs.hdfs.impl.disable.cache", "true");
+    }
+
+    /**
+     * @return ids of the jobs which are either waiting to be run or running
+     */
+    public List<String> listRunningJobs() throws IOException {
+        List<String> result = new ArrayList<String>();
+        Object[] statuses = (Object[]) runtime.invoke(getJobClient(), "jobsToComplete");
+        if (statuses != null) {
+            for (Object status : statuses) {
+                result.add(runtime.invoke(status, "getJobID").toString());
+            }
+        }
+        return result;
+    }
+
+    public void killJob(String jobId) throws IOException {
+        Object id = runtime.invokeStatic("org.apache.hadoop.mapred.JobID", "forName", jobId);
+        Object job = runtime.invoke(getJobClient(), "getJob", id);
+        if (job != null) {
+            runtime.invoke(job, "killJob");
+        }
+    }
+
+    private Object getJobClient() throws IOException {
+        if (jobClient == null) {
+            jobClient = runtime.newInstance("org.apache.hadoop.mapred.JobClient", configuration);
+        }
+        return jobClient;
+    }
+
+    /**
+     * Puts NameNode into safe mode, so that namespace doesn't change anymore (which also makes job submissions
+     * fail, as their staging files cannot be written).
+     */
+    public void enterSafeMode() throws IOException {
+        Object fileSystem = getFileSystem();
+        try {
+            runtime.invoke(fileSystem, "setSafeMode", getSafeModeAction("SAFEMODE_ENTER"));
+        } finally {
+            runtime.invoke(fileSystem, "close");
+        }
+    }
+
+    /**
+     * Puts NameNode into safe mode (unless it's already there) and saves namespace image (which makes edit log
+     * empty).
+     */
+    public void saveNamespace() throws IOException {
+        Object fileSystem = getFileSystem();
+        try {
+            runtime.invoke(fileSystem, "setSafeMode", getSafeModeAction("SAFEMODE_ENTER"));
+            runtime.invoke(fileSystem, "saveNamespace");
+        } finally {
+            runtime.invoke(fileSystem, "close");
+        }
+    }
+
+    private Object getFileSystem() throws IOException {
+        return runtime.invokeStatic("org.apache.hadoop.fs.FileSystem", "get", URI.create(dfsURI), configuration);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getSafeModeAction(String name) throws IOException {
+        for (String className : SAFE_MODE_ACTION_CLASSES) {
+            Class<?> cls;
+            try {
+                cls = runtime.loadClass(className);
+            } catch (IOException e) {
+                continue;
+            }
+            return Enum.valueOf((Class<Enum>) cls, name);
+        }
+        throw new IOException("Unable to find SafeModeAction in hadoopHome");
+    }
+
+    public void close() throws IOException {
+        if (jobClient != null) {
+            runtime.invoke(jobClient, "close");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of Hadoop configuration.
+ * <p/>
+ * Resources are layered the same way Hadoop does it (later ones override earlier ones unless property has been
+ * marked as final) and variables are substituted once (when snapshot is taken), which makes lookups cheap and
+ * safe to perform from multiple threads.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class HadoopConfiguration {
+
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([^\\}\\$ ]+)\\}");
+
+    /**
+     * Same limit as in org.apache.hadoop.conf.Configuration (variables nested deeper are left as is).
+     */
+    private static final int MAXIMUM_SUBSTITUTION_DEPTH = 20;
+
+    /**
+     * Groups of names property is known by (in different versions of Hadoop). Setting any of them sets them all.
+     */
+    private static final String[][] ALIASES = {
+        {"fs.default.name", "fs.defaultFS"},
+        {"dfs.name.dir", "dfs.namenode.name.dir"},
+        {"dfs.name.edits.dir", "dfs.namenode.edits.dir"},
+        {"dfs.data.dir", "dfs.datanode.data.dir"},
+        {"dfs.http.address", "dfs.namenode.http-address"},
+        {"mapred.job.tracker", "mapreduce.jobtracker.address"},
+        {"mapred.job.tracker.http.address", "mapreduce.jobtracker.http.address"},
+        {"mapred.task.tracker.http.address", "mapreduce.tasktracker.http.address"},
+        {"mapred.local.dir", "mapreduce.cluster.local.dir"},
+        {"slave.host.name", "dfs.datanode.hostname"},
+        {"topology.script.file.name", "net.topology.script.file.name"}
+    };
+
+    private final Map<String, String> properties;
+
+    private HadoopConfiguration(Map<String, String> properties) {
+        this.properties = Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @param resources configuration files in the order of increasing precedence
+     */
+    public static HadoopConfiguration load(List<URL> resources) throws IOException {
+        Map<String, String> rawProperties = new HashMap<String, String>();
+        Set<String> finalProperties = new HashSet<String>();
+        for (URL resource : resources) {
+            for (Map.Entry<String, Boolean> entry : parse(resource, rawProperties, finalProperties).entrySet()) {
+                if (entry.getValue()) {
+                    finalProperties.add(entry.getKey());
+                }
+            }
+        }
+        Map<String, String> properties = new HashMap<String, String>();
+        for (String key : rawProperties.keySet()) {
+            properties.put(key, substitute(rawProperties.get(key), rawProperties, 0));
+        }
+        return new HadoopConfiguration(properties);
+    }
+
+    /**
+     * Applies properties defined by the resource (except for the final ones).
+     * @return properties defined by the resource mapped to their "final" flag
+     */
+    private static Map<String, Boolean> parse(URL resource, Map<String, String> properties,
+                                              Set<String> finalProperties) throws IOException {
+        Map<String, Boolean> result = new HashMap<String, Boolean>();
+        Element root;
+        InputStream inputStream = resource.openStream();
+        try {
+            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+            docBuilderFactory.setIgnoringComments(true);
+            docBuilderFactory.setNamespaceAware(true);
+            docBuilderFactory.setXIncludeAware(true);
+            DocumentBuilder builder = docBuilderFactory.newDocumentBuilder();
+            Document document = builder.parse(inputStream, resource.toString());
+            root = document.getDocumentElement();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to parse " + resource, e);
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse " + resource, e);
+        } finally {
+            inputStream.close();
+        }
+        NodeList propertyNodes = root.getElementsByTagName("property");
+        for (int i = 0, numberOfProperties = propertyNodes.getLength(); i < numberOfProperties; i++) {
+            Element property = (Element) propertyNodes.item(i);
+            String name = getChildText(property, "name");
+            String value = getChildText(property, "value");
+            if (name == null || value == null) {
+                continue;
+            }
+            for (String alias : getAliases(name)) {
+                if (!finalProperties.contains(alias)) {
+                    properties.put(alias, value);
+                    result.put(alias, "true".equals(getChildText(property, "final")));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getChildText(Element element, String childName) {
+        NodeList nodes = element.getElementsByTagName(childName);
+        if (nodes.getLength() == 0) {
+            return null;
+        }
+        Node node = nodes.item(0);
+        return node.getTextContent().trim();
+    }
+
+    /**
+     * @return all names property is known by (including the given one)
+     */
+    static String[] getAliases(String name) {
+        for (String[] aliases : ALIASES) {
+            for (String alias : aliases) {
+                if (alias.equals(name)) {
+                    return aliases;
+                }
+            }
+        }
+        return new String[] {name};
+    }
+
+    /**
+     * Replaces ${variable}s with the values of system properties or (if there is no such system property)
+     * configuration properties. Unresolvable variables are left intact.
+     */
+    private static String substitute(String value, Map<String, String> rawProperties, int depth) {
+        if (depth == MAXIMUM_SUBSTITUTION_DEPTH || !value.contains("${")) {
+            return value;
+        }
+        Matcher matcher = VARIABLE_PATTERN.matcher(value);
+        StringBuilder sb = null;
+        int offset = 0;
+        while (matcher.find()) {
+            String variable = matcher.group(1);
+            String replacement = System.getProperty(variable);
+            if (replacement == null) {
+                replacement = rawProperties.get(variable);
+                if (replacement == null) {
+                    continue;
+                }
+                replacement = substitute(replacement, rawProperties, depth + 1);
+            }
+            if (sb == null) {
+                sb = new StringBuilder(value.length() + replacement.length());
+            }
+            sb.append(value, offset, matcher.start()).append(replacement);
+            offset = matcher.end();
+        }
+        if (sb == null) {
+            return value;
+        }
+        return sb.append(value, offset, value.length()).toString();
+    }
+
+    /**
+     * @return value of the property (with variables substituted), null if property is not defined
+     */
+    public String get(String key) {
+        return properties.get(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = properties.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return SHA-1 of all the properties (after substitution), which changes whenever any of the layered
+     * resources (or system properties they refer to) does
+     */
+    public String getDigest() throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(properties).entrySet()) {
+            messageDigest.update(entry.getKey().getBytes("UTF-8"));
+            messageDigest.update((byte) 0);
+            messageDigest.update(entry.getValue().getBytes("UTF-8"));
+            messageDigest.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
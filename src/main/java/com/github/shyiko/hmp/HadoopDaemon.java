@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Description of a single Hadoop daemon (how to start it, what it depends on and how to detect its readiness).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class HadoopDaemon {
+
+    private final String name;
+    private final HadoopSettings hadoopSettings;
+    private final String command;
+    private final Collection<String> dependencies;
+    private final int startupTimeoutInMilliseconds;
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    /**
+     * @param hadoopSettings settings daemon is started with (daemons of the same cluster may have different
+     * configuration directories, e.g. when there is more than one DataNode)
+     */
+    public HadoopDaemon(String name, HadoopSettings hadoopSettings, String command, int startupTimeoutInMilliseconds,
+                        String... dependencies) {
+        this.name = name;
+        this.hadoopSettings = hadoopSettings;
+        this.command = command;
+        this.startupTimeoutInMilliseconds = startupTimeoutInMilliseconds;
+        this.dependencies = Arrays.asList(dependencies);
+    }
+
+    /**
+     * @param addressProperty configuration property holding [scheme://]host:port daemon is listening on
+     * @param defaultPort port to use in case addressProperty is not set
+     */
+    public HadoopDaemon addEndpoint(String addressProperty, int defaultPort) {
+        endpoints.add(new Endpoint(addressProperty, defaultPort));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public HadoopSettings getHadoopSettings() {
+        return hadoopSettings;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public Collection<String> getDependencies() {
+        return dependencies;
+    }
+
+    public int getStartupTimeoutInMilliseconds() {
+        return startupTimeoutInMilliseconds;
+    }
+
+    /**
+     * @return addresses which must accept connections before daemon is considered to be started
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public static class Endpoint {
+
+        private final String addressProperty;
+        private final int defaultPort;
+
+        private Endpoint(String addressProperty, int defaultPort) {
+            this.addressProperty = addressProperty;
+            this.defaultPort = defaultPort;
+        }
+
+        public String getAddressProperty() {
+            return addressProperty;
+        }
+
+        public int getDefaultPort() {
+            return defaultPort;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * DFS file/directory as seen by {@link HadoopFileSystem#list(String)}.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class HadoopFileStatus {
+
+    private final String path;
+    private final boolean directory;
+    private final long length;
+    private final long modificationTime;
+
+    public HadoopFileStatus(String path, boolean directory, long length, long modificationTime) {
+        this.path = path;
+        this.directory = directory;
+        this.length = length;
+        this.modificationTime = modificationTime;
+    }
+
+    /**
+     * @return file statuses keyed (and ordered) by relative path
+     */
+    public static Map<String, HadoopFileStatus> index(List<HadoopFileStatus> fileStatuses) {
+        Map<String, HadoopFileStatus> result = new TreeMap<String, HadoopFileStatus>();
+        for (HadoopFileStatus fileStatus : fileStatuses) {
+            result.put(fileStatus.getPath(), fileStatus);
+        }
+        return result;
+    }
+
+    /**
+     * @return path relative to the listed directory ("/"-separated, empty if listed path is a file)
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getModificationTime() {
+        return modificationTime;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Subset of DFS operations used by the goals.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+interface HadoopFileSystem {
+
+    /**
+     * @return true if operations are performed within Maven JVM (meaning they are cheap enough to be executed
+     * on a per-file basis), false otherwise
+     */
+    boolean isInProcess();
+
+    /**
+     * Recursively deletes DFS file/directory.
+     */
+    void delete(String path) throws IOException;
+
+    void mkdirs(String path) throws IOException;
+
+    boolean isDirectory(String path) throws IOException;
+
+    /**
+     * @return recursive listing of the DFS directory (empty if path doesn't exist)
+     */
+    List<HadoopFileStatus> list(String path) throws IOException;
+
+    /**
+     * @return stream of the DFS file content (caller is responsible for closing it)
+     */
+    InputStream open(String path) throws IOException;
+
+    void copyFromLocal(File source, String target) throws IOException;
+
+    void copyToLocal(String source, File target) throws IOException;
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+/**
+ * Hadoop classes (loaded from hadoopHome) running inside of Maven JVM. Classes are loaded by an isolated
+ * classloader (Maven/plugin classes are not visible to Hadoop and vice versa), so all interaction happens through
+ * reflection.
+ * <p/>
+ * Runtimes are cached per (hadoopHome, hadoopConf), which means that goals executed within the same Maven
+ * invocation share loaded classes (and everything Hadoop caches statically, e.g. FileSystem instances).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class HadoopRuntime {
+
+    private static final Map<String, HadoopRuntime> RUNTIMES = new HashMap<String, HadoopRuntime>();
+
+    private static final String[] LIBRARY_DIRECTORIES = {
+        "", "lib", "lib/jsp-2.1",
+        "share/hadoop/common", "share/hadoop/common/lib",
+        "share/hadoop/hdfs", "share/hadoop/hdfs/lib",
+        "share/hadoop/mapreduce", "share/hadoop/mapreduce/lib",
+        "share/hadoop/yarn", "share/hadoop/yarn/lib"
+    };
+
+    /**
+     * Directories which (if contain "webapps") have to be on the classpath in order for daemons' web UI to work.
+     */
+    private static final String[] WEBAPP_DIRECTORIES = {
+        "", "share/hadoop/hdfs", "share/hadoop/yarn"
+    };
+
+    private final URLClassLoader classLoader;
+
+    private HadoopRuntime(URL[] classpath) {
+        this.classLoader = new URLClassLoader(classpath, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    public static synchronized HadoopRuntime get(HadoopSettings hadoopSettings) throws IOException {
+        String key = hadoopSettings.getHomeDirectory().getCanonicalPath() + File.pathSeparator +
+                hadoopSettings.getConfDirectory().getCanonicalPath();
+        HadoopRuntime runtime = RUNTIMES.get(key);
+        if (runtime == null) {
+            List<URL> classpath = new ArrayList<URL>();
+            classpath.add(hadoopSettings.getConfDirectory().toURI().toURL());
+            classpath.addAll(listClasspath(hadoopSettings.getHomeDirectory()));
+            runtime = new HadoopRuntime(classpath.toArray(new URL[classpath.size()]));
+            runtime.loadClass("org.apache.hadoop.conf.Configuration"); // fail fast if hadoopHome is not usable
+            RUNTIMES.put(key, runtime);
+        }
+        return runtime;
+    }
+
+    /**
+     * @return jars (and webapp directories) which make up Hadoop classpath
+     */
+    public static List<URL> listClasspath(File homeDirectory) throws IOException {
+        List<URL> result = new ArrayList<URL>();
+        for (String directory : LIBRARY_DIRECTORIES) {
+            File[] jars = new File(homeDirectory, directory).listFiles(new FileFilter() {
+
+                @Override
+                public boolean accept(File file) {
+                    String name = file.getName();
+                    return file.isFile() && name.endsWith(".jar") && !name.endsWith("-sources.jar");
+                }
+            });
+            if (jars != null) {
+                Arrays.sort(jars);
+                for (File jar : jars) {
+                    result.add(jar.toURI().toURL());
+                }
+            }
+        }
+        for (String directory : WEBAPP_DIRECTORIES) {
+            File webappDirectory = new File(homeDirectory, directory);
+            if (new File(webappDirectory, "webapps").isDirectory()) {
+                result.add(webappDirectory.toURI().toURL());
+            }
+        }
+        return result;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public Class<?> loadClass(String className) throws IOException {
+        try {
+            return Class.forName(className, true, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to load " + className, e);
+        } catch (LinkageError e) {
+            throw new IOException("Unable to load " + className, e);
+        }
+    }
+
+    public Object newInstance(String className, Object... args) throws IOException {
+        Class<?> cls = loadClass(className);
+        for (Constructor<?> constructor : cls.getConstructors()) {
+            if (isApplicable(constructor.getParameterTypes(), args)) {
+                ClassLoader contextClassLoader = enter();
+                try {
+                    return constructor.newInstance(args);
+                } catch (InvocationTargetException e) {
+                    throw unwrap(e);
+                } catch (Exception e) {
+                    throw new IOException("Unable to instantiate " + className, e);
+                } finally {
+                    leave(contextClassLoader);
+                }
+            }
+        }
+        throw new IOException("No " + className + " constructor applicable to " + Arrays.toString(args));
+    }
+
+    public Object invoke(Object target, String methodName, Object... args) throws IOException {
+        return invokeMethod(target.getClass(), target, methodName, args);
+    }
+
+    public Object invokeStatic(String className, String methodName, Object... args) throws IOException {
+        return invokeMethod(loadClass(className), null, methodName, args);
+    }
+
+    private Object invokeMethod(Class<?> cls, Object target, String methodName, Object... args) throws IOException {
+        for (Method method : cls.getMethods()) {
+            if (method.getName().equals(methodName) && (target != null || Modifier.isStatic(method.getModifiers())) &&
+                    isApplicable(method.getParameterTypes(), args)) {
+                if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                    method.setAccessible(true);
+                }
+                ClassLoader contextClassLoader = enter();
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw unwrap(e);
+                } catch (Exception e) {
+                    throw new IOException("Unable to invoke " + cls.getName() + "." + methodName, e);
+                } finally {
+                    leave(contextClassLoader);
+                }
+            }
+        }
+        throw new IOException("No " + cls.getName() + "." + methodName + " applicable to " + Arrays.toString(args));
+    }
+
+    private boolean isApplicable(Class<?>[] parameterTypes, Object[] args) {
+        if (parameterTypes.length != args.length) {
+            return false;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Class<?> parameterType = parameterTypes[i];
+            if (args[i] == null) {
+                if (parameterType.isPrimitive()) {
+                    return false;
+                }
+                continue;
+            }
+            if (parameterType.isPrimitive()) {
+                parameterType = boxed(parameterType);
+            }
+            if (!parameterType.isInstance(args[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> boxed(Class<?> primitiveType) {
+        if (primitiveType == boolean.class) {
+            return Boolean.class;
+        }
+        if (primitiveType == int.class) {
+            return Integer.class;
+        }
+        if (primitiveType == long.class) {
+            return Long.class;
+        }
+        if (primitiveType == short.class) {
+            return Short.class;
+        }
+        if (primitiveType == byte.class) {
+            return Byte.class;
+        }
+        if (primitiveType == char.class) {
+            return Character.class;
+        }
+        if (primitiveType == float.class) {
+            return Float.class;
+        }
+        return Double.class;
+    }
+
+    /**
+     * Makes Hadoop classloader a context classloader of the current thread (Hadoop's Configuration relies on it).
+     * @return previous context classloader
+     */
+    public ClassLoader enter() {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        return contextClassLoader;
+    }
+
+    public void leave(ClassLoader contextClassLoader) {
+        Thread.currentThread().setContextClassLoader(contextClassLoader);
+    }
+
+    private IOException unwrap(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause.toString(), cause);
+    }
+}
@@ -15,18 +15,16 @@
  */
 package com.github.shyiko.hmp;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,12 +36,20 @@ import java.util.zip.ZipFile;
  */
 class HadoopSettings {
 
-    private static Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{[^\\}\\$\u0020]+\\}");
+    private static final String[] CONFIGURATION_PREFIXES = {"core", "hdfs", "mapred", "yarn"};
+    private static Pattern CORE_JAR_PATTERN =
+            Pattern.compile("hadoop-(?:core|common)-(\\d[\\w.]*?)\\.jar|hadoop-(\\d[\\w.]*?)-core\\.jar");
+
+    /**
+     * Resource URL -> extracted directory (so that goals of the same build don't even have to check the content).
+     */
+    private static final Map<String, File> EXTRACTED_RESOURCE_DIRECTORIES = new HashMap<String, File>();
 
     private final Map<String, String> environment;
     private final File homeDirectory;
     private final File confDirectory;
-    private Map<String, String> configurations;
+    private HadoopConfiguration configuration;
+    private JvmProfile jvmProfile;
 
     public HadoopSettings(File homeDirectory, File confDirectory) throws IOException {
         if (homeDirectory == null) {
@@ -54,9 +60,7 @@ class HadoopSettings {
         }
         this.homeDirectory = homeDirectory;
         if (confDirectory == null) {
-            confDirectory = new File(System.getProperty("java.io.tmpdir"), "hmp.conf");
-            confDirectory.mkdir();
-            extractResourceDirectory("/pseudo-distributed-mode", confDirectory);
+            confDirectory = extractResourceDirectory("/pseudo-distributed-mode", "hmp.conf");
         }
         this.confDirectory = confDirectory;
         this.environment = initEnvironment(homeDirectory, confDirectory);
@@ -64,96 +68,237 @@ class HadoopSettings {
 
     private Map<String, String> initEnvironment(File homeDirectory, File confDirectory) throws IOException {
         Map<String, String> environment = new HashMap<String, String>();
-        environment.put("JAVA_HOME", System.getProperty("java.home"));
+        environment.put("JAVA_HOME", getJavaHome());
         environment.put("HADOOP_HOME", homeDirectory.getCanonicalPath());
         environment.put("HADOOP_CONF_DIR", confDirectory.getCanonicalPath());
         return environment;
     }
 
+    /**
+     * @return home of the JVM Maven runs on (JDK's one, if java.home points to its "jre" subdirectory, as it does
+     * on JDK 8 and older, so that $JAVA_HOME/lib/tools.jar Hadoop scripts put on the classpath is there)
+     */
+    private static String getJavaHome() {
+        File javaHome = new File(System.getProperty("java.home"));
+        File parentFile = javaHome.getParentFile();
+        if ("jre".equals(javaHome.getName()) && parentFile != null && new File(parentFile, "bin/java").isFile()) {
+            return parentFile.getPath();
+        }
+        return javaHome.getPath();
+    }
+
     public Map<String, String> getEnvironment() {
         return environment;
     }
 
-    private void extractResourceDirectory(String path, File targetDirectory) throws IOException {
-        URL resource = getClass().getResource(path);
-        String protocol = resource.getProtocol();
-        if (protocol.equals("file")) {
-            extractResourceDirectoryUsingFileProtocol(resource, targetDirectory);
-        } else
-       if (protocol.equals("jar")) {
-           extractResourceDirectoryUsingJarProtocol(path, targetDirectory, resource);
-       } else {
-           throw new UnsupportedOperationException("Protocol " + protocol);
-       }
+    /**
+     * @return environment of the process about to be launched ({@link #getEnvironment()} along with JVM options of
+     * the profile, which may differ from one launch to another)
+     */
+    public Map<String, String> getLaunchEnvironment() throws IOException {
+        Map<String, String> result = new HashMap<String, String>(environment);
+        if (jvmProfile != null) {
+            jvmProfile.applyTo(this, result);
+        }
+        return result;
+    }
+
+    /**
+     * Makes processes launched with these settings (and the ones derived from them later on, see
+     * {@link #withConfDirectory(java.io.File)}) run with JVM options of the profile.
+     */
+    public void setJvmProfile(JvmProfile jvmProfile) {
+        this.jvmProfile = jvmProfile;
     }
 
-    private void extractResourceDirectoryUsingFileProtocol(URL resource, File targetDirectory) throws IOException {
-        URI uri;
-        try {
-            uri = resource.toURI();
-        } catch (URISyntaxException e) {
-            throw new IOException(e);
+    /**
+     * Extracts resource directory into java.io.tmpdir/&lt;prefix&gt;-&lt;hash of the content&gt; (unless it's already
+     * there). Directory is prepared aside and then atomically moved in place, which makes it safe to share between
+     * goals and concurrent builds.
+     */
+    private static synchronized File extractResourceDirectory(String path, String prefix) throws IOException {
+        URL resource = HadoopSettings.class.getResource(path);
+        if (resource == null) {
+            throw new IOException("Resource " + path + " not found");
         }
-        File sourceDirectory = new File(uri);
-        File[] sourceFiles = sourceDirectory.listFiles();
-        if (sourceFiles != null) {
-            for (File sourceFile : sourceFiles) {
-                if (!sourceFile.isFile()) {
+        File result = EXTRACTED_RESOURCE_DIRECTORIES.get(resource.toString());
+        if (result == null) {
+            String protocol = resource.getProtocol();
+            if (protocol.equals("file")) {
+                result = extractResourceDirectoryUsingFileProtocol(resource, prefix);
+            } else
+            if (protocol.equals("jar")) {
+                result = extractResourceDirectoryUsingJarProtocol(path, resource, prefix);
+            } else {
+                throw new UnsupportedOperationException("Protocol " + protocol);
+            }
+            EXTRACTED_RESOURCE_DIRECTORIES.put(resource.toString(), result);
+        }
+        return result;
+    }
+
+    private static File extractResourceDirectoryUsingFileProtocol(URL resource, String prefix) throws IOException {
+        File sourceDirectory = new File(toURI(resource.toString()));
+        File[] sourceFiles = sourceDirectory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isFile();
+            }
+        });
+        if (sourceFiles == null) {
+            throw new IOException("Unable to list " + sourceDirectory);
+        }
+        Arrays.sort(sourceFiles);
+        MessageDigest messageDigest = newMessageDigest();
+        List<String> fileNames = new ArrayList<String>();
+        for (File sourceFile : sourceFiles) {
+            fileNames.add(sourceFile.getName());
+            messageDigest.update(sourceFile.getName().getBytes("UTF-8"));
+            messageDigest.update(Files.readAllBytes(sourceFile.toPath()));
+        }
+        File targetDirectory = new File(System.getProperty("java.io.tmpdir"), prefix + "-" +
+                toHex(messageDigest.digest()));
+        if (!isExtracted(targetDirectory, fileNames)) {
+            File temporaryDirectory = createTemporaryDirectory(targetDirectory);
+            try {
+                for (File sourceFile : sourceFiles) {
+                    Files.copy(sourceFile.toPath(), new File(temporaryDirectory, sourceFile.getName()).toPath());
+                }
+                moveInPlace(temporaryDirectory, targetDirectory);
+            } finally {
+                LocalFileSystem.delete(temporaryDirectory);
+            }
+        }
+        return targetDirectory;
+    }
+
+    /**
+     * Content hash is based on CRC-32s from the jar's central directory, so nothing gets decompressed unless
+     * directory needs to be extracted.
+     */
+    private static File extractResourceDirectoryUsingJarProtocol(String path, URL resource, String prefix)
+            throws IOException {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        String jarPath = resource.getPath().substring(0, resource.getPath().indexOf("!"));
+        ZipFile zipFile = new ZipFile(new File(toURI(jarPath)));
+        try {
+            Map<String, ZipEntry> zipEntries = new TreeMap<String, ZipEntry>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                String zipEntryName = zipEntry.getName();
+                if (!zipEntryName.startsWith(path + "/") || zipEntry.isDirectory()) {
                     continue;
                 }
-                File targetFile = new File(targetDirectory, sourceFile.getName());
-                InputStream inputStream = new BufferedInputStream(new FileInputStream(sourceFile));
+                String fileName = zipEntryName.substring(path.length() + 1);
+                if (!fileName.contains("/")) {
+                    zipEntries.put(fileName, zipEntry);
+                }
+            }
+            MessageDigest messageDigest = newMessageDigest();
+            for (Map.Entry<String, ZipEntry> entry : zipEntries.entrySet()) {
+                messageDigest.update(entry.getKey().getBytes("UTF-8"));
+                messageDigest.update((entry.getValue().getSize() + ":" + entry.getValue().getCrc()).getBytes("UTF-8"));
+            }
+            File targetDirectory = new File(System.getProperty("java.io.tmpdir"), prefix + "-" +
+                    toHex(messageDigest.digest()));
+            if (!isExtracted(targetDirectory, zipEntries.keySet())) {
+                File temporaryDirectory = createTemporaryDirectory(targetDirectory);
                 try {
-                    copyStreamToFile(inputStream, targetFile);
+                    for (Map.Entry<String, ZipEntry> entry : zipEntries.entrySet()) {
+                        InputStream inputStream = zipFile.getInputStream(entry.getValue());
+                        try {
+                            Files.copy(inputStream, new File(temporaryDirectory, entry.getKey()).toPath());
+                        } finally {
+                            inputStream.close();
+                        }
+                    }
+                    moveInPlace(temporaryDirectory, targetDirectory);
                 } finally {
-                    inputStream.close();
+                    LocalFileSystem.delete(temporaryDirectory);
                 }
             }
+            return targetDirectory;
+        } finally {
+            zipFile.close();
         }
     }
 
-    private void extractResourceDirectoryUsingJarProtocol(String path, File targetDirectory, URL resource) throws IOException {
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+    /**
+     * @return true if directory contains all of the files (it might not if tmp cleaner has been at work)
+     */
+    private static boolean isExtracted(File directory, Collection<String> fileNames) throws IOException {
+        if (!directory.isDirectory()) {
+            return false;
         }
-        String jarPath = resource.getPath().substring(5, resource.getPath().indexOf("!"));
-        ZipFile zipFile = new ZipFile(jarPath);
-        Enumeration zipFileEntries = zipFile.entries();
-        while (zipFileEntries.hasMoreElements()) {
-            ZipEntry zipEntry = (ZipEntry) zipFileEntries.nextElement();
-            String zipEntryName = zipEntry.getName();
-            if (!zipEntry.getName().startsWith(path) || zipEntry.isDirectory()) {
-                continue;
+        for (String fileName : fileNames) {
+            if (!new File(directory, fileName).isFile()) {
+                LocalFileSystem.delete(directory);
+                return false;
             }
-            String fileName = zipEntryName.substring(path.length() + 1);
-            if (fileName.contains("/")) {
-                continue;
-            }
-            File targetFile = new File(targetDirectory, fileName);
-            InputStream inputStream = new BufferedInputStream(zipFile.getInputStream(zipEntry));
-            try {
-                copyStreamToFile(inputStream, targetFile);
-            } finally {
-                inputStream.close();
+        }
+        return true;
+    }
+
+    private static File createTemporaryDirectory(File targetDirectory) throws IOException {
+        File result = new File(targetDirectory.getParentFile(), targetDirectory.getName() + "." + UUID.randomUUID());
+        if (!result.mkdirs()) {
+            throw new IOException("Unable to create " + result);
+        }
+        return result;
+    }
+
+    private static void moveInPlace(File sourceDirectory, File targetDirectory) throws IOException {
+        try {
+            Files.move(sourceDirectory.toPath(), targetDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // extracted by another build
+        } catch (IOException e) {
+            if (!targetDirectory.isDirectory()) {
+                throw e;
             }
         }
     }
 
-    private void copyStreamToFile(InputStream inputStream, File targetFile) throws IOException {
-        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(targetFile));
+    private static URI toURI(String uri) throws IOException {
         try {
-            copyStream(inputStream, outputStream);
-        } finally {
-            outputStream.close();
+            return new URI(uri);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
         }
     }
 
-    private void copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
-        byte[] buffer = new byte[4096];
-        int size;
-        while ((size = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, size);
+    private static MessageDigest newMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
         }
+        return sb.toString();
+    }
+
+    /**
+     * @return settings sharing hadoopHome, environment (except for HADOOP_CONF_DIR) and JVM profile with this ones
+     */
+    public HadoopSettings withConfDirectory(File confDirectory) throws IOException {
+        HadoopSettings result = new HadoopSettings(homeDirectory, confDirectory);
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            if (!"HADOOP_CONF_DIR".equals(entry.getKey())) {
+                result.environment.put(entry.getKey(), entry.getValue());
+            }
+        }
+        result.jvmProfile = jvmProfile;
+        return result;
     }
 
     public File getHomeDirectory() {
@@ -164,6 +309,24 @@ class HadoopSettings {
         return confDirectory;
     }
 
+    /**
+     * @return version of Hadoop (as determined by the name of core/common jar), null if unknown
+     */
+    public String getVersion() {
+        for (String directory : new String[] {"", "share/hadoop/common"}) {
+            String[] fileNames = new File(homeDirectory, directory).list();
+            if (fileNames != null) {
+                for (String fileName : fileNames) {
+                    Matcher matcher = CORE_JAR_PATTERN.matcher(fileName);
+                    if (matcher.matches()) {
+                        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     public String getDFSURI() {
         String fsURI = getConf("fs.default.name", "hdfs://localhost:9000");
         return fsURI.endsWith("/") ? fsURI.substring(0, fsURI.length() - 1) : fsURI;
@@ -177,12 +340,15 @@ class HadoopSettings {
         return resolveFile("bin/hdfs", "bin/hadoop");
     }
 
-    public String getConf(String key, String defaultValue) {
-        String value = getConf(key);
-        if (value == null) {
-            value = defaultValue;
-        }
-        return value;
+    /**
+     * @return true if hadoopHome contains YARN-based (2.x+) distribution, false if MRv1 one
+     */
+    public boolean isYarn() {
+        return new File(homeDirectory, "bin/yarn").exists();
+    }
+
+    public String getYarnScript() {
+        return "bin/yarn";
     }
 
     private String resolveFile(String executable, String fallback) {
@@ -190,77 +356,52 @@ class HadoopSettings {
     }
 
     public String getConf(String key) {
-        if (configurations == null) {
-            configurations = new HashMap<String, String>();
-            File siteXML = new File(confDirectory, "hdfs-site.xml");
-            if (siteXML.exists()) {
-                try {
-                    addXMLConformingHadoopConfigurationXSL(siteXML);
-                } catch (IOException e) {
-                    throw new RuntimeException("Unable to parse " + siteXML, e);
-                }
-            }
-        }
-        return substitute(configurations.get(key));
+        return getConfiguration().get(key);
     }
 
-    private void addXMLConformingHadoopConfigurationXSL(File file) throws IOException {
-        try {
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            docBuilderFactory.setIgnoringComments(true);
-            docBuilderFactory.setNamespaceAware(true);
-            docBuilderFactory.setXIncludeAware(true);
-            DocumentBuilder builder = docBuilderFactory.newDocumentBuilder();
-            Document document = builder.parse(file);
-            Element root = document.getDocumentElement();
-            NodeList properties = root.getElementsByTagName("property");
-            int numberOfProperties = properties.getLength();
-            for (int i = 0; i < numberOfProperties; i++) {
-                Element property = (Element) properties.item(i);
-                NodeList names = property.getElementsByTagName("name");
-                NodeList values = property.getElementsByTagName("value");
-                if (names.getLength() > 0 && values.getLength() > 0) {
-                    configurations.put(
-                            names.item(0).getTextContent().trim(),
-                            values.item(0).getTextContent().trim()
-                    );
-                }
-            }
-        } catch (ParserConfigurationException e) {
-            throw new IOException();
-        } catch (SAXException e) {
-            throw new IOException();
-        }
+    public String getConf(String key, String defaultValue) {
+        return getConfiguration().get(key, defaultValue);
     }
 
-    private String substitute(String expr) {
-        if (expr == null) {
-            return null;
-        }
-        Set<String> propertiesMet = new HashSet<String>();
-        String result = expr;
-        Matcher match = VARIABLE_PATTERN.matcher(result);
-        while (match.find()) {
-            String property = match.group();
-            property = property.substring(2, property.length() - 1); // remove ${ .. }
-            if (!propertiesMet.add(property)) {
-                throw new IllegalArgumentException(expr + " contains cycle or uses same property substitution multiple times");
-            }
-            String value = resolve(property);
-            if (value == null) {
-                value = "";
+    /**
+     * @return configuration made of *-default.xml (taken from Hadoop jars) and *-site.xml (from conf directory)
+     * files. Loaded on first access
+     */
+    public synchronized HadoopConfiguration getConfiguration() {
+        if (configuration == null) {
+            try {
+                configuration = loadConfiguration();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load Hadoop configuration: " + e.getMessage(), e);
             }
-            result = result.substring(0, match.start()) + value + result.substring(match.end()); // substitute
-            match.reset(result);
         }
-        return result;
+        return configuration;
     }
 
-    private String resolve(String key) {
-        String value = System.getProperty(key);
-        if (value == null) {
-            value = configurations.get(key);
+    private HadoopConfiguration loadConfiguration() throws IOException {
+        List<URL> hadoopJars = new ArrayList<URL>();
+        for (URL url : HadoopRuntime.listClasspath(homeDirectory)) {
+            String path = url.getPath();
+            if (path.endsWith(".jar") && path.substring(path.lastIndexOf('/') + 1).startsWith("hadoop-")) {
+                hadoopJars.add(url);
+            }
+        }
+        List<URL> resources = new ArrayList<URL>();
+        URLClassLoader classLoader = new URLClassLoader(hadoopJars.toArray(new URL[hadoopJars.size()]), null);
+        try {
+            for (String prefix : CONFIGURATION_PREFIXES) {
+                URL defaultResource = classLoader.getResource(prefix + "-default.xml");
+                if (defaultResource != null) {
+                    resources.add(defaultResource);
+                }
+                File siteResource = new File(confDirectory, prefix + "-site.xml");
+                if (siteResource.exists()) {
+                    resources.add(siteResource.toURI().toURL());
+                }
+            }
+            return HadoopConfiguration.load(resources);
+        } finally {
+            classLoader.close();
         }
-        return value;
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage of the cluster (hadoop.tmp.dir along with NameNode, DataNode and MapReduce local directories within it)
+ * kept on the memory-backed file system (e.g. /dev/shm), so that NameNode edits and shuffle spills never hit the
+ * disk. Durability settings which make no sense for such storage are relaxed.
+ * <p/>
+ * Storage directory is marked, so that {@link #release(HadoopSettings)} never deletes anything it hasn't created.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class InMemoryStorage {
+
+    private static final String MARKER_FILE_NAME = ".hmp-in-memory-storage";
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final File mountDirectory;
+    private final File directory;
+
+    /**
+     * @param mountDirectory directory of the memory-backed file system
+     * @param buildDirectory build directory storage belongs to (each build gets a storage of its own)
+     */
+    public InMemoryStorage(File mountDirectory, File buildDirectory) throws IOException {
+        this.mountDirectory = mountDirectory;
+        this.directory = new File(mountDirectory, "hmp-" + System.getProperty("user.name") + "-" +
+                Integer.toHexString(buildDirectory.getCanonicalPath().hashCode()));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return type of the file system mountDirectory belongs to (e.g. "tmpfs"), null if unknown
+     */
+    public String getFileSystemType() {
+        try {
+            return Files.getFileStore(mountDirectory.toPath()).type();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates (marked) storage directory.
+     * @param clear true if storage left by the previous run should be removed
+     */
+    public void init(boolean clear) throws IOException {
+        if (!mountDirectory.isDirectory()) {
+            throw new IOException(mountDirectory + " doesn't exist");
+        }
+        if (clear) {
+            LocalFileSystem.delete(directory);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File marker = new File(directory, MARKER_FILE_NAME);
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException("Unable to create " + marker);
+        }
+    }
+
+    /**
+     * @param maximumSize number of bytes DataNode is allowed to occupy, also amount of space (starting from the
+     * space which is free at the moment) TaskTracker/NodeManager stops accepting tasks/containers after
+     * @return properties moving storage into {@link #getDirectory()} and relaxing durability
+     */
+    public Map<String, String> getOverrides(long maximumSize) {
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        overrides.put("hadoop.tmp.dir", directory.getPath());
+        overrides.put("dfs.name.dir", "${hadoop.tmp.dir}/dfs/name");
+        overrides.put("dfs.name.edits.dir", "${hadoop.tmp.dir}/dfs/name");
+        overrides.put("dfs.data.dir", "${hadoop.tmp.dir}/dfs/data");
+        overrides.put("mapred.local.dir", "${hadoop.tmp.dir}/mapred/local");
+        overrides.put("yarn.nodemanager.local-dirs", "${hadoop.tmp.dir}/yarn/local");
+        long totalSpace = mountDirectory.getTotalSpace();
+        long usableSpace = mountDirectory.getUsableSpace();
+        // DataNode's capacity is the size of the volume minus reserved space
+        overrides.put("dfs.datanode.du.reserved", String.valueOf(Math.max(totalSpace - maximumSize, 0)));
+        overrides.put("mapred.local.dir.minspacestart", String.valueOf(Math.max(usableSpace - maximumSize, 0)));
+        overrides.put("yarn.nodemanager.disk-health-checker.min-free-space-per-disk-mb",
+                String.valueOf(Math.max(usableSpace - maximumSize, 0) / MEGABYTE));
+        overrides.putAll(getRelaxedDurabilityOverrides());
+        return overrides;
+    }
+
+    /**
+     * @return properties turning off syncing of the edit log/blocks and recovery of the jobs (storage doesn't
+     * survive reboot anyway)
+     */
+    public static Map<String, String> getRelaxedDurabilityOverrides() {
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        overrides.put("dfs.namenode.edits.noeditlogchannelflush", "true");
+        overrides.put("dfs.datanode.synconclose", "false");
+        overrides.put("dfs.datanode.sync.behind.writes", "false");
+        overrides.put("dfs.safemode.extension", "0");
+        overrides.put("dfs.namenode.safemode.extension", "0");
+        overrides.put("mapred.jobtracker.restart.recover", "false");
+        overrides.put("mapreduce.job.restart.recover", "false");
+        return overrides;
+    }
+
+    /**
+     * Removes storage of the cluster if it's the one created by {@link #init(boolean)}.
+     * @return true if storage has been removed, false if cluster doesn't use in-memory storage
+     */
+    public static boolean release(HadoopSettings hadoopSettings) throws IOException {
+        String temporaryDirectory = hadoopSettings.getConf("hadoop.tmp.dir");
+        if (temporaryDirectory == null || !new File(temporaryDirectory, MARKER_FILE_NAME).exists()) {
+            return false;
+        }
+        LocalFileSystem.delete(new File(temporaryDirectory));
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timings (System.nanoTime based) and counters of the goals executed within the build. Goals of the same module
+ * share an instance (see {@link #get(File, Date)}), so that report covers the whole build rather than the last goal.
+ * <p/>
+ * Phases are accumulated per goal execution (number of times phase has been entered, total and maximum time).
+ * Phases may nest (e.g. "fs.mkdirs" includes "command.hadoop.fs.mkdir") and may overlap (parallel transfers).
+ * Phase which hasn't completed by the time goal has (e.g. daemon process) is not recorded.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class Instrumentation {
+
+    public static final String COMMANDS_FORKED = "commandsForked";
+    public static final String BYTES_COPIED = "bytesCopied";
+    public static final String READINESS_RETRIES = "readinessRetries";
+
+    private static final Map<String, Instrumentation> INSTANCES = new HashMap<String, Instrumentation>();
+    private static Date instancesBuildStartTime;
+
+    private final long startTime = System.currentTimeMillis();
+    private final List<Goal> goals = new ArrayList<Goal>();
+
+    /**
+     * @param buildStartTime start time of the build (Maven session), so that instances of the previous builds (e.g.
+     * the ones run by the same JVM one after another) are discarded instead of being accumulated
+     * @return instrumentation of the module build directory belongs to
+     */
+    public static synchronized Instrumentation get(File buildDirectory, Date buildStartTime) {
+        if (buildStartTime != null && !buildStartTime.equals(instancesBuildStartTime)) {
+            INSTANCES.clear();
+            instancesBuildStartTime = buildStartTime;
+        }
+        String key = buildDirectory.getAbsolutePath();
+        Instrumentation instrumentation = INSTANCES.get(key);
+        if (instrumentation == null) {
+            INSTANCES.put(key, instrumentation = new Instrumentation());
+        }
+        return instrumentation;
+    }
+
+    public synchronized void startGoal(String name) {
+        goals.add(new Goal(name));
+    }
+
+    public synchronized void completeGoal(boolean succeeded) {
+        Goal goal = getRunningGoal(Long.MIN_VALUE);
+        if (goal != null) {
+            goal.endTime = System.nanoTime();
+            goal.succeeded = succeeded;
+        }
+    }
+
+    /**
+     * @param startTime System.nanoTime() at the moment phase has been entered
+     */
+    public void recordSince(String phase, long startTime) {
+        long endTime = System.nanoTime();
+        synchronized (this) {
+            Goal goal = getRunningGoal(startTime);
+            if (goal != null) {
+                goal.getPhase(phase).add(endTime - startTime);
+            }
+        }
+    }
+
+    public synchronized void record(String phase, long timeInNanoseconds) {
+        Goal goal = getRunningGoal(Long.MIN_VALUE);
+        if (goal != null) {
+            goal.getPhase(phase).add(timeInNanoseconds);
+        }
+    }
+
+    public synchronized void increment(String counter, long delta) {
+        Goal goal = getRunningGoal(Long.MIN_VALUE);
+        if (goal != null) {
+            Long value = goal.counters.get(counter);
+            goal.counters.put(counter, (value == null ? 0 : value) + delta);
+        }
+    }
+
+    /**
+     * @return goal which is still running and was started before given time, null if there is none
+     */
+    private Goal getRunningGoal(long startedBefore) {
+        Goal goal = goals.isEmpty() ? null : goals.get(goals.size() - 1);
+        return goal == null || goal.endTime != -1 || goal.startTime - startedBefore > 0 ? null : goal;
+    }
+
+    /**
+     * @return report of the build (goals in the order of execution along with their phases and counters, counters
+     * of the whole build)
+     */
+    public synchronized Map<String, Object> getReport() {
+        List<Object> goalReports = new ArrayList<Object>();
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        for (Goal goal : goals) {
+            Map<String, Object> goalReport = new LinkedHashMap<String, Object>();
+            goalReport.put("goal", goal.name);
+            goalReport.put("succeeded", goal.succeeded);
+            goalReport.put("timeInMilliseconds", toMilliseconds(goal.getTime()));
+            Map<String, Object> phaseReports = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Phase> entry : goal.phases.entrySet()) {
+                Phase phase = entry.getValue();
+                Map<String, Object> phaseReport = new LinkedHashMap<String, Object>();
+                phaseReport.put("count", phase.count);
+                phaseReport.put("timeInMilliseconds", toMilliseconds(phase.time));
+                phaseReport.put("maximumTimeInMilliseconds", toMilliseconds(phase.maximumTime));
+                phaseReports.put(entry.getKey(), phaseReport);
+            }
+            goalReport.put("phases", phaseReports);
+            goalReport.put("counters", new LinkedHashMap<String, Long>(goal.counters));
+            goalReports.add(goalReport);
+            add(counters, goal.counters);
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("startTime", startTime);
+        result.put("goals", goalReports);
+        result.put("counters", counters);
+        return result;
+    }
+
+    /**
+     * Writes {@link #getReport()} to the file (as JSON).
+     */
+    public void write(File file) throws IOException {
+        Json.write(getReport(), file);
+    }
+
+    /**
+     * Writes report of the build to the file (see {@link #write(File)}), exports timings/counters as project
+     * properties (see {@link #getProperties()}) and logs summary of the last goal.
+     * @param project null if there is none
+     */
+    public void report(Log log, File reportFile, MavenProject project) {
+        try {
+            write(reportFile);
+        } catch (IOException e) {
+            log.warn("Unable to write " + reportFile + ": " + e.getMessage());
+        }
+        if (project != null) {
+            project.getProperties().putAll(getProperties());
+        }
+        if (log.isInfoEnabled()) {
+            log.info(describeLastGoal());
+        }
+    }
+
+    /**
+     * @return hmp.timing.&lt;goal&gt;, hmp.timing.&lt;goal&gt;.&lt;phase&gt; (milliseconds, summed up over
+     * executions of the goal) and hmp.counter.&lt;counter&gt; (whole build)
+     */
+    public synchronized Map<String, String> getProperties() {
+        Map<String, Long> times = new LinkedHashMap<String, Long>();
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        for (Goal goal : goals) {
+            Map<String, Long> goalTimes = new LinkedHashMap<String, Long>();
+            goalTimes.put(goal.name, goal.getTime());
+            for (Map.Entry<String, Phase> entry : goal.phases.entrySet()) {
+                goalTimes.put(goal.name + "." + entry.getKey(), entry.getValue().time);
+            }
+            add(times, goalTimes);
+            add(counters, goal.counters);
+        }
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Long> entry : times.entrySet()) {
+            result.put("hmp.timing." + entry.getKey(), String.valueOf(toMilliseconds(entry.getValue())));
+        }
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            result.put("hmp.counter." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return one-line summary of the last goal (e.g. "start took 5012.3ms (settings: 3.1ms, format: 1204.9ms;
+     * commandsForked: 5)"), null if no goal has been started
+     */
+    public synchronized String describeLastGoal() {
+        if (goals.isEmpty()) {
+            return null;
+        }
+        Goal goal = goals.get(goals.size() - 1);
+        StringBuilder phases = new StringBuilder();
+        for (Map.Entry<String, Phase> entry : goal.phases.entrySet()) {
+            Phase phase = entry.getValue();
+            phases.append(phases.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ").
+                    append(formatMilliseconds(phase.time)).append(phase.count > 1 ? " (x" + phase.count + ")" : "");
+        }
+        StringBuilder counters = new StringBuilder();
+        for (Map.Entry<String, Long> entry : goal.counters.entrySet()) {
+            counters.append(counters.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ").
+                    append(entry.getValue());
+        }
+        String details = phases + (phases.length() > 0 && counters.length() > 0 ? "; " : "") + counters;
+        return goal.name + " took " + formatMilliseconds(goal.getTime()) +
+                (details.isEmpty() ? "" : " (" + details + ")");
+    }
+
+    private static void add(Map<String, Long> target, Map<String, Long> source) {
+        for (Map.Entry<String, Long> entry : source.entrySet()) {
+            Long value = target.get(entry.getKey());
+            target.put(entry.getKey(), (value == null ? 0 : value) + entry.getValue());
+        }
+    }
+
+    private static double toMilliseconds(long nanoseconds) {
+        return Math.round(nanoseconds / 100000d) / 10d;
+    }
+
+    private static String formatMilliseconds(long nanoseconds) {
+        return String.format(Locale.ENGLISH, "%.1fms", toMilliseconds(nanoseconds));
+    }
+
+    private static final class Goal {
+
+        private final String name;
+        private final long startTime = System.nanoTime();
+        private long endTime = -1;
+        private boolean succeeded;
+        private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+        private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+        private Goal(String name) {
+            this.name = name;
+        }
+
+        private long getTime() {
+            return (endTime == -1 ? System.nanoTime() : endTime) - startTime;
+        }
+
+        private Phase getPhase(String name) {
+            Phase phase = phases.get(name);
+            if (phase == null) {
+                phases.put(name, phase = new Phase());
+            }
+            return phase;
+        }
+    }
+
+    private static final class Phase {
+
+        private int count;
+        private long time;
+        private long maximumTime;
+
+        private void add(long timeInNanoseconds) {
+            count++;
+            time += timeInNanoseconds;
+            maximumTime = Math.max(maximumTime, timeInNanoseconds);
+        }
+    }
+}
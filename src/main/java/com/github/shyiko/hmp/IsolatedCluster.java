@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Hadoop cluster confined to the build directory, so that any number of builds can run their clusters on the same
+ * host at the same time. Cluster gets:
+ * <ul>
+ *     <li>free ports for all of the daemons' endpoints,</li>
+ *     <li>its own hadoop.tmp.dir (and storage directories within it),</li>
+ *     <li>configuration directory generated from the original one,</li>
+ *     <li>id passed to daemons as -Dhmp.cluster.id (which is how 'stop' goal tells them apart).</li>
+ * </ul>
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class IsolatedCluster {
+
+    public static final String CLUSTER_ID_PROPERTY = "hmp.cluster.id";
+
+    private final File directory;
+    private final String id;
+
+    public IsolatedCluster(File buildDirectory) throws IOException {
+        this.directory = new File(buildDirectory, "hmp").getCanonicalFile();
+        this.id = Integer.toHexString(directory.getPath().hashCode());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public File getConfDirectory() {
+        return new File(directory, "conf");
+    }
+
+    public File getTemporaryDirectory() {
+        return new File(directory, "tmp");
+    }
+
+    public File getStateFile() {
+        return new File(directory, "cluster.state");
+    }
+
+    /**
+     * @return settings pointing to the generated configuration directory
+     * @throws IOException if configuration hasn't been generated yet
+     */
+    public HadoopSettings getSettings(File homeDirectory) throws IOException {
+        if (!getConfDirectory().isDirectory()) {
+            throw new IOException(getConfDirectory() + " doesn't exist (isolated cluster has to be started first)");
+        }
+        return withClusterId(new HadoopSettings(homeDirectory, getConfDirectory()));
+    }
+
+    /**
+     * Generates configuration directory (out of the one used by sourceSettings) with every address property bound
+     * to a free port and storage moved into {@link #getTemporaryDirectory()}.
+     * @param addressProperties properties holding [scheme://]host:port (or just port, if property name ends with
+     * ".port") daemons are going to listen on
+     * @return settings pointing to the generated configuration directory
+     */
+    public HadoopSettings generate(HadoopSettings sourceSettings, Collection<String> addressProperties)
+            throws IOException {
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        overrides.put("hadoop.tmp.dir", getTemporaryDirectory().getPath());
+        overrides.put("dfs.name.dir", "${hadoop.tmp.dir}/dfs/name");
+        overrides.put("dfs.name.edits.dir", "${hadoop.tmp.dir}/dfs/name");
+        overrides.put("dfs.data.dir", "${hadoop.tmp.dir}/dfs/data");
+        overrides.put("mapred.local.dir", "${hadoop.tmp.dir}/mapred/local");
+        Iterator<Integer> ports = ConfigurationGenerator.allocatePorts(addressProperties.size()).iterator();
+        for (String addressProperty : addressProperties) {
+            overrides.put(addressProperty, ConfigurationGenerator.bind(addressProperty,
+                    sourceSettings.getConf(addressProperty, ""), "localhost", ports.next()));
+        }
+        File confDirectory = getConfDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        ConfigurationGenerator.generate(sourceSettings.getConfDirectory(), confDirectory, overrides);
+        return withClusterId(new HadoopSettings(sourceSettings.getHomeDirectory(), confDirectory));
+    }
+
+    private HadoopSettings withClusterId(HadoopSettings hadoopSettings) {
+        Map<String, String> environment = hadoopSettings.getEnvironment();
+        String hadoopOpts = environment.get("HADOOP_OPTS");
+        environment.put("HADOOP_OPTS", (hadoopOpts == null ? "" : hadoopOpts + " ") +
+                "-D" + CLUSTER_ID_PROPERTY + "=" + id);
+        return hadoopSettings;
+    }
+
+}
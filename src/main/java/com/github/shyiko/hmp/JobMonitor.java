@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks jobs submitted by the goal (through the in-process JobClient, see {@link HadoopRuntime}). Jobs are
+ * identified by the ids their submissions report (see {@link #parseJobId(String)}), so that jobs of the other
+ * builds sharing the cluster are never picked up. Each {@link #poll()} refreshes progress of the running jobs and
+ * collects counters of the completed ones.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class JobMonitor {
+
+    /**
+     * org.apache.hadoop.mapred.JobStatus run states.
+     */
+    private static final String[] RUN_STATES = {"UNKNOWN", "RUNNING", "SUCCEEDED", "FAILED", "PREP", "KILLED"};
+
+    /**
+     * Lines JobClient (MRv1) and Job/JobSubmitter/YarnClientImpl (MRv2) log upon submission.
+     */
+    private static final Pattern JOB_ID_PATTERN = Pattern.compile(
+            ".*(?:Running job: |Submitting tokens for job: |Submitted application application_)(?:job_)?(\\d+_\\d+).*");
+
+    private final HadoopRuntime runtime;
+    private final Object jobClient;
+    private final String user;
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+    private final Set<String> pendingJobIds = new LinkedHashSet<String>();
+
+    public JobMonitor(HadoopRuntime runtime) throws IOException {
+        this.runtime = runtime;
+        Object configuration = runtime.newInstance("org.apache.hadoop.mapred.JobConf");
+        runtime.invoke(configuration, "set", "ipc.client.connect.max.retries", "0");
+        this.jobClient = runtime.newInstance("org.apache.hadoop.mapred.JobClient", configuration);
+        this.user = (String) runtime.invoke(runtime.invokeStatic("org.apache.hadoop.security.UserGroupInformation",
+                "getCurrentUser"), "getShortUserName");
+    }
+
+    /**
+     * @return id of the job submission has been reported by the line of the client's output/log (e.g.
+     * "Running job: job_201210101010_0001"), null if line doesn't report one
+     */
+    public static String parseJobId(String line) {
+        Matcher matcher = JOB_ID_PATTERN.matcher(line);
+        return matcher.matches() ? "job_" + matcher.group(1) : null;
+    }
+
+    /**
+     * @return ids of the jobs JobTracker knows about (taken before submission, so that job reported by the
+     * submission can be told apart from the ones which existed before)
+     */
+    public Set<String> listJobIds() throws IOException {
+        Set<String> result = new HashSet<String>();
+        Object[] statuses = (Object[]) runtime.invoke(jobClient, "getAllJobs");
+        if (statuses != null) {
+            for (Object status : statuses) {
+                result.add(runtime.invoke(status, "getJobID").toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts tracking job reported by the submission of the goal. Job is verified upon the next {@link #poll()}
+     * (jobs submitted by a different user are ignored), so that this method can be called from any thread (including
+     * the one logging submission).
+     * @param preexistingJobIds ids of the jobs which existed before the submission (see {@link #listJobIds()})
+     */
+    public synchronized void track(String id, Set<String> preexistingJobIds) {
+        if (!preexistingJobIds.contains(id) && !jobs.containsKey(id)) {
+            pendingJobIds.add(id);
+        }
+    }
+
+    /**
+     * @return jobs which have changed since the last poll
+     */
+    public synchronized List<Job> poll() throws IOException {
+        for (Iterator<String> iterator = pendingJobIds.iterator(); iterator.hasNext(); ) {
+            String id = iterator.next();
+            Object runningJob = getRunningJob(id);
+            if (runningJob != null) {
+                Object status = runtime.invoke(runningJob, "getJobStatus");
+                if (user.equals(runtime.invoke(status, "getUsername"))) {
+                    jobs.put(id, new Job(id, (Long) runtime.invoke(status, "getStartTime")));
+                }
+            }
+            iterator.remove();
+        }
+        List<Job> result = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (!job.isComplete() && refresh(job)) {
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all jobs tracked so far (in order of submission)
+     */
+    public synchronized Collection<Job> getJobs() {
+        return new ArrayList<Job>(jobs.values());
+    }
+
+    private Object getRunningJob(String id) throws IOException {
+        return runtime.invoke(jobClient, "getJob", runtime.invokeStatic("org.apache.hadoop.mapred.JobID", "forName",
+                id));
+    }
+
+    private boolean refresh(Job job) throws IOException {
+        Object runningJob = getRunningJob(job.id);
+        if (runningJob == null) {
+            return false; // retired
+        }
+        job.name = (String) runtime.invoke(runningJob, "getJobName");
+        int mapProgress = Math.round((Float) runtime.invoke(runningJob, "mapProgress") * 100);
+        int reduceProgress = Math.round((Float) runtime.invoke(runningJob, "reduceProgress") * 100);
+        int runState = (Integer) runtime.invoke(runningJob, "getJobState");
+        String state = runState > -1 && runState < RUN_STATES.length ? RUN_STATES[runState] : RUN_STATES[0];
+        boolean changed = mapProgress != job.mapProgress || reduceProgress != job.reduceProgress ||
+                !state.equals(job.state);
+        job.mapProgress = mapProgress;
+        job.reduceProgress = reduceProgress;
+        job.state = state;
+        if (Boolean.TRUE.equals(runtime.invoke(runningJob, "isComplete"))) {
+            job.durationInMilliseconds = System.currentTimeMillis() - job.startTime;
+            job.counters = getCounters(runningJob);
+        }
+        return changed || job.isComplete();
+    }
+
+    /**
+     * Kills jobs tracked by the monitor (i.e. submitted by the goal, see {@link #track}) which are not complete yet.
+     * @return jobs which have been killed
+     */
+    public synchronized List<Job> killRunningJobs() throws IOException {
+        List<Job> result = new ArrayList<Job>();
+        poll();
+        for (Job job : jobs.values()) {
+            if (job.isComplete()) {
+                continue;
+            }
+            Object runningJob = getRunningJob(job.id);
+            if (runningJob != null) {
+                runtime.invoke(runningJob, "killJob");
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Map<String, Long>> getCounters(Object runningJob) throws IOException {
+        Map<String, Map<String, Long>> result = new LinkedHashMap<String, Map<String, Long>>();
+        Object counters = runtime.invoke(runningJob, "getCounters");
+        if (counters == null) {
+            return result;
+        }
+        for (Object group : (Iterable<?>) counters) {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (Object counter : (Iterable<?>) group) {
+                values.put((String) runtime.invoke(counter, "getName"), (Long) runtime.invoke(counter, "getValue"));
+            }
+            result.put((String) runtime.invoke(group, "getName"), values);
+        }
+        return result;
+    }
+
+    public void close() throws IOException {
+        runtime.invoke(jobClient, "close");
+    }
+
+    public static final class Job {
+
+        private final String id;
+        private final long startTime;
+        private String name;
+        private String state;
+        private int mapProgress = -1;
+        private int reduceProgress = -1;
+        private long durationInMilliseconds = -1;
+        private Map<String, Map<String, Long>> counters;
+
+        private Job(String id, long startTime) {
+            this.id = id;
+            this.startTime = startTime;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return RUNNING, SUCCEEDED, FAILED, PREP or KILLED
+         */
+        public String getState() {
+            return state;
+        }
+
+        public int getMapProgress() {
+            return mapProgress;
+        }
+
+        public int getReduceProgress() {
+            return reduceProgress;
+        }
+
+        public boolean isComplete() {
+            return counters != null;
+        }
+
+        /**
+         * @return time between job's start and the moment its completion has been noticed, -1 if job isn't
+         * complete yet
+         */
+        public long getDurationInMilliseconds() {
+            return durationInMilliseconds;
+        }
+
+        /**
+         * @return counters by group name, null if job isn't complete yet
+         */
+        public Map<String, Map<String, Long>> getCounters() {
+            return counters;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("id", id);
+            result.put("name", name);
+            result.put("state", state);
+            result.put("startTime", startTime);
+            result.put("durationInMilliseconds", durationInMilliseconds);
+            result.put("counters", counters);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return id + (name == null ? "" : " (" + name + ")");
+        }
+    }
+}
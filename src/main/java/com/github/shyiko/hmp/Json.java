@@ -0,0 +1,330 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON writer/reader. Reports produced by the plugin are made of maps, collections, strings, numbers and
+ * booleans only. Parsed documents are represented the same way (objects become LinkedHashMaps, arrays - Lists,
+ * integral numbers - Longs and the rest of the numbers - Doubles).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+final class Json {
+
+    private static final String INDENT = "  ";
+
+    private Json() {
+    }
+
+    public static String toString(Object value) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, value, "");
+        return sb.toString();
+    }
+
+    /**
+     * Writes value to the file (creating parent directories if needed).
+     */
+    public static void write(Object value, File file) throws IOException {
+        File parentFile = file.getAbsoluteFile().getParentFile();
+        if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+            throw new IOException("Unable to create " + parentFile);
+        }
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+            writer.write(toString(value));
+            writer.write("\n");
+            writer.flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    public static Object parse(File file) throws IOException {
+        return parse(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    /**
+     * @throws IOException if value is not a valid JSON
+     */
+    public static Object parse(String value) throws IOException {
+        Parser parser = new Parser(value);
+        Object result = parser.parseValue();
+        parser.skipWhitespace();
+        if (parser.position != value.length()) {
+            throw parser.error("Unexpected content");
+        }
+        return result;
+    }
+
+    private static void append(StringBuilder sb, Object value, String indent) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Map) {
+            Iterator<? extends Map.Entry<?, ?>> iterator = ((Map<?, ?>) value).entrySet().iterator();
+            if (!iterator.hasNext()) {
+                sb.append("{}");
+                return;
+            }
+            sb.append("{\n");
+            while (iterator.hasNext()) {
+                Map.Entry<?, ?> entry = iterator.next();
+                sb.append(indent).append(INDENT);
+                appendString(sb, String.valueOf(entry.getKey()));
+                sb.append(": ");
+                append(sb, entry.getValue(), indent + INDENT);
+                sb.append(iterator.hasNext() ? ",\n" : "\n");
+            }
+            sb.append(indent).append("}");
+        } else if (value instanceof Collection) {
+            Iterator<?> iterator = ((Collection<?>) value).iterator();
+            if (!iterator.hasNext()) {
+                sb.append("[]");
+                return;
+            }
+            sb.append("[\n");
+            while (iterator.hasNext()) {
+                sb.append(indent).append(INDENT);
+                append(sb, iterator.next(), indent + INDENT);
+                sb.append(iterator.hasNext() ? ",\n" : "\n");
+            }
+            sb.append(indent).append("]");
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            sb.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : String.valueOf(number));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static final class Parser {
+
+        private final String value;
+        private int position;
+
+        private Parser(String value) {
+            this.value = value;
+        }
+
+        private Object parseValue() throws IOException {
+            skipWhitespace();
+            if (position == value.length()) {
+                throw error("Unexpected end of input");
+            }
+            char c = value.charAt(position);
+            switch (c) {
+                case '{':
+                    return parseObject();
+                case '[':
+                    return parseArray();
+                case '"':
+                    return parseString();
+                case 't':
+                    return parseLiteral("true", Boolean.TRUE);
+                case 'f':
+                    return parseLiteral("false", Boolean.FALSE);
+                case 'n':
+                    return parseLiteral("null", null);
+                default:
+                    return parseNumber();
+            }
+        }
+
+        private Map<String, Object> parseObject() throws IOException {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            position++;
+            skipWhitespace();
+            if (consume('}')) {
+                return result;
+            }
+            do {
+                skipWhitespace();
+                if (position == value.length() || value.charAt(position) != '"') {
+                    throw error("Expected name");
+                }
+                String name = parseString();
+                skipWhitespace();
+                if (!consume(':')) {
+                    throw error("Expected ':'");
+                }
+                result.put(name, parseValue());
+                skipWhitespace();
+            } while (consume(','));
+            if (!consume('}')) {
+                throw error("Expected '}'");
+            }
+            return result;
+        }
+
+        private List<Object> parseArray() throws IOException {
+            List<Object> result = new ArrayList<Object>();
+            position++;
+            skipWhitespace();
+            if (consume(']')) {
+                return result;
+            }
+            do {
+                result.add(parseValue());
+                skipWhitespace();
+            } while (consume(','));
+            if (!consume(']')) {
+                throw error("Expected ']'");
+            }
+            return result;
+        }
+
+        private String parseString() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            position++;
+            while (position < value.length()) {
+                char c = value.charAt(position++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (position == value.length()) {
+                    break;
+                }
+                c = value.charAt(position++);
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > value.length()) {
+                            throw error("Malformed unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(value.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Malformed unicode escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private Object parseLiteral(String literal, Object result) throws IOException {
+            if (!value.startsWith(literal, position)) {
+                throw error("Unexpected character");
+            }
+            position += literal.length();
+            return result;
+        }
+
+        private Number parseNumber() throws IOException {
+            int start = position;
+            while (position < value.length() && "+-0123456789.eE".indexOf(value.charAt(position)) != -1) {
+                position++;
+            }
+            String number = value.substring(start, position);
+            try {
+                if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+                    return Long.parseLong(number);
+                }
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Unexpected character");
+            }
+        }
+
+        private boolean consume(char c) {
+            if (position < value.length() && value.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (position < value.length() && Character.isWhitespace(value.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM options of the processes launched through Hadoop scripts (HADOOP_NAMENODE_OPTS, HADOOP_CLIENT_OPTS, etc.):
+ * options of the preset followed by the ones specified for the process (so that the latter take precedence) and,
+ * optionally, class data sharing archive of the Hadoop classes (JDK 13+, see hmp.javaHome).
+ * <p/>
+ * Until archive of the process kind exists, each launch records one (-XX:ArchiveClassesAtExit) into a file of its
+ * own, so that concurrent processes of the same kind never write the same file. Recorded archive is moved in place
+ * (atomically) by one of the subsequent launches, which from then on use it (-XX:SharedArchiveFile).
+ * <p/>
+ * JVM refuses to archive classes if there is a non-empty directory in front of any of the jars classes have been
+ * loaded from. Hadoop 1.x scripts put both HADOOP_CONF_DIR and $HADOOP_HOME (as it contains "webapps") in front of
+ * hadoop-core jar, so HADOOP_CONF_DIR is pointed to an empty directory and Hadoop jars followed by the actual
+ * configuration directory are put first on the classpath through HADOOP_CLASSPATH (HADOOP_USER_CLASSPATH_FIRST). Jars
+ * already contain "webapps", classes are never loaded from the directories which come after them. Archiving failures
+ * are logged (at warning level) to the stderr of the process.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class JvmProfile {
+
+    public static final String DEFAULT = "default";
+    public static final String FAST_STARTUP = "fast-startup";
+    public static final String THROUGHPUT = "throughput";
+
+    /**
+     * Process -> environment variable holding its JVM options.
+     */
+    private static final Map<String, String> VARIABLES = new LinkedHashMap<String, String>();
+
+    static {
+        VARIABLES.put("NameNode", "HADOOP_NAMENODE_OPTS");
+        VARIABLES.put("DataNode", "HADOOP_DATANODE_OPTS");
+        VARIABLES.put("JobTracker", "HADOOP_JOBTRACKER_OPTS");
+        VARIABLES.put("TaskTracker", "HADOOP_TASKTRACKER_OPTS");
+        VARIABLES.put("ResourceManager", "YARN_RESOURCEMANAGER_OPTS");
+        VARIABLES.put("NodeManager", "YARN_NODEMANAGER_OPTS");
+        VARIABLES.put("JobHistoryServer", "HADOOP_JOB_HISTORYSERVER_OPTS");
+        VARIABLES.put("Client", "HADOOP_CLIENT_OPTS"); // bin/hadoop fs, jar, etc.
+    }
+
+    /**
+     * Magic number dynamic archive starts with (JVM writes header last, so archive having it is complete).
+     */
+    private static final int DYNAMIC_ARCHIVE_MAGIC = 0xf00baba8;
+
+    private static final String ARCHIVE_IN_PROGRESS_SUFFIX = ".jsa.tmp";
+
+    private final String name;
+    private final Map<String, String> options;
+    private final File archiveDirectory;
+
+    /**
+     * @param options options by process (NameNode, DataNode, ..., Client)
+     * @param archiveDirectory directory class data sharing archives are kept in, null if archives shouldn't be used
+     * @throws IllegalArgumentException if either profile or any of the processes is unknown
+     */
+    public JvmProfile(String name, Map<String, String> options, File archiveDirectory) {
+        if (!DEFAULT.equals(name) && !FAST_STARTUP.equals(name) && !THROUGHPUT.equals(name)) {
+            throw new IllegalArgumentException("Unknown JVM profile " + name + " (expected one of " +
+                    DEFAULT + ", " + FAST_STARTUP + ", " + THROUGHPUT + ")");
+        }
+        if (options == null) {
+            options = Collections.emptyMap();
+        }
+        for (String process : options.keySet()) {
+            if (!VARIABLES.containsKey(process)) {
+                throw new IllegalArgumentException("Unknown process " + process + " (expected one of " +
+                        VARIABLES.keySet() + ")");
+            }
+        }
+        this.name = name;
+        this.options = options;
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * @return true if JVM found in javaHome is able to record class data sharing archive at exit (JDK 13+)
+     */
+    public static boolean isClassDataSharingSupported(File javaHome) {
+        String version = getJavaVersion(javaHome);
+        if (version == null) {
+            return false;
+        }
+        String[] components = version.split("[.\\-+_]");
+        try {
+            return !version.startsWith("1.") && Integer.parseInt(components[0]) >= 13;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return JAVA_VERSION from the "release" file of JDK/JRE (e.g. "1.8.0_392", "17.0.9"), null if unknown
+     */
+    private static String getJavaVersion(File javaHome) {
+        Properties properties = new Properties();
+        try {
+            InputStream inputStream = new FileInputStream(new File(javaHome, "release"));
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String version = properties.getProperty("JAVA_VERSION");
+        return version == null ? null : version.replace("\"", "").trim();
+    }
+
+    /**
+     * Puts JVM options of the profile into the environment of the process about to be launched (options of the
+     * process kind already present in the environment are kept, in front of the ones of the preset).
+     */
+    public void applyTo(HadoopSettings hadoopSettings, Map<String, String> environment) throws IOException {
+        File directory = null;
+        if (archiveDirectory != null) {
+            directory = new File(archiveDirectory, computeKey(hadoopSettings));
+            File emptyConfDirectory = new File(archiveDirectory, "conf");
+            for (File dir : new File[] {directory, emptyConfDirectory}) {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+            }
+            StringBuilder classpath = new StringBuilder();
+            for (URL url : HadoopRuntime.listClasspath(hadoopSettings.getHomeDirectory())) {
+                File file = new File(url.getPath());
+                if (isHadoopJar(hadoopSettings.getHomeDirectory(), file)) {
+                    classpath.append(file.getPath()).append(File.pathSeparator);
+                }
+            }
+            String userClasspath = environment.get("HADOOP_CLASSPATH");
+            if (userClasspath != null && !userClasspath.trim().isEmpty()) {
+                classpath.append(userClasspath.trim()).append(File.pathSeparator);
+            }
+            classpath.append(hadoopSettings.getConfDirectory().getCanonicalPath());
+            environment.put("HADOOP_CONF_DIR", emptyConfDirectory.getCanonicalPath());
+            environment.put("HADOOP_CLASSPATH", classpath.toString());
+            environment.put("HADOOP_USER_CLASSPATH_FIRST", "true");
+        }
+        String launchId = directory == null ? null : UUID.randomUUID().toString();
+        for (Map.Entry<String, String> entry : VARIABLES.entrySet()) {
+            String process = entry.getKey();
+            StringBuilder sb = new StringBuilder();
+            if (directory != null) {
+                sb.append(getArchiveOptions(hadoopSettings, directory, process, launchId));
+            }
+            String environmentOptions = environment.get(entry.getValue());
+            if (environmentOptions != null && !environmentOptions.trim().isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : " ").append(environmentOptions.trim());
+            }
+            String presetOptions = getPresetOptions(process);
+            if (!presetOptions.isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : " ").append(presetOptions);
+            }
+            String processOptions = options.get(process);
+            if (processOptions != null && !processOptions.trim().isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : " ").append(processOptions.trim());
+            }
+            if (sb.length() > 0) {
+                environment.put(entry.getValue(), sb.toString());
+            }
+        }
+    }
+
+    /**
+     * @return true if file is one of the jars bin/hadoop puts on the classpath (hadoopHome's own jars other than
+     * hadoop-core/hadoop-tools, e.g. hadoop-examples, are left out, same as bin/hadoop does)
+     */
+    private static boolean isHadoopJar(File homeDirectory, File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        String name = file.getName();
+        return !file.getParentFile().getCanonicalFile().equals(homeDirectory.getCanonicalFile()) ||
+                name.startsWith("hadoop-core") || name.startsWith("hadoop-tools");
+    }
+
+    private String getPresetOptions(String process) {
+        if (FAST_STARTUP.equals(name)) {
+            return "-Xms32m -Xmx256m -XX:+UseSerialGC -XX:TieredStopAtLevel=1";
+        }
+        if (THROUGHPUT.equals(name)) {
+            return "Client".equals(process) ? "-XX:+UseParallelGC" : "-Xms512m -Xmx1g -XX:+UseParallelGC";
+        }
+        return "";
+    }
+
+    /**
+     * @param launchId id of the launch (archive recorded by the process is named after it)
+     */
+    private String getArchiveOptions(HadoopSettings hadoopSettings, File directory, String process, String launchId)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        // JVM logs warnings to stdout by default, which would mix them into the output of "bin/hadoop fs -cat"
+        sb.append("-Xlog:all=off -Xlog:all=warning:stderr ");
+        // log4j.properties bundled with Hadoop jars would otherwise shadow the one of the configuration directory
+        File log4jProperties = new File(hadoopSettings.getConfDirectory(), "log4j.properties");
+        if (log4jProperties.isFile()) {
+            sb.append("-Dlog4j.configuration=").append(log4jProperties.getAbsoluteFile().toURI()).append(" ");
+        }
+        File archive = promoteArchive(directory, process);
+        if (archive.isFile()) {
+            sb.append("-XX:SharedArchiveFile=").append(archive);
+        } else {
+            sb.append("-XX:ArchiveClassesAtExit=").append(new File(directory, process + "." + launchId +
+                    ARCHIVE_IN_PROGRESS_SUFFIX));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Moves (atomically) archive recorded by one of the previous launches of the process kind in place (unless
+     * there is one already). Archives which are still being written are left intact (the ones abandoned more than a
+     * day ago are removed).
+     * @return &lt;process&gt;.jsa file of the directory
+     */
+    private File promoteArchive(File directory, String process) throws IOException {
+        File archive = new File(directory, process + ".jsa");
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(process + ".") || !fileName.endsWith(ARCHIVE_IN_PROGRESS_SUFFIX)) {
+                continue;
+            }
+            if (isCompleteArchive(file)) {
+                if (archive.isFile() || !file.renameTo(archive)) {
+                    file.delete();
+                }
+            } else
+            if (file.lastModified() < System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)) {
+                file.delete();
+            }
+        }
+        return archive;
+    }
+
+    private static boolean isCompleteArchive(File file) {
+        byte[] header = new byte[4];
+        try {
+            DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+            try {
+                inputStream.readFully(header);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return ByteBuffer.wrap(header).order(ByteOrder.nativeOrder()).getInt() == DYNAMIC_ARCHIVE_MAGIC;
+    }
+
+    /**
+     * @return hash of everything archive depends on (JVM, classpath and the content of the jars), so that archive
+     * which wouldn't match the process is never used
+     */
+    private String computeKey(HadoopSettings hadoopSettings) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File javaHome = new File(hadoopSettings.getEnvironment().get("JAVA_HOME"));
+        StringBuilder sb = new StringBuilder();
+        sb.append(javaHome.getCanonicalPath()).append(":").append(getJavaVersion(javaHome)).append(";").
+                append(hadoopSettings.getConfDirectory().getCanonicalPath());
+        for (URL url : HadoopRuntime.listClasspath(hadoopSettings.getHomeDirectory())) {
+            File file = new File(url.getPath());
+            sb.append(";").append(url).append(":").append(file.length()).append(":").append(file.lastModified());
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b : messageDigest.digest(sb.toString().getBytes("UTF-8"))) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
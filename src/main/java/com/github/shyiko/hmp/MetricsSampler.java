@@ -0,0 +1,394 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls /jmx of the daemons' web UIs at a fixed rate (each daemon from its own background thread, so that the one
+ * which is slow to respond doesn't delay sampling of the others) and records heap, GC time, RPC queue time, HDFS
+ * bytes read/written and running tasks of each daemon. Samples are timestamped when response arrives and appended
+ * to the timeline (CSV) as soon as they are taken, so that it's there even if build never gets to {@link #stop()},
+ * which produces per-daemon summary.
+ * <p/>
+ * Attributes are matched regardless of the naming convention used by the particular generation of Hadoop (e.g.
+ * memHeapUsedM/MemHeapUsedM, RpcQueueTime_avg_time/RpcQueueTimeAvgTime, bytes_read/BytesRead). Note that Hadoop 1.x
+ * daemons publish them only if metrics system is configured (hadoop-metrics2.properties), otherwise just heap and GC
+ * time (of the JVM itself) are available.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class MetricsSampler {
+
+    public static final String HEAP_USED = "heapUsedMB";
+    public static final String GC_TIME = "gcTimeMillis";
+    public static final String RPC_QUEUE_TIME = "rpcQueueTimeMillis";
+    public static final String BYTES_READ = "bytesRead";
+    public static final String BYTES_WRITTEN = "bytesWritten";
+    public static final String RUNNING_TASKS = "runningTasks";
+
+    private static final String[] METRICS = {HEAP_USED, GC_TIME, RPC_QUEUE_TIME, BYTES_READ, BYTES_WRITTEN,
+        RUNNING_TASKS};
+
+    /**
+     * Metrics which only grow (summary holds the increase over the sampling period instead of avg/max).
+     */
+    private static final Set<String> CUMULATIVE_METRICS = new HashSet<String>(Arrays.asList(GC_TIME, BYTES_READ,
+            BYTES_WRITTEN));
+
+    /**
+     * Upper bound of connect/read timeout (the actual one is never longer than the sampling interval).
+     */
+    private static final int TIMEOUT_IN_MILLISECONDS = 5000;
+
+    /**
+     * Maximum number of /jmx queries made per sample (see {@link #poll(String)}).
+     */
+    private static final int QUERIES_PER_SAMPLE = 3;
+    private static final double MEGABYTE = 1024 * 1024;
+
+    private static MetricsSampler running;
+
+    private final Map<String, String> endpoints;
+    private final int intervalInMilliseconds;
+    private final int timeoutInMilliseconds;
+    private final File timelineFile;
+    private final Map<String, Statistics> statistics = new LinkedHashMap<String, Statistics>();
+    private ScheduledExecutorService executorService;
+    private Writer writer;
+    private long startTime;
+
+    /**
+     * @param addresses host:port of the web UI by daemon name
+     * @param timelineFile CSV file samples should be written to
+     */
+    public MetricsSampler(Map<String, String> addresses, int intervalInMilliseconds, File timelineFile) {
+        if (intervalInMilliseconds < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        }
+        this.endpoints = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : addresses.entrySet()) {
+            endpoints.put(entry.getKey(), "http://" + entry.getValue() + "/jmx?qry=");
+            statistics.put(entry.getKey(), new Statistics());
+        }
+        this.intervalInMilliseconds = intervalInMilliseconds;
+        this.timeoutInMilliseconds = Math.min(TIMEOUT_IN_MILLISECONDS, intervalInMilliseconds);
+        this.timelineFile = timelineFile;
+    }
+
+    /**
+     * @return sampler started within this JVM, null if there is none
+     */
+    public static synchronized MetricsSampler getRunning() {
+        return running;
+    }
+
+    public int getIntervalInMilliseconds() {
+        return intervalInMilliseconds;
+    }
+
+    public File getTimelineFile() {
+        return timelineFile;
+    }
+
+    public void start() throws IOException {
+        synchronized (MetricsSampler.class) {
+            if (running != null) {
+                throw new IOException("Metrics sampler is already running in this JVM");
+            }
+            File parentFile = timelineFile.getAbsoluteFile().getParentFile();
+            if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+                throw new IOException("Unable to create " + parentFile);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(timelineFile), "UTF-8");
+            writer.write("time,daemon");
+            for (String metric : METRICS) {
+                writer.write("," + metric);
+            }
+            writer.write("\n");
+            writer.flush();
+            startTime = System.currentTimeMillis();
+            executorService = Executors.newScheduledThreadPool(Math.max(endpoints.size(), 1), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "hmp-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            for (final Map.Entry<String, String> entry : endpoints.entrySet()) {
+                executorService.scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        sample(entry.getKey(), entry.getValue());
+                    }
+                }, 0, intervalInMilliseconds, TimeUnit.MILLISECONDS);
+            }
+            running = this;
+        }
+    }
+
+    /**
+     * Takes a sample of the daemon and appends it to the timeline.
+     */
+    private void sample(String daemon, String url) {
+        Statistics daemonStatistics = statistics.get(daemon);
+        Map<String, Double> values;
+        try {
+            values = poll(url);
+        } catch (IOException e) {
+            daemonStatistics.addFailure();
+            return;
+        }
+        long time = System.currentTimeMillis() - startTime;
+        daemonStatistics.add(values);
+        StringBuilder sb = new StringBuilder();
+        sb.append(time).append(",").append(daemon);
+        for (String metric : METRICS) {
+            Double value = values.get(metric);
+            sb.append(",").append(value == null ? "" : format(value));
+        }
+        sb.append("\n");
+        synchronized (writer) {
+            try {
+                writer.write(sb.toString());
+                writer.flush();
+            } catch (IOException e) {
+                // timeline is incomplete, summary is still collected
+            }
+        }
+    }
+
+    private String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.format(Locale.ENGLISH, "%.2f", value);
+    }
+
+    /**
+     * @param url /jmx URL (without a query)
+     * @return value by metric (metrics not published by the daemon are omitted)
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Double> poll(String url) throws IOException {
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (Map<String, Object> bean : query(url + "Hadoop:*")) {
+            for (Map.Entry<String, Object> attribute : bean.entrySet()) {
+                if (!(attribute.getValue() instanceof Number)) {
+                    continue;
+                }
+                double value = ((Number) attribute.getValue()).doubleValue();
+                String name = attribute.getKey().replace("_", "").toLowerCase(Locale.ENGLISH);
+                if (name.equals("memheapusedm")) {
+                    result.put(HEAP_USED, value);
+                } else
+                if (name.equals("gctimemillis")) {
+                    result.put(GC_TIME, value);
+                } else
+                if (name.equals("rpcqueuetimeavgtime")) {
+                    // one per RPC server (port)
+                    max(result, RPC_QUEUE_TIME, value);
+                } else
+                if (name.equals("bytesread")) {
+                    sum(result, BYTES_READ, value);
+                } else
+                if (name.equals("byteswritten")) {
+                    sum(result, BYTES_WRITTEN, value);
+                } else
+                if (name.equals("mapsrunning") || name.equals("reducesrunning") ||
+                        name.equals("runningmaps") || name.equals("runningreduces") ||
+                        name.equals("containersrunning")) {
+                    sum(result, RUNNING_TASKS, value);
+                }
+            }
+        }
+        if (!result.containsKey(HEAP_USED)) {
+            // metrics system is off
+            for (Map<String, Object> bean : query(url + "java.lang:type=Memory")) {
+                Object heapMemoryUsage = bean.get("HeapMemoryUsage");
+                if (heapMemoryUsage instanceof Map && ((Map<String, Object>) heapMemoryUsage).get("used")
+                        instanceof Number) {
+                    result.put(HEAP_USED, ((Number) ((Map<String, Object>) heapMemoryUsage).get("used")).
+                            doubleValue() / MEGABYTE);
+                }
+            }
+            for (Map<String, Object> bean : query(url + "java.lang:type=GarbageCollector,*")) {
+                if (bean.get("CollectionTime") instanceof Number) {
+                    sum(result, GC_TIME, ((Number) bean.get("CollectionTime")).doubleValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    private void max(Map<String, Double> values, String metric, double value) {
+        Double currentValue = values.get(metric);
+        values.put(metric, currentValue == null ? value : Math.max(currentValue, value));
+    }
+
+    private void sum(Map<String, Double> values, String metric, double value) {
+        Double currentValue = values.get(metric);
+        values.put(metric, currentValue == null ? value : currentValue + value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> query(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeoutInMilliseconds);
+        connection.setReadTimeout(timeoutInMilliseconds);
+        String response;
+        try {
+            InputStream inputStream = connection.getInputStream();
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, length);
+                }
+                response = outputStream.toString("UTF-8");
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        // JMXJsonServlet writes non-finite numbers as is
+        response = response.replaceAll(":\\s*-?(NaN|Infinity)", ": null");
+        Object document;
+        try {
+            document = Json.parse(response);
+        } catch (IOException e) {
+            throw new IOException("Unexpected response from " + url + ": " + e.getMessage());
+        }
+        Object beans = document instanceof Map ? ((Map<String, Object>) document).get("beans") : null;
+        if (!(beans instanceof List)) {
+            throw new IOException("Unexpected response from " + url);
+        }
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (Object bean : (List<Object>) beans) {
+            if (bean instanceof Map) {
+                result.add((Map<String, Object>) bean);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops sampling and closes the timeline.
+     * @return summary (per daemon: number of samples and failed samples, avg/max of heap, RPC queue time and
+     * running tasks, increase of GC time and bytes read/written over the sampling period)
+     */
+    public Map<String, Object> stop() throws IOException, InterruptedException {
+        try {
+            executorService.shutdown();
+            // samples in progress are bounded by connect + read timeout of each query
+            long maximumSampleTime = QUERIES_PER_SAMPLE * 2L * timeoutInMilliseconds;
+            if (!executorService.awaitTermination(maximumSampleTime, TimeUnit.MILLISECONDS)) {
+                executorService.shutdownNow();
+                executorService.awaitTermination(maximumSampleTime, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            try {
+                synchronized (writer) {
+                    writer.close();
+                }
+            } finally {
+                synchronized (MetricsSampler.class) {
+                    if (running == this) {
+                        running = null;
+                    }
+                }
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("intervalInMilliseconds", intervalInMilliseconds);
+        result.put("durationInMilliseconds", System.currentTimeMillis() - startTime);
+        Map<String, Object> daemons = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+            daemons.put(entry.getKey(), entry.getValue().summarize());
+        }
+        result.put("daemons", daemons);
+        return result;
+    }
+
+    /**
+     * Running statistics of a single daemon (samples themselves are not kept). Updated by the sampling thread of the
+     * daemon and summarized by the one stopping the sampler.
+     */
+    private static class Statistics {
+
+        private int samples;
+        private int failures;
+        private final Map<String, Double> first = new HashMap<String, Double>();
+        private final Map<String, Double> last = new HashMap<String, Double>();
+        private final Map<String, Double> max = new HashMap<String, Double>();
+        private final Map<String, Double> sum = new HashMap<String, Double>();
+        private final Map<String, Integer> count = new HashMap<String, Integer>();
+
+        public synchronized void addFailure() {
+            failures++;
+        }
+
+        public synchronized void add(Map<String, Double> values) {
+            samples++;
+            for (Map.Entry<String, Double> entry : values.entrySet()) {
+                String metric = entry.getKey();
+                double value = entry.getValue();
+                if (!first.containsKey(metric)) {
+                    first.put(metric, value);
+                }
+                last.put(metric, value);
+                max.put(metric, max.containsKey(metric) ? Math.max(max.get(metric), value) : value);
+                sum.put(metric, sum.containsKey(metric) ? sum.get(metric) + value : value);
+                count.put(metric, count.containsKey(metric) ? count.get(metric) + 1 : 1);
+            }
+        }
+
+        public synchronized Map<String, Object> summarize() {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("samples", samples);
+            result.put("failedSamples", failures);
+            for (String metric : METRICS) {
+                if (!count.containsKey(metric)) {
+                    continue;
+                }
+                if (CUMULATIVE_METRICS.contains(metric)) {
+                    result.put(metric, last.get(metric) - first.get(metric));
+                } else {
+                    Map<String, Object> values = new LinkedHashMap<String, Object>();
+                    values.put("avg", sum.get(metric) / count.get(metric));
+                    values.put("max", max.get(metric));
+                    result.put(metric, values);
+                }
+            }
+            return result;
+        }
+    }
+}
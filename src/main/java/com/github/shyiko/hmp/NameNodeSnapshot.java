@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Copy of freshly formatted NameNode storage, which can be restored instead of running "namenode -format".
+ * <p/>
+ * Snapshot is keyed by Hadoop version and contents of core-site.xml/hdfs-site.xml. Data directories are not
+ * copied (they are empty right after format), instead they are wiped out on restore.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class NameNodeSnapshot {
+
+    private static final String METADATA_FILE = "snapshot.properties";
+    private static final String FORMAT_TIME = "formatTimeInMilliseconds";
+
+    private final File snapshotsDirectory;
+    private final File directory;
+    private final List<File> nameDirectories;
+    private final List<File> dataDirectories;
+
+    public NameNodeSnapshot(File snapshotsDirectory, String key, List<File> nameDirectories,
+                            List<File> dataDirectories) {
+        this.snapshotsDirectory = snapshotsDirectory;
+        this.directory = new File(snapshotsDirectory, key);
+        this.nameDirectories = nameDirectories;
+        this.dataDirectories = dataDirectories;
+    }
+
+    public static String computeKey(HadoopSettings hadoopSettings) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String version = hadoopSettings.getVersion();
+        if (version == null) {
+            version = hadoopSettings.getHomeDirectory().getCanonicalPath();
+        }
+        messageDigest.update(version.getBytes("UTF-8"));
+        for (String fileName : new String[] {"core-site.xml", "hdfs-site.xml"}) {
+            File file = new File(hadoopSettings.getConfDirectory(), fileName);
+            if (file.exists()) {
+                messageDigest.update(Files.readAllBytes(file.toPath()));
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public boolean exists() {
+        return new File(directory, METADATA_FILE).exists();
+    }
+
+    /**
+     * @return time it took to format NameNode when snapshot was taken
+     */
+    public long getFormatTimeInMilliseconds() throws IOException {
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(new File(directory, METADATA_FILE));
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        return Long.parseLong(properties.getProperty(FORMAT_TIME, "-1"));
+    }
+
+    public void restore() throws IOException {
+        for (File dataDirectory : dataDirectories) {
+            LocalFileSystem.delete(dataDirectory);
+        }
+        for (int i = 0; i < nameDirectories.size(); i++) {
+            File nameDirectory = nameDirectories.get(i);
+            LocalFileSystem.delete(nameDirectory);
+            File parentDirectory = nameDirectory.getAbsoluteFile().getParentFile();
+            if (!parentDirectory.exists() && !parentDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + parentDirectory);
+            }
+            LocalFileSystem.copyDirectory(new File(directory, String.valueOf(i)), nameDirectory);
+        }
+    }
+
+    /**
+     * Takes snapshot of (just formatted) NameNode storage. Snapshot is prepared aside and then atomically moved
+     * in place, so that concurrent builds never observe partially written snapshot.
+     */
+    public void save(long formatTimeInMilliseconds) throws IOException {
+        File temporaryDirectory = new File(snapshotsDirectory, directory.getName() + "." + UUID.randomUUID());
+        if (!temporaryDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + temporaryDirectory);
+        }
+        try {
+            for (int i = 0; i < nameDirectories.size(); i++) {
+                LocalFileSystem.copyDirectory(nameDirectories.get(i), new File(temporaryDirectory, String.valueOf(i)));
+            }
+            Properties properties = new Properties();
+            properties.setProperty(FORMAT_TIME, String.valueOf(formatTimeInMilliseconds));
+            OutputStream outputStream = new FileOutputStream(new File(temporaryDirectory, METADATA_FILE));
+            try {
+                properties.store(outputStream, null);
+            } finally {
+                outputStream.close();
+            }
+            try {
+                Files.move(temporaryDirectory.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // snapshot has been taken by another build
+            } catch (IOException e) {
+                if (!exists()) {
+                    throw e;
+                }
+            }
+        } finally {
+            LocalFileSystem.delete(temporaryDirectory);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Check applied to the job output while it's being streamed from DFS. Output (part files merged in order) is fed
+ * in chunks, so verifiers must not accumulate it (anything they keep has to be bounded by the size of a single
+ * line at most).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+abstract class OutputVerifier {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Called with consecutive chunks of the output.
+     */
+    public abstract void update(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Called after the last chunk of each output file.
+     */
+    public void endOfFile() throws IOException {
+    }
+
+    /**
+     * Called once all of the output has been consumed.
+     * @return description of the mismatch, null if output passed verification
+     */
+    public abstract String verify() throws IOException;
+
+    /**
+     * Compares output with the content of the local file.
+     */
+    static class ExpectedContent extends OutputVerifier {
+
+        private final File file;
+        private final InputStream inputStream;
+        private byte[] expected = new byte[0];
+        private long position;
+        private long line = 1;
+        private String mismatch;
+
+        public ExpectedContent(File file) throws IOException {
+            this.file = file;
+            this.inputStream = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) throws IOException {
+            if (mismatch != null) {
+                return;
+            }
+            if (expected.length < length) {
+                expected = new byte[length];
+            }
+            int expectedLength = read(expected, length);
+            for (int i = 0; i < length; i++) {
+                if (i == expectedLength) {
+                    mismatch = "output is longer than " + file + " (which ends at line " + line + ")";
+                    return;
+                }
+                if (buffer[offset + i] != expected[i]) {
+                    mismatch = "output differs from " + file + " at byte " + (position + i) + " (line " + line + ")";
+                    return;
+                }
+                if (expected[i] == '\n') {
+                    line++;
+                }
+            }
+            position += length;
+        }
+
+        private int read(byte[] buffer, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                int numberOfBytesRead = inputStream.read(buffer, offset, length - offset);
+                if (numberOfBytesRead == -1) {
+                    break;
+                }
+                offset += numberOfBytesRead;
+            }
+            return offset;
+        }
+
+        @Override
+        public String verify() throws IOException {
+            try {
+                if (mismatch == null && inputStream.read() != -1) {
+                    mismatch = "output is shorter than " + file + " (output ends at line " + line + ")";
+                }
+            } finally {
+                inputStream.close();
+            }
+            return mismatch;
+        }
+    }
+
+    /**
+     * Compares number of lines in the output with the expected one. Last line of each file doesn't have to be
+     * terminated.
+     */
+    static class LineCount extends OutputVerifier {
+
+        private final long expectedNumberOfLines;
+        private long numberOfLines;
+        private boolean lineTerminated = true;
+
+        public LineCount(long expectedNumberOfLines) {
+            this.expectedNumberOfLines = expectedNumberOfLines;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    numberOfLines++;
+                }
+            }
+            if (length > 0) {
+                lineTerminated = buffer[offset + length - 1] == '\n';
+            }
+        }
+
+        @Override
+        public void endOfFile() {
+            if (!lineTerminated) {
+                numberOfLines++;
+                lineTerminated = true;
+            }
+        }
+
+        @Override
+        public String verify() {
+            return numberOfLines == expectedNumberOfLines ? null :
+                    "expected " + expectedNumberOfLines + " line(s) but got " + numberOfLines;
+        }
+    }
+
+    /**
+     * Compares MD5 of the output with the expected one (computed value is available through {@link #getChecksum()}
+     * regardless of the outcome).
+     */
+    static class Checksum extends OutputVerifier {
+
+        private final String expectedChecksum;
+        private final MessageDigest messageDigest;
+        private String checksum;
+
+        /**
+         * @param expectedChecksum hex-encoded MD5, null if checksum should only be computed
+         */
+        public Checksum(String expectedChecksum) throws IOException {
+            this.expectedChecksum = expectedChecksum;
+            try {
+                this.messageDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            messageDigest.update(buffer, offset, length);
+        }
+
+        @Override
+        public String verify() {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : messageDigest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            checksum = sb.toString();
+            return expectedChecksum == null || expectedChecksum.equalsIgnoreCase(checksum) ? null :
+                    "expected MD5 " + expectedChecksum + " but got " + checksum;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Checks that lines are ordered by key (part of the line preceding first tab, just like in the output of
+     * TextOutputFormat). Keys are compared either byte-by-byte or as decimal numbers. Only the key of the previous
+     * line is retained.
+     */
+    static class SortOrder extends OutputVerifier {
+
+        private final boolean numeric;
+        private final boolean perFile;
+        private byte[] key = new byte[256];
+        private int keyLength;
+        private boolean keyComplete;
+        private byte[] previousKey = new byte[256];
+        private int previousKeyLength = -1;
+        private long line = 1;
+        private String mismatch;
+
+        /**
+         * @param numeric true if keys should be compared as numbers, false - as bytes
+         * @param perFile true if order should be checked within each file, false - across all of them
+         */
+        public SortOrder(boolean numeric, boolean perFile) {
+            this.numeric = numeric;
+            this.perFile = perFile;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            if (mismatch != null) {
+                return;
+            }
+            for (int i = offset, end = offset + length; i < end; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    endOfLine();
+                    if (mismatch != null) {
+                        return;
+                    }
+                } else if (!keyComplete) {
+                    if (b == '\t') {
+                        keyComplete = true;
+                    } else {
+                        if (keyLength == key.length) {
+                            key = Arrays.copyOf(key, key.length * 2);
+                        }
+                        key[keyLength++] = b;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void endOfFile() {
+            if (mismatch == null && (keyLength > 0 || keyComplete)) {
+                endOfLine();
+            }
+            if (perFile) {
+                previousKeyLength = -1;
+            }
+        }
+
+        private void endOfLine() {
+            int length = keyLength;
+            if (length > 0 && key[length - 1] == '\r') {
+                length--;
+            }
+            if (previousKeyLength > -1 && compare(previousKey, previousKeyLength, key, length) > 0) {
+                mismatch = "line " + line + " (key \"" + new String(key, 0, length, UTF_8) +
+                        "\") is out of order (previous key \"" + new String(previousKey, 0, previousKeyLength, UTF_8) +
+                        "\")";
+                return;
+            }
+            byte[] swap = previousKey;
+            previousKey = key;
+            previousKeyLength = length;
+            key = swap;
+            keyLength = 0;
+            keyComplete = false;
+            line++;
+        }
+
+        private int compare(byte[] left, int leftLength, byte[] right, int rightLength) {
+            if (numeric) {
+                try {
+                    return new BigDecimal(new String(left, 0, leftLength, UTF_8).trim()).compareTo(
+                            new BigDecimal(new String(right, 0, rightLength, UTF_8).trim()));
+                } catch (NumberFormatException e) {
+                    mismatch = "line " + line + " has non-numeric key";
+                    return 0;
+                }
+            }
+            for (int i = 0, length = Math.min(leftLength, rightLength); i < length; i++) {
+                int difference = (left[i] & 0xff) - (right[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return leftLength - rightLength;
+        }
+
+        @Override
+        public String verify() {
+            return mismatch;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Executes file transfers using a bounded pool of workers. Transfers are started largest first, so that the
+ * biggest files don't end up being the tail of the whole operation. First failure cancels the rest.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class ParallelTransfer {
+
+    private final int numberOfThreads;
+    private final List<Transfer> transfers = new ArrayList<Transfer>();
+
+    public ParallelTransfer(int numberOfThreads) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * @param size number of bytes to be transferred
+     */
+    public void add(long size, Callable<?> transfer) {
+        transfers.add(new Transfer(size, transfer));
+    }
+
+    public Statistics execute() throws IOException {
+        List<Transfer> queue = new ArrayList<Transfer>(transfers);
+        Collections.sort(queue, new Comparator<Transfer>() {
+
+            @Override
+            public int compare(Transfer o1, Transfer o2) {
+                return o1.size < o2.size ? 1 : o1.size == o2.size ? 0 : -1;
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        long numberOfBytes = 0;
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hmp-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            CompletionService<Object> completionService = new ExecutorCompletionService<Object>(executorService);
+            for (Transfer transfer : queue) {
+                completionService.submit(transfer);
+                numberOfBytes += transfer.size;
+            }
+            for (int i = 0; i < queue.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause.toString(), cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer has been interrupted");
+        } finally {
+            executorService.shutdownNow();
+        }
+        return new Statistics(queue.size(), numberOfBytes, System.currentTimeMillis() - startTime);
+    }
+
+    private static final class Transfer implements Callable<Object> {
+
+        private final long size;
+        private final Callable<?> callable;
+
+        private Transfer(long size, Callable<?> callable) {
+            this.size = size;
+            this.callable = callable;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return callable.call();
+        }
+    }
+
+    public static final class Statistics {
+
+        private final int numberOfFiles;
+        private final long numberOfBytes;
+        private final long timeInMilliseconds;
+
+        private Statistics(int numberOfFiles, long numberOfBytes, long timeInMilliseconds) {
+            this.numberOfFiles = numberOfFiles;
+            this.numberOfBytes = numberOfBytes;
+            this.timeInMilliseconds = timeInMilliseconds;
+        }
+
+        public int getNumberOfFiles() {
+            return numberOfFiles;
+        }
+
+        public long getNumberOfBytes() {
+            return numberOfBytes;
+        }
+
+        public long getTimeInMilliseconds() {
+            return timeInMilliseconds;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(timeInMilliseconds, 1) / 1000d;
+            return String.format(Locale.ENGLISH, "%d file(s), %.2f MB in %dms (%.2f MB/s, %.1f files/s)",
+                    numberOfFiles, numberOfBytes / 1048576d, timeInMilliseconds,
+                    numberOfBytes / 1048576d / seconds, numberOfFiles / seconds);
+        }
+    }
+}
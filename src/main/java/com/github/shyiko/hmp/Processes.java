@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Operating system processes (identified by PID) management. Relies on "kill" command and /proc (or "ps" where
+ * there is no /proc).
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+final class Processes {
+
+    private static final File PROC = new File("/proc");
+    private static final int POLLING_INTERVAL_IN_MILLISECONDS = 50;
+
+    /**
+     * Time given to the process to go away after SIGKILL.
+     */
+    private static final int KILL_TIMEOUT_IN_MILLISECONDS = 5000;
+
+    private Processes() {
+    }
+
+    /**
+     * @return PID of the process, null if it cannot be determined on this JVM
+     */
+    public static Integer getPid(Process process) {
+        try {
+            Method method = process.getClass().getMethod("pid"); // Java 9+
+            return ((Long) method.invoke(process)).intValue();
+        } catch (Exception e) {
+            // fallback to the implementation details of java.lang.UNIXProcess
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static boolean isRunning(int pid) throws IOException, InterruptedException {
+        if (PROC.isDirectory()) {
+            try {
+                String stat = new String(Files.readAllBytes(new File(PROC, pid + "/stat").toPath()), "UTF-8");
+                // terminated but not yet reaped by the parent
+                return !stat.substring(stat.lastIndexOf(')') + 1).trim().startsWith("Z");
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return kill(pid, "0") == 0;
+    }
+
+    /**
+     * @return command line of the process (arguments separated by spaces; taken from /proc or, if it's not
+     * available, "ps"), null if process isn't running or command line cannot be determined
+     */
+    public static String getCommandLine(int pid) {
+        if (!PROC.isDirectory()) {
+            try {
+                String output = executeForOutput(Arrays.asList("ps", "-ww", "-p", String.valueOf(pid),
+                        "-o", "command=")).trim();
+                return output.isEmpty() ? null : output;
+            } catch (IOException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(new File(PROC, pid + "/cmdline").toPath());
+            return new String(bytes, "UTF-8").replace('\0', ' ').trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return resident set size of the process in bytes, -1 if process isn't running or /proc is not available
+     */
+    public static long getResidentSetSize(int pid) {
+        return getResidentSetSize(String.valueOf(pid));
+    }
+
+    /**
+     * @return resident set size of the current JVM in bytes, -1 if /proc is not available
+     */
+    public static long getResidentSetSize() {
+        return getResidentSetSize("self");
+    }
+
+    private static long getResidentSetSize(String pid) {
+        if (!PROC.isDirectory()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(new File(PROC, pid + "/status").toPath(),
+                    Charset.forName("UTF-8"))) {
+                if (line.startsWith("VmRSS:")) {
+                    // e.g. "VmRSS:	  123456 kB"
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not running
+        } catch (NumberFormatException e) {
+            // unexpected format
+        }
+        return -1;
+    }
+
+    /**
+     * Sends SIGTERM to all of the processes at once and waits for them to exit. Processes still running once
+     * timeout expires are sent SIGKILL.
+     * @return PIDs of the processes which had to be killed with SIGKILL
+     */
+    public static Set<Integer> terminate(Collection<Integer> pids, int timeoutInMilliseconds)
+            throws IOException, InterruptedException {
+        Set<Integer> result = new LinkedHashSet<Integer>();
+        if (pids.isEmpty()) {
+            return result;
+        }
+        signal(pids, "TERM");
+        List<Integer> runningProcesses = await(pids, System.currentTimeMillis() + timeoutInMilliseconds);
+        if (!runningProcesses.isEmpty()) {
+            signal(runningProcesses, "KILL");
+            result.addAll(runningProcesses);
+            runningProcesses = await(runningProcesses, System.currentTimeMillis() + KILL_TIMEOUT_IN_MILLISECONDS);
+            if (!runningProcesses.isEmpty()) {
+                throw new IOException("Processes " + runningProcesses + " are still running after SIGKILL");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return processes which are still running when deadline is reached
+     */
+    private static List<Integer> await(Collection<Integer> pids, long deadline)
+            throws IOException, InterruptedException {
+        List<Integer> runningProcesses = new ArrayList<Integer>(pids);
+        while (true) {
+            for (int i = runningProcesses.size() - 1; i > -1; i--) {
+                if (!isRunning(runningProcesses.get(i))) {
+                    runningProcesses.remove(i);
+                }
+            }
+            if (runningProcesses.isEmpty() || System.currentTimeMillis() >= deadline) {
+                return runningProcesses;
+            }
+            Thread.sleep(POLLING_INTERVAL_IN_MILLISECONDS);
+        }
+    }
+
+    private static void signal(Collection<Integer> pids, String signal) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add("kill");
+        command.add("-" + signal);
+        for (Integer pid : pids) {
+            command.add(String.valueOf(pid));
+        }
+        // non-zero exit code means that some of the processes are gone already (which is fine)
+        execute(command);
+    }
+
+    private static int kill(int pid, String signal) throws IOException, InterruptedException {
+        return execute(Arrays.asList("kill", "-" + signal, String.valueOf(pid)));
+    }
+
+    /**
+     * @return exit code of the command (output is discarded)
+     */
+    private static int execute(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        read(process.getInputStream(), null);
+        return process.waitFor();
+    }
+
+    /**
+     * @return stdout of the command, empty if command has failed
+     */
+    private static String executeForOutput(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        read(process.getErrorStream(), null);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        read(process.getInputStream(), output);
+        return process.waitFor() == 0 ? output.toString("UTF-8") : "";
+    }
+
+    /**
+     * @param outputStream stream content should be copied to, null if content should be discarded
+     */
+    private static void read(InputStream inputStream, OutputStream outputStream) throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+            int numberOfBytesRead;
+            while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                if (outputStream != null) {
+                    outputStream.write(buffer, 0, numberOfBytesRead);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
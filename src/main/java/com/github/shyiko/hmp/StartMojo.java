@@ -15,13 +15,27 @@
  */
 package com.github.shyiko.hmp;
 
+import org.apache.commons.exec.ExecuteException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.concurrent.TimeUnit;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 /**
  * @goal start
@@ -29,12 +43,38 @@ import java.util.concurrent.TimeUnit;
  */
 public class StartMojo extends AbstractHadoopMojo {
 
+    /**
+     * Exit values of the daemon terminated by the 'stop' goal (128 + signal number).
+     */
+    private static final int EXIT_VALUE_ON_SIGTERM = 143;
+    private static final int EXIT_VALUE_ON_SIGKILL = 137;
+
+    /**
+     * Addresses YARN daemons bind to, which are not (reliably) available for readiness checks.
+     */
+    private static final String[] YARN_AUXILIARY_ADDRESS_PROPERTIES = {
+        "mapreduce.jobhistory.admin.address", "mapreduce.shuffle.port"
+    };
+
     /**
      * True if Hadoop NameNode should be automatically formatted, false otherwise
      * @parameter expression="${hmp.autoFormatNameNode}" default-value="true"
      */
     private boolean autoFormatNameNode;
 
+    /**
+     * True if freshly formatted NameNode storage should be snapshotted and restored (instead of running
+     * "namenode -format") on subsequent starts, false otherwise
+     * @parameter expression="${hmp.nameNodeSnapshots}" default-value="true"
+     */
+    private boolean nameNodeSnapshots;
+
+    /**
+     * Directory containing NameNode snapshots (see hmp.nameNodeSnapshots)
+     * @parameter expression="${hmp.nameNodeSnapshotDirectory}" default-value="${java.io.tmpdir}/hmp.snapshots"
+     */
+    private File nameNodeSnapshotDirectory;
+
     /**
      * True if Hadoop should be terminated before JVM shutdown, false otherwise
      * @parameter expression="${hmp.autoShutdown}" default-value="true"
@@ -65,102 +105,947 @@ public class StartMojo extends AbstractHadoopMojo {
      */
     private int taskTrackerStartupTimeoutInMilliseconds;
 
+    /**
+     * Timeout for ResourceManager startup (YARN only)
+     * @parameter expression="${hmp.resourceManagerStartupTimeoutInMilliseconds}" default-value="60000"
+     */
+    private int resourceManagerStartupTimeoutInMilliseconds;
+
+    /**
+     * Timeout for NodeManager startup (YARN only)
+     * @parameter expression="${hmp.nodeManagerStartupTimeoutInMilliseconds}" default-value="60000"
+     */
+    private int nodeManagerStartupTimeoutInMilliseconds;
+
+    /**
+     * Timeout for JobHistoryServer startup (YARN only)
+     * @parameter expression="${hmp.jobHistoryServerStartupTimeoutInMilliseconds}" default-value="60000"
+     */
+    private int jobHistoryServerStartupTimeoutInMilliseconds;
+
+    /**
+     * Overall timeout for Hadoop startup (0 - no timeout). Independent daemons are started concurrently
+     * @parameter expression="${hmp.startupTimeoutInMilliseconds}" default-value="180000"
+     */
+    private int startupTimeoutInMilliseconds;
+
+    /**
+     * Regular expression matching daemon output lines which indicate that (some part of) daemon has been started.
+     * Each match triggers immediate readiness check
+     * @parameter expression="${hmp.daemonStartupMarker}" default-value="(?i).*(up at|started|starting running).*"
+     */
+    private String daemonStartupMarker;
+
+    /**
+     * Directory daemons' output (stdout/stderr) is written to (&lt;daemon name&gt;.log, rolled over at
+     * hmp.daemonLogMaximumFileSize bytes, last 3 files are kept)
+     * @parameter expression="${hmp.daemonLogDirectory}" default-value="${project.build.directory}/hadoop-logs"
+     */
+    private File daemonLogDirectory;
+
+    /**
+     * Regular expression matching lines of daemons' output which should be mirrored to the console (empty - none
+     * of them, ".*" - all of them). Nothing is mirrored with hmp.quiet=true
+     * @parameter expression="${hmp.daemonConsolePattern}" default-value=".* (WARN|ERROR|FATAL) .*"
+     */
+    private String daemonConsolePattern;
+
+    /**
+     * Maximum number of lines of daemon's output waiting to be written to the log. Once it's reached, further lines
+     * are dropped (daemons are never blocked on logging)
+     * @parameter expression="${hmp.daemonLogBufferSize}" default-value="10000"
+     */
+    private int daemonLogBufferSize;
+
+    /**
+     * Size of the daemon log file at which it's rolled over
+     * @parameter expression="${hmp.daemonLogMaximumFileSize}" default-value="10485760"
+     */
+    private long daemonLogMaximumFileSize;
+
+    /**
+     * True if Hadoop should be left running after the build, so that subsequent builds (started with the same
+     * settings) could reuse it instead of formatting NameNode and starting daemons all over again.
+     * Implies hmp.autoShutdown=false
+     * @parameter expression="${hmp.keepWarm}" default-value="false"
+     */
+    private boolean keepWarm;
+
+    /**
+     * File used to keep track of the warm cluster (see hmp.keepWarm). Isolated cluster (see hmp.isolated) is
+     * tracked by ${project.build.directory}/hmp/cluster.state instead
+     * @parameter expression="${hmp.stateFile}" default-value="${java.io.tmpdir}/hmp.state"
+     */
+    private File stateFile;
+
+    /**
+     * Number of DataNodes to start. Each DataNode (as well as each worker, see hmp.workers) gets its own
+     * configuration, storage directories and ports within ${project.build.directory}/hmp/topology
+     * @parameter expression="${hmp.dataNodes}" default-value="1"
+     */
+    private int dataNodes;
+
+    /**
+     * Number of workers (TaskTrackers or NodeManagers, depending on the generation of Hadoop) to start.
+     * Worker N shares the node (and so the host) with DataNode N
+     * @parameter expression="${hmp.workers}" default-value="1"
+     */
+    private int workers;
+
+    /**
+     * Comma-separated list of racks (e.g. "/rack1,/rack2") nodes should be assigned to (in a round-robin fashion).
+     * If specified, node N is bound to 127.0.0.N and masters are configured with the topology script mapping
+     * these addresses to racks
+     * @parameter expression="${hmp.racks}"
+     */
+    private String racks;
+
+    /**
+     * True if daemons should run inside of Maven JVM (MiniDFSCluster and MiniMRCluster loaded from Hadoop's test
+     * jar found in hadoopHome) instead of being forked. NameNode and JobTracker are bound to the ports configured
+     * by hadoopConf, the rest of the daemons pick free ones. Output of the daemons goes to
+     * ${hmp.daemonLogDirectory}/Embedded.log. MRv1 only
+     * @parameter expression="${hmp.embedded}" default-value="false"
+     */
+    private boolean embedded;
+
+    /**
+     * True if storage of the cluster (hadoop.tmp.dir, NameNode/DataNode storage and MapReduce local directories)
+     * should be kept on the memory-backed file system (see hmp.inMemoryStorageDirectory), with durability settings
+     * (syncing of the edit log/blocks, recovery of the jobs) relaxed. Storage is removed by 'stop' goal
+     * @parameter expression="${hmp.inMemoryStorage}" default-value="false"
+     */
+    private boolean inMemoryStorage;
+
+    /**
+     * Directory of the memory-backed file system (tmpfs) in-memory storage is created in
+     * @parameter expression="${hmp.inMemoryStorageDirectory}" default-value="/dev/shm"
+     */
+    private File inMemoryStorageDirectory;
+
+    /**
+     * Number of bytes each DataNode may occupy within in-memory storage. TaskTrackers/NodeManagers stop accepting
+     * tasks once free space of the file system drops by the same amount
+     * @parameter expression="${hmp.inMemoryStorageMaximumSize}" default-value="1073741824"
+     */
+    private long inMemoryStorageMaximumSize;
+
+    /**
+     * True if metrics of the daemons (heap, GC time, RPC queue time, HDFS bytes read/written, running tasks) should
+     * be sampled (through /jmx of their web UIs) until 'stop' goal, which logs the summary. Forked daemons only
+     * @parameter expression="${hmp.metricsSampling}" default-value="false"
+     */
+    private boolean metricsSampling;
+
+    /**
+     * Interval between the samples (see hmp.metricsSampling). Daemons refresh values published over JMX once per
+     * metrics period (*.period of hadoop-metrics2.properties, 1 second in the bundled configuration), so there is no
+     * point in sampling more often than that
+     * @parameter expression="${hmp.metricsSamplingIntervalInMilliseconds}" default-value="1000"
+     */
+    private int metricsSamplingIntervalInMilliseconds;
+
+    /**
+     * File (CSV) samples are written to as they are taken (see hmp.metricsSampling). Summary is written by
+     * 'stop' goal next to it (with .json extension)
+     * @parameter expression="${hmp.metricsTimelineFile}"
+     * default-value="${project.build.directory}/hadoop-metrics.csv"
+     */
+    private File metricsTimelineFile;
+
+    /**
+     * Cluster started with hmp.isolated=true, null otherwise.
+     */
+    private IsolatedCluster isolatedCluster;
+
+    /**
+     * Settings configuration of the cluster has been generated from (see hmp.isolated and hmp.inMemoryStorage),
+     * null if cluster runs with the original configuration.
+     */
+    private HadoopSettings sourceSettings;
+
+    /**
+     * Storage of the cluster started with hmp.inMemoryStorage=true, null otherwise.
+     */
+    private InMemoryStorage storage;
+
+    /**
+     * Nodes of the cluster started with more than one DataNode/worker (or with racks), null otherwise.
+     */
+    private ClusterTopology topology;
+
     @Override
     protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
         if (getLog().isDebugEnabled()) {
             getLog().debug("Environment: " + hadoopSettings.getEnvironment());
         }
-        if (autoFormatNameNode) {
-            formatNameNode(hadoopSettings);
+        if (inMemoryStorage) {
+            long startTime = System.nanoTime();
+            hadoopSettings = initInMemoryStorage(hadoopSettings);
+            getInstrumentation().recordSince("inMemoryStorage", startTime);
+        }
+        if (embedded) {
+            if (metricsSampling) {
+                getLog().warn("Metrics sampling is not supported for embedded Hadoop (hmp.metricsSampling=true " +
+                        "ignored)");
+            }
+            startEmbeddedHadoop(hadoopSettings);
+            return;
+        }
+        if (dataNodes != 1 || workers != 1 || (racks != null && !racks.trim().isEmpty())) {
+            long startTime = System.nanoTime();
+            topology = initTopology(hadoopSettings);
+            getInstrumentation().recordSince("topology", startTime);
+        }
+        List<HadoopDaemon> daemons = listDaemons(hadoopSettings);
+        if (keepWarm) {
+            startWarmHadoop(hadoopSettings, daemons);
+        } else {
+            Map<String, Integer> processes = Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+            try {
+                startHadoop(hadoopSettings, daemons, processes);
+            } finally {
+                recordProcesses(hadoopSettings, processes);
+            }
+        }
+        if (metricsSampling) {
+            startMetricsSampler(daemons);
+        }
+        exportProperties(hadoopSettings, daemons);
+    }
+
+    /**
+     * Generates configuration of the isolated cluster (unless warm one is already running).
+     */
+    @Override
+    protected HadoopSettings isolate(HadoopSettings hadoopSettings) throws IOException {
+        isolatedCluster = new IsolatedCluster(buildDirectory);
+        sourceSettings = hadoopSettings;
+        if (keepWarm && isolatedCluster.getConfDirectory().isDirectory() && isWarmClusterRunning()) {
+            return isolatedCluster.getSettings(hadoopHome);
+        }
+        Set<String> addressProperties = new LinkedHashSet<String>();
+        for (HadoopDaemon daemon : listDaemons(hadoopSettings)) {
+            for (HadoopDaemon.Endpoint endpoint : daemon.getEndpoints()) {
+                addressProperties.add(endpoint.getAddressProperty());
+            }
+        }
+        if (hadoopSettings.isYarn()) {
+            addressProperties.addAll(Arrays.asList(YARN_AUXILIARY_ADDRESS_PROPERTIES));
+        }
+        HadoopSettings result = isolatedCluster.generate(hadoopSettings, addressProperties);
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Isolated cluster " + isolatedCluster.getId() + " configuration generated in " +
+                    isolatedCluster.getConfDirectory());
+        }
+        return result;
+    }
+
+    /**
+     * Generates configuration placing storage of the cluster into the memory-backed file system (unless warm
+     * cluster is already running with it).
+     */
+    private HadoopSettings initInMemoryStorage(HadoopSettings hadoopSettings) throws MojoExecutionException {
+        // configuration of the isolated cluster is generated anyway, so it's simply amended
+        File confDirectory = isolatedCluster != null ? isolatedCluster.getConfDirectory() :
+                new File(buildDirectory, "hmp/in-memory-storage/conf");
+        try {
+            storage = new InMemoryStorage(inMemoryStorageDirectory, buildDirectory);
+            if (sourceSettings == null) {
+                sourceSettings = hadoopSettings;
+            }
+            if (keepWarm && confDirectory.isDirectory() && isWarmClusterRunning()) {
+                return hadoopSettings.withConfDirectory(confDirectory);
+            }
+            String fileSystemType = storage.getFileSystemType();
+            if (fileSystemType != null && !fileSystemType.equals("tmpfs") && !fileSystemType.equals("ramfs")) {
+                getLog().warn(inMemoryStorageDirectory + " is not memory-backed (file system type: " +
+                        fileSystemType + ")");
+            }
+            if (inMemoryStorageDirectory.getUsableSpace() < inMemoryStorageMaximumSize) {
+                getLog().warn("Only " + toMegabytes(inMemoryStorageDirectory.getUsableSpace()) + " MB are " +
+                        "available in " + inMemoryStorageDirectory + " (hmp.inMemoryStorageMaximumSize is " +
+                        toMegabytes(inMemoryStorageMaximumSize) + " MB)");
+            }
+            // blocks left by the previous run would only take up memory
+            storage.init(autoFormatNameNode);
+            if (!confDirectory.getParentFile().isDirectory() && !confDirectory.getParentFile().mkdirs()) {
+                throw new IOException("Unable to create " + confDirectory.getParentFile());
+            }
+            ConfigurationGenerator.generate(hadoopSettings.getConfDirectory(), confDirectory,
+                    storage.getOverrides(inMemoryStorageMaximumSize));
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Storage of the cluster placed in " + storage.getDirectory() + " (up to " +
+                        toMegabytes(inMemoryStorageMaximumSize) + " MB per DataNode)");
+            }
+            return hadoopSettings.withConfDirectory(confDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to initialize in-memory storage: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Generates configuration of the nodes (unless warm cluster is already running on them).
+     */
+    private ClusterTopology initTopology(HadoopSettings hadoopSettings) throws MojoExecutionException {
+        List<String> rackList = listRacks();
+        try {
+            ClusterTopology result = new ClusterTopology(new File(buildDirectory, "hmp/topology").getCanonicalFile(),
+                    dataNodes, workers, rackList);
+            if (storage != null) {
+                result.setStorageDirectory(new File(storage.getDirectory(), "topology"));
+            }
+            if (keepWarm && isWarmClusterRunning() && result.load(hadoopSettings)) {
+                return result;
+            }
+            Set<String> addressProperties = new LinkedHashSet<String>();
+            for (HadoopDaemon daemon : listNodeDaemons(hadoopSettings, "", true, true)) {
+                for (HadoopDaemon.Endpoint endpoint : daemon.getEndpoints()) {
+                    addressProperties.add(endpoint.getAddressProperty());
+                }
+            }
+            if (hadoopSettings.isYarn()) {
+                addressProperties.add("mapreduce.shuffle.port");
+            }
+            result.generate(hadoopSettings, addressProperties);
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Configuration of " + result.getNumberOfNodes() + " node(s) (" +
+                        result.getNumberOfDataNodes() + " DataNode(s), " + result.getNumberOfWorkers() +
+                        " worker(s)" + (rackList.isEmpty() ? "" : ", racks: " + rackList) + ") generated in " +
+                        result.getDirectory());
+            }
+            return result;
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to generate cluster topology", e);
+        }
+    }
+
+    private List<String> listRacks() {
+        List<String> result = new ArrayList<String>();
+        if (racks != null) {
+            for (String rack : racks.split(",")) {
+                if (!rack.trim().isEmpty()) {
+                    result.add(rack.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isWarmClusterRunning() throws IOException {
+        ClusterState clusterState = ClusterState.open(getStateFile());
+        try {
+            return clusterState.isPresent() && isHealthy(clusterState.getEndpoints());
+        } finally {
+            clusterState.close();
+        }
+    }
+
+    /**
+     * Makes configuration directory and daemons' addresses available to the rest of the build as
+     * ${hmp.hadoopConf} and ${hmp.&lt;address property&gt;} (e.g. ${hmp.fs.default.name}).
+     */
+    private void exportProperties(HadoopSettings hadoopSettings, List<HadoopDaemon> daemons)
+            throws MojoExecutionException {
+        Map<String, String> addresses = new LinkedHashMap<String, String>();
+        for (HadoopDaemon daemon : daemons) {
+            for (HadoopDaemon.Endpoint endpoint : daemon.getEndpoints()) {
+                String value = daemon.getHadoopSettings().getConf(endpoint.getAddressProperty());
+                // in case of multiple DataNodes/workers, addresses of the first one are exported
+                if (value != null && !addresses.containsKey(endpoint.getAddressProperty())) {
+                    addresses.put(endpoint.getAddressProperty(), value);
+                }
+            }
+        }
+        exportProperties(hadoopSettings, addresses);
+    }
+
+    /**
+     * @param addresses daemons' addresses by address property
+     */
+    private void exportProperties(HadoopSettings hadoopSettings, Map<String, String> addresses)
+            throws MojoExecutionException {
+        Properties properties = project.getProperties();
+        try {
+            properties.setProperty("hmp.hadoopConf", hadoopSettings.getConfDirectory().getCanonicalPath());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to resolve " + hadoopSettings.getConfDirectory(), e);
+        }
+        if (isolatedCluster != null) {
+            properties.setProperty(IsolatedCluster.CLUSTER_ID_PROPERTY, isolatedCluster.getId());
+        }
+        for (Map.Entry<String, String> entry : addresses.entrySet()) {
+            properties.setProperty("hmp." + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private File getStateFile() {
+        return isolatedCluster != null ? isolatedCluster.getStateFile() : stateFile;
+    }
+
+    private void startWarmHadoop(HadoopSettings hadoopSettings, List<HadoopDaemon> daemons)
+            throws MojoFailureException {
+        List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+        for (HadoopDaemon daemon : daemons) {
+            endpoints.addAll(resolveAddresses(daemon));
+        }
+        try {
+            String fingerprint = "home=" + hadoopSettings.getHomeDirectory().getCanonicalPath() +
+                    ";configuration=" + hadoopSettings.getConfiguration().getDigest() + ";endpoints=" + endpoints;
+            ClusterState clusterState = ClusterState.open(getStateFile());
+            try {
+                if (clusterState.isPresent()) {
+                    if (isHealthy(clusterState.getEndpoints())) {
+                        if (!fingerprint.equals(clusterState.getFingerprint())) {
+                            throw new MojoFailureException("Hadoop cluster recorded in " + getStateFile() +
+                                    " is running with different settings (hadoopHome, configuration or ports, " +
+                                    "leases: " + clusterState.getLeases() + "). Stop it first (mvn hadoop:stop) " +
+                                    "or use another hmp.stateFile");
+                        }
+                        clusterState.setLeases(clusterState.getLeases() + 1);
+                        clusterState.save();
+                        if (getLog().isInfoEnabled()) {
+                            getLog().info("Reusing warm Hadoop cluster (leases: " + clusterState.getLeases() + ")");
+                        }
+                        return;
+                    }
+                    getLog().warn("Hadoop cluster recorded in " + getStateFile() + " is not running. " +
+                            "Starting a new one");
+                }
+                Map<String, Integer> processes =
+                        Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+                boolean started = false;
+                try {
+                    startHadoop(hadoopSettings, daemons, processes);
+                    started = true;
+                } finally {
+                    if (started) {
+                        clusterState.reset(fingerprint, endpoints);
+                        clusterState.setLeases(1);
+                    } else {
+                        clusterState.clear();
+                    }
+                    clusterState.setProcesses(processes);
+                    clusterState.setHadoopSettings(hadoopSettings);
+                    clusterState.save();
+                }
+            } finally {
+                clusterState.close();
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to update " + getStateFile() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records PIDs of the daemons and settings they were started with (so that 'stop' goal could shut cluster
+     * down without looking for them). The rest of the state (leases and endpoints of the warm cluster, see
+     * hmp.keepWarm) is left intact.
+     */
+    private void recordProcesses(HadoopSettings hadoopSettings, Map<String, Integer> processes)
+            throws MojoFailureException {
+        try {
+            ClusterState clusterState = ClusterState.open(getStateFile());
+            try {
+                clusterState.setProcesses(processes);
+                clusterState.setHadoopSettings(hadoopSettings);
+                clusterState.save();
+            } finally {
+                clusterState.close();
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to update " + getStateFile() + ": " + e.getMessage());
         }
-        startHadoop(hadoopSettings);
+    }
+
+    private boolean isHealthy(List<InetSocketAddress> endpoints) {
+        if (endpoints.isEmpty()) {
+            return false;
+        }
+        for (InetSocketAddress endpoint : endpoints) {
+            if (!DaemonReadiness.isAcceptingConnections(endpoint)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void formatNameNode(HadoopSettings hadoopSettings) throws MojoFailureException {
+        NameNodeSnapshot snapshot = null;
+        if (nameNodeSnapshots) {
+            try {
+                snapshot = getNameNodeSnapshot(hadoopSettings);
+                if (snapshot != null && snapshot.exists()) {
+                    long startTime = System.currentTimeMillis();
+                    snapshot.restore();
+                    if (getLog().isInfoEnabled()) {
+                        getLog().info("NameNode storage restored from snapshot in " +
+                                (System.currentTimeMillis() - startTime) + "ms (namenode -format took " +
+                                snapshot.getFormatTimeInMilliseconds() + "ms)");
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                getLog().warn("Unable to restore NameNode snapshot (" + e.getMessage() + "). Formatting instead");
+            }
+        }
+        long startTime = System.currentTimeMillis();
         try {
             executeCommand(hadoopSettings, hadoopSettings.getHDFSScript() + " namenode -format", "Y\n");
             //https://issues.apache.org/jira/browse/HDFS-107
-            //noinspection ResultOfMethodCallIgnored
-            String dataNodeDir = hadoopSettings.getConf("dfs.data.dir");
-            if (dataNodeDir != null) {
-                new File(dataNodeDir, "current/VERSION").delete();
-            } else {
-                getLog().warn("Unable to determine Hadoop dfs.data.dir. DataNode may fail to start");
+            for (HadoopSettings dataNodeSettings : listDataNodeSettings(hadoopSettings)) {
+                String dataNodeDir = dataNodeSettings.getConf("dfs.data.dir");
+                if (dataNodeDir != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(dataNodeDir, "current/VERSION").delete();
+                } else {
+                    getLog().warn("Unable to determine Hadoop dfs.data.dir. DataNode may fail to start");
+                }
             }
         } catch (Exception e) {
             throw new MojoFailureException("Unable to format NameNode: " + e.getMessage());
         }
+        long formatTime = System.currentTimeMillis() - startTime;
+        if (getLog().isInfoEnabled()) {
+            getLog().info("NameNode formatted in " + formatTime + "ms");
+        }
+        if (snapshot != null) {
+            try {
+                snapshot.save(formatTime);
+            } catch (IOException e) {
+                getLog().warn("Unable to take NameNode snapshot: " + e.getMessage());
+            }
+        }
     }
 
-    private void startHadoop(HadoopSettings hadoopSettings) {
-        startDaemon(hadoopSettings, "NameNode", hadoopSettings.getHDFSScript() + " namenode");
-        if (nameNodeStartupTimeoutInMilliseconds > 0) {
-            waitForDaemonStartup(hadoopSettings, "NameNode", nameNodeStartupTimeoutInMilliseconds,
-                    "dfs.http.bindAddress", 50070);
+    /**
+     * @return snapshot matching current settings, null if NameNode storage directories cannot be determined
+     */
+    private NameNodeSnapshot getNameNodeSnapshot(HadoopSettings hadoopSettings) throws IOException {
+        List<File> nameDirectories = getDirectories(hadoopSettings, "dfs.name.dir", "dfs.name.edits.dir");
+        List<File> dataDirectories = new ArrayList<File>();
+        for (HadoopSettings dataNodeSettings : listDataNodeSettings(hadoopSettings)) {
+            dataDirectories.addAll(getDirectories(dataNodeSettings, "dfs.data.dir"));
         }
-        startDaemon(hadoopSettings, "DataNode", hadoopSettings.getHDFSScript() + " datanode");
-        if (dataNodeStartupTimeoutInMilliseconds > 0) {
-            waitForDaemonStartup(hadoopSettings, "DataNode", dataNodeStartupTimeoutInMilliseconds,
-                    "dfs.datanode.http.bindAddress", 50075);
+        if (nameDirectories.isEmpty() || dataDirectories.isEmpty()) {
+            return null;
         }
-        startDaemon(hadoopSettings, "JobTracker", hadoopSettings.getMapRedScript() + " jobtracker");
-        if (jobTrackerStartupTimeoutInMilliseconds > 0) {
-            waitForDaemonStartup(hadoopSettings, "JobTracker", jobTrackerStartupTimeoutInMilliseconds,
-                    "mapred.job.tracker.http.bindAddress", 50030);
+        // generated configuration differs from build to build (ports, paths, free space), so the original one is
+        // used instead
+        String key = sourceSettings != null ? NameNodeSnapshot.computeKey(sourceSettings) +
+                (isolatedCluster != null ? "-isolated" : "") + (storage != null ? "-in-memory" : "") :
+                NameNodeSnapshot.computeKey(hadoopSettings);
+        return new NameNodeSnapshot(nameNodeSnapshotDirectory, key, nameDirectories, dataDirectories);
+    }
+
+    private List<HadoopSettings> listDataNodeSettings(HadoopSettings hadoopSettings) {
+        if (topology == null) {
+            return Collections.singletonList(hadoopSettings);
         }
-        startDaemon(hadoopSettings, "TackTracker", hadoopSettings.getMapRedScript() + " tasktracker");
-        if (taskTrackerStartupTimeoutInMilliseconds > 0) {
-            waitForDaemonStartup(hadoopSettings, "TaskTracker", taskTrackerStartupTimeoutInMilliseconds,
-                    "mapred.task.tracker.http.bindAddress", 50060);
+        List<HadoopSettings> result = new ArrayList<HadoopSettings>();
+        for (int i = 0; i < topology.getNumberOfDataNodes(); i++) {
+            result.add(topology.getNodeSettings(i));
         }
+        return result;
     }
 
-    private void waitForDaemonStartup(HadoopSettings hadoopSettings, String name, int timeoutInMilliseconds,
-                                      String bindAddressProperty, int defaultPort) {
-        int daemonBindPort = defaultPort;
-        String daemonBindAddress = hadoopSettings.getConf(bindAddressProperty);
-        if (daemonBindAddress != null) {
-            int positionOfDelimiter = daemonBindAddress.lastIndexOf(":");
-            if (positionOfDelimiter > -1) {
-                daemonBindPort = Integer.valueOf(daemonBindAddress.substring(positionOfDelimiter + 1));
+    /**
+     * @return directories listed (comma-separated) by given properties (nested ones are omitted)
+     */
+    private List<File> getDirectories(HadoopSettings hadoopSettings, String... properties) throws IOException {
+        List<File> directories = new ArrayList<File>();
+        for (String property : properties) {
+            String value = hadoopSettings.getConf(property);
+            if (value == null) {
+                continue;
+            }
+            for (String path : value.split(",")) {
+                path = path.trim();
+                if (path.startsWith("file:")) {
+                    path = URI.create(path).getPath();
+                }
+                if (!path.isEmpty()) {
+                    directories.add(new File(path).getCanonicalFile());
+                }
             }
         }
-        if (getLog().isInfoEnabled()) {
-            getLog().info("Waiting for " + name + " on port " + daemonBindPort);
+        List<File> result = new ArrayList<File>();
+        for (File directory : directories) {
+            boolean nested = false;
+            for (File candidate : directories) {
+                if (directory.getPath().startsWith(candidate.getPath() + File.separator)) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested && !result.contains(directory)) {
+                result.add(directory);
+            }
         }
-        if (!waitForPort(daemonBindPort, timeoutInMilliseconds)) {
-            getLog().warn("Timed out waiting for " + name);
+        return result;
+    }
+
+    /**
+     * @param processes map daemons' PIDs are put into (as soon as daemons are launched)
+     */
+    private void startHadoop(HadoopSettings hadoopSettings, List<HadoopDaemon> daemons,
+                             final Map<String, Integer> processes) throws MojoFailureException {
+        if (autoFormatNameNode) {
+            long startTime = System.nanoTime();
+            formatNameNode(hadoopSettings);
+            getInstrumentation().recordSince("format", startTime);
+        }
+        final Pattern startupMarker = Pattern.compile(daemonStartupMarker);
+        final Pattern consolePattern = quiet || daemonConsolePattern == null || daemonConsolePattern.isEmpty() ?
+                null : Pattern.compile(daemonConsolePattern);
+        DependencyScheduler scheduler = new DependencyScheduler();
+        for (final HadoopDaemon daemon : daemons) {
+            scheduler.schedule(daemon.getName(), daemon.getDependencies(), new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    long startTime = System.nanoTime();
+                    DaemonReadiness readiness = new DaemonReadiness(startupMarker);
+                    startDaemon(daemon.getHadoopSettings(), daemon.getName(), daemon.getCommand(), readiness,
+                            processes, consolePattern);
+                    if (daemon.getStartupTimeoutInMilliseconds() > 0) {
+                        waitForDaemonStartup(daemon, readiness);
+                    }
+                    getInstrumentation().recordSince("startup." + daemon.getName(), startTime);
+                    return null;
+                }
+            });
+        }
+        DependencyScheduler.Report report;
+        try {
+            report = scheduler.execute(startupTimeoutInMilliseconds);
+        } catch (TimeoutException e) {
+            throw new MojoFailureException("Unable to start Hadoop: " + e.getMessage());
+        } catch (ExecutionException e) {
+            throw new MojoFailureException("Unable to start Hadoop: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop startup has been interrupted");
+        }
+        if (getLog().isInfoEnabled()) {
+            for (HadoopDaemon daemon : daemons) {
+                getLog().info(daemon.getName() + " started in " + report.getTimeInMilliseconds(daemon.getName()) +
+                        "ms (after " + report.getWaitTimeInMilliseconds(daemon.getName()) + "ms of waiting)");
+            }
+            getLog().info("Hadoop started in " + report.getTotalTimeInMilliseconds() + "ms (critical path: " +
+                    report.getCriticalPath() + ")");
+            long residentSetSize = 0;
+            for (Integer pid : processes.values()) {
+                long processResidentSetSize = Processes.getResidentSetSize(pid);
+                if (processResidentSetSize < 0) {
+                    residentSetSize = -1;
+                    break;
+                }
+                residentSetSize += processResidentSetSize;
+            }
+            if (residentSetSize > 0) {
+                getLog().info("Resident memory of the daemons: " + toMegabytes(residentSetSize) + " MB (" +
+                        processes.size() + " JVM(s))");
+            }
         }
     }
 
-    private boolean waitForPort(int port, int timeoutInMilliseconds) {
+    /**
+     * Starts all daemons inside of Maven JVM (see {@link EmbeddedCluster}). Cluster is stopped by 'stop' goal or
+     * along with JVM.
+     */
+    private void startEmbeddedHadoop(HadoopSettings hadoopSettings)
+            throws MojoExecutionException, MojoFailureException {
+        if (keepWarm) {
+            throw new MojoExecutionException("hmp.embedded=true cannot be combined with hmp.keepWarm=true " +
+                    "(embedded cluster doesn't outlive Maven JVM)");
+        }
+        if (hadoopSettings.isYarn()) {
+            throw new MojoExecutionException("hmp.embedded=true is supported for MRv1 only");
+        }
+        if (!autoShutdown) {
+            getLog().warn("Embedded Hadoop cluster is stopped along with Maven JVM (hmp.autoShutdown=false " +
+                    "has no effect)");
+        }
+        long initialResidentSetSize = Processes.getResidentSetSize();
         long startTime = System.currentTimeMillis();
-        do {
+        long startTimeInNanoseconds = System.nanoTime();
+        EmbeddedCluster cluster;
+        try {
+            cluster = new EmbeddedCluster(hadoopSettings, storage != null ? new File(storage.getDirectory(),
+                    "embedded") : new File(buildDirectory, "hmp/embedded"));
+            File logFile = new File(daemonLogDirectory, "Embedded.log");
+            cluster.redirectLogs(logFile, daemonLogMaximumFileSize,
+                    !quiet && daemonConsolePattern != null && !daemonConsolePattern.isEmpty());
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Starting embedded Hadoop (output goes to " + logFile + ")");
+            }
+            cluster.start(dataNodes, workers, listRacks(), autoFormatNameNode);
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to start embedded Hadoop: " + e.getMessage());
+        }
+        getInstrumentation().recordSince("startup.embedded", startTimeInNanoseconds);
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Embedded Hadoop started in " + (System.currentTimeMillis() - startTime) + "ms (" +
+                    dataNodes + " DataNode(s), " + workers + " TaskTracker(s))");
+            long residentSetSize = Processes.getResidentSetSize();
+            if (initialResidentSetSize > 0 && residentSetSize > 0) {
+                getLog().info("Resident memory of Maven JVM: " + toMegabytes(residentSetSize) + " MB (+" +
+                        toMegabytes(residentSetSize - initialResidentSetSize) + " MB since startup of the daemons)");
+            }
+        }
+        Map<String, String> addresses = new LinkedHashMap<String, String>();
+        for (String property : new String[] {"fs.default.name", "mapred.job.tracker"}) {
             try {
-                new Socket("localhost", port).close();
-                return true;
+                String value = cluster.getConf(property);
+                if (value != null) {
+                    addresses.put(property, value);
+                }
             } catch (IOException e) {
-                try {
-                    TimeUnit.SECONDS.sleep(1);
-                } catch (InterruptedException e1) {
+                getLog().warn("Unable to resolve " + property + " of embedded Hadoop: " + e.getMessage());
+            }
+        }
+        exportProperties(hadoopSettings, addresses);
+    }
+
+    /**
+     * Starts sampling metrics of the daemons (see {@link MetricsSampler}), which goes on until 'stop' goal.
+     */
+    private void startMetricsSampler(List<HadoopDaemon> daemons) throws MojoExecutionException {
+        Map<String, String> addresses = new LinkedHashMap<String, String>();
+        for (HadoopDaemon daemon : daemons) {
+            for (HadoopDaemon.Endpoint endpoint : daemon.getEndpoints()) {
+                String addressProperty = endpoint.getAddressProperty();
+                if (addressProperty.contains("http") || addressProperty.contains("webapp")) {
+                    InetSocketAddress address = resolveAddress(daemon.getHadoopSettings().getConf(addressProperty),
+                            endpoint.getDefaultPort());
+                    if (address.getPort() != 0) {
+                        addresses.put(daemon.getName(), address.getHostString() + ":" + address.getPort());
+                    }
+                    break;
                 }
             }
-        } while (System.currentTimeMillis() - startTime < timeoutInMilliseconds);
-        return false;
+        }
+        MetricsSampler sampler;
+        try {
+            sampler = new MetricsSampler(addresses, metricsSamplingIntervalInMilliseconds, metricsTimelineFile);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+        try {
+            sampler.start();
+        } catch (IOException e) {
+            getLog().warn("Unable to start metrics sampler: " + e.getMessage());
+            return;
+        }
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Sampling metrics of " + addresses.size() + " daemon(s) every " +
+                    metricsSamplingIntervalInMilliseconds + "ms (timeline goes to " + metricsTimelineFile + ")");
+        }
+    }
+
+    private long toMegabytes(long bytes) {
+        return Math.round(bytes / (1024d * 1024));
     }
 
-    private void startDaemon(final HadoopSettings hadoopSettings, final String name, final String command) {
+    /**
+     * HDFS and MapReduce daemons are independent of each other (JobTracker/ResourceManager retries until HDFS
+     * becomes available), while DataNodes require running NameNode and TaskTrackers/NodeManagers require running
+     * JobTracker/ResourceManager (nodes are started concurrently). MapReduce daemons are chosen based on the
+     * generation of Hadoop found in hadoopHome (MRv1 or YARN).
+     */
+    private List<HadoopDaemon> listDaemons(HadoopSettings hadoopSettings) {
+        if (topology == null) {
+            List<HadoopDaemon> daemons = listMasterDaemons(hadoopSettings);
+            daemons.addAll(listNodeDaemons(hadoopSettings, "", true, true));
+            return daemons;
+        }
+        List<HadoopDaemon> daemons = listMasterDaemons(topology.getMasterSettings());
+        for (int i = 0; i < topology.getNumberOfNodes(); i++) {
+            daemons.addAll(listNodeDaemons(topology.getNodeSettings(i), "-" + (i + 1),
+                    i < topology.getNumberOfDataNodes(), i < topology.getNumberOfWorkers()));
+        }
+        return daemons;
+    }
+
+    private List<HadoopDaemon> listMasterDaemons(HadoopSettings hadoopSettings) {
+        List<HadoopDaemon> daemons = new ArrayList<HadoopDaemon>();
+        daemons.add(new HadoopDaemon("NameNode", hadoopSettings, hadoopSettings.getHDFSScript() + " namenode",
+                nameNodeStartupTimeoutInMilliseconds).
+                addEndpoint("fs.default.name", 9000).
+                addEndpoint("dfs.http.address", 50070));
+        if (hadoopSettings.isYarn()) {
+            daemons.add(new HadoopDaemon("ResourceManager", hadoopSettings,
+                    hadoopSettings.getYarnScript() + " resourcemanager", resourceManagerStartupTimeoutInMilliseconds).
+                    addEndpoint("yarn.resourcemanager.address", 8032).
+                    addEndpoint("yarn.resourcemanager.scheduler.address", 8030).
+                    addEndpoint("yarn.resourcemanager.resource-tracker.address", 8031).
+                    addEndpoint("yarn.resourcemanager.admin.address", 8033).
+                    addEndpoint("yarn.resourcemanager.webapp.address", 8088));
+            // history server creates its directories in HDFS on startup
+            daemons.add(new HadoopDaemon("JobHistoryServer", hadoopSettings,
+                    hadoopSettings.getMapRedScript() + " historyserver", jobHistoryServerStartupTimeoutInMilliseconds,
+                    "NameNode").
+                    addEndpoint("mapreduce.jobhistory.address", 10020).
+                    addEndpoint("mapreduce.jobhistory.webapp.address", 19888));
+        } else {
+            daemons.add(new HadoopDaemon("JobTracker", hadoopSettings, hadoopSettings.getMapRedScript() + " jobtracker",
+                    jobTrackerStartupTimeoutInMilliseconds).
+                    addEndpoint("mapred.job.tracker", 9001).
+                    addEndpoint("mapred.job.tracker.http.address", 50030));
+        }
+        return daemons;
+    }
+
+    /**
+     * @param suffix appended to the names of the daemons (to tell nodes apart)
+     */
+    private List<HadoopDaemon> listNodeDaemons(HadoopSettings hadoopSettings, String suffix, boolean dataNode,
+                                               boolean worker) {
+        List<HadoopDaemon> daemons = new ArrayList<HadoopDaemon>();
+        if (dataNode) {
+            daemons.add(new HadoopDaemon("DataNode" + suffix, hadoopSettings,
+                    hadoopSettings.getHDFSScript() + " datanode", dataNodeStartupTimeoutInMilliseconds, "NameNode").
+                    addEndpoint("dfs.datanode.address", 50010).
+                    addEndpoint("dfs.datanode.ipc.address", 50020).
+                    addEndpoint("dfs.datanode.http.address", 50075));
+        }
+        if (worker && hadoopSettings.isYarn()) {
+            daemons.add(new HadoopDaemon("NodeManager" + suffix, hadoopSettings,
+                    hadoopSettings.getYarnScript() + " nodemanager", nodeManagerStartupTimeoutInMilliseconds,
+                    "ResourceManager").
+                    addEndpoint("yarn.nodemanager.address", 0).
+                    addEndpoint("yarn.nodemanager.localizer.address", 8040).
+                    addEndpoint("yarn.nodemanager.webapp.address", 8042));
+        } else if (worker) {
+            daemons.add(new HadoopDaemon("TaskTracker" + suffix, hadoopSettings,
+                    hadoopSettings.getMapRedScript() + " tasktracker", taskTrackerStartupTimeoutInMilliseconds,
+                    "JobTracker").
+                    addEndpoint("mapred.task.tracker.http.address", 50060));
+        }
+        return daemons;
+    }
+
+    /**
+     * @throws IOException if daemon exited before it became ready
+     */
+    private void waitForDaemonStartup(HadoopDaemon daemon, DaemonReadiness readiness)
+            throws IOException, InterruptedException {
+        List<InetSocketAddress> addresses = resolveAddresses(daemon);
         if (getLog().isInfoEnabled()) {
-            getLog().info("Starting " + name);
+            getLog().info("Waiting for " + daemon.getName() + " on " + addresses);
+        }
+        boolean ready;
+        try {
+            ready = readiness.await(addresses, daemon.getStartupTimeoutInMilliseconds());
+        } finally {
+            getInstrumentation().increment(Instrumentation.READINESS_RETRIES, readiness.getNumberOfRetries());
         }
+        if (!ready) {
+            getLog().warn("Timed out waiting for " + daemon.getName());
+        }
+    }
+
+    private List<InetSocketAddress> resolveAddresses(HadoopDaemon daemon) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (HadoopDaemon.Endpoint endpoint : daemon.getEndpoints()) {
+            InetSocketAddress address = resolveAddress(
+                    daemon.getHadoopSettings().getConf(endpoint.getAddressProperty()),
+                    endpoint.getDefaultPort());
+            if (address.getPort() != 0) { // ephemeral port cannot be probed
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @param address [scheme://]host:port[/path] (wildcard host is treated as localhost)
+     */
+    private InetSocketAddress resolveAddress(String address, int defaultPort) {
+        String host = "localhost";
+        int port = defaultPort;
+        if (address != null) {
+            int positionOfScheme = address.indexOf("://");
+            if (positionOfScheme > -1) {
+                address = address.substring(positionOfScheme + 3);
+            }
+            int positionOfPath = address.indexOf("/");
+            if (positionOfPath > -1) {
+                address = address.substring(0, positionOfPath);
+            }
+            int positionOfDelimiter = address.lastIndexOf(":");
+            if (positionOfDelimiter > -1) {
+                port = Integer.valueOf(address.substring(positionOfDelimiter + 1));
+                address = address.substring(0, positionOfDelimiter);
+            }
+            if (!address.isEmpty() && !address.equals("0.0.0.0")) {
+                host = address;
+            }
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @param readiness listener daemon's output and exit are reported to
+     * @param consolePattern pattern lines of daemon's output should match in order to be mirrored to the console,
+     * null if none of them should be
+     */
+    private void startDaemon(final HadoopSettings hadoopSettings, final String name, final String command,
+                             final DaemonReadiness readiness, final Map<String, Integer> processes,
+                             Pattern consolePattern) throws IOException {
+        final DaemonLog daemonLog = new DaemonLog(name, daemonLogDirectory, consolePattern, System.out,
+                daemonLogBufferSize, daemonLogMaximumFileSize);
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Starting " + name + " (output goes to " + daemonLog.getFile() + ")");
+        }
+        final ExecutionStreamHandler streamHandler = new ExecutionStreamHandler(true, null, new LineListener() {
+
+            @Override
+            public void onLine(String line) {
+                readiness.onLine(line);
+                daemonLog.onLine(line);
+            }
+        });
+        final ProcessListener processListener = new ProcessListener() {
+
+            @Override
+            public void onStart(Process process) {
+                Integer pid = Processes.getPid(process);
+                if (pid != null) {
+                    processes.put(name, pid);
+                } else {
+                    getLog().warn("Unable to determine PID of " + name + " (it won't be stopped " +
+                            "unless 'stop' goal is executed with hmp.stopUntrackedDaemons=true)");
+                }
+            }
+        };
         Thread daemon = new Thread() {
 
             @Override
             public void run() {
+                String exitReason = name + " has exited";
                 try {
-                    executeCommand(hadoopSettings, command, autoShutdown);
+                    executeCommand(hadoopSettings, command, streamHandler, autoShutdown && !keepWarm,
+                            processListener);
+                } catch (ExecuteException e) {
+                    if (e.getExitValue() == EXIT_VALUE_ON_SIGTERM || e.getExitValue() == EXIT_VALUE_ON_SIGKILL) {
+                        if (getLog().isDebugEnabled()) {
+                            getLog().debug(name + " has been terminated");
+                        }
+                    } else {
+                        getLog().error(e);
+                    }
+                    exitReason = name + " has exited with code " + e.getExitValue();
                 } catch (IOException e) {
                     getLog().error(e);
+                    exitReason = name + " has failed to start (" + e.getMessage() + ")";
+                } finally {
+                    daemonLog.close();
+                    // no-op unless daemon is still being waited for
+                    readiness.onExit(exitReason + " (see " + daemonLog.getFile() + ")");
                 }
             }
         };
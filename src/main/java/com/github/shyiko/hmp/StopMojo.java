@@ -15,19 +15,27 @@
  */
 package com.github.shyiko.hmp;
 
-import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.Executor;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
 import sun.jvmstat.monitor.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @goal stop
@@ -35,7 +43,15 @@ import java.util.Set;
  */
 public class StopMojo extends AbstractMojo {
 
-    private static String[] HADOOP_CLASSES = {"NameNode", "DataNode", "JobTracker", "TaskTracker"};
+    private static String[] HADOOP_CLASSES = {"NameNode", "DataNode", "JobTracker", "TaskTracker",
+        "ResourceManager", "NodeManager", "JobHistoryServer"};
+
+    private static final int JOB_POLLING_INTERVAL_IN_MILLISECONDS = 1000;
+
+    /**
+     * Daemons stopped before the rest of them (masters).
+     */
+    private static String[] WORKER_CLASSES = {"DataNode", "TaskTracker", "NodeManager"};
 
     /**
      * True indicates that any output should be suppressed, false otherwise
@@ -43,34 +59,547 @@ public class StopMojo extends AbstractMojo {
      */
     private boolean quiet;
 
+    /**
+     * True if warm cluster (see hmp.keepWarm of 'start' goal) should be left running (only lease is released),
+     * false if all daemons must be stopped
+     * @parameter expression="${hmp.keepWarm}" default-value="false"
+     */
+    private boolean keepWarm;
+
+    /**
+     * File used to keep track of the warm cluster (ignored with hmp.isolated=true)
+     * @parameter expression="${hmp.stateFile}" default-value="${java.io.tmpdir}/hmp.state"
+     */
+    private File stateFile;
+
+    /**
+     * True if only daemons of the isolated cluster started by this build (see hmp.isolated of 'start' goal)
+     * should be stopped, false if all daemons except for those belonging to isolated clusters
+     * @parameter expression="${hmp.isolated}" default-value="false"
+     */
+    private boolean isolated;
+
+    /**
+     * Time daemons are given to exit after SIGTERM (those which don't are sent SIGKILL). Embedded cluster (see
+     * hmp.embedded of 'start' goal) which doesn't stop in time is left to be terminated along with JVM
+     * @parameter expression="${hmp.shutdownTimeoutInMilliseconds}" default-value="30000"
+     */
+    private int shutdownTimeoutInMilliseconds;
+
+    /**
+     * What to do with the jobs which are still running when cluster is being stopped: "kill", "wait" (up to
+     * hmp.runningJobTimeoutInMilliseconds, after which they are killed) or "ignore" (jobs die along with daemons)
+     * @parameter expression="${hmp.runningJobPolicy}" default-value="kill"
+     */
+    private String runningJobPolicy;
+
+    /**
+     * Time running jobs are given to complete (see hmp.runningJobPolicy), as well as the time killed jobs are
+     * given to be gone from the JobTracker
+     * @parameter expression="${hmp.runningJobTimeoutInMilliseconds}" default-value="60000"
+     */
+    private int runningJobTimeoutInMilliseconds;
+
+    /**
+     * True if NameNode should be put into safe mode and its namespace saved before daemons are stopped, so that
+     * next start (with hmp.autoFormatNameNode=false) doesn't have to replay edit log, false otherwise
+     * @parameter expression="${hmp.saveNamespace}" default-value="true"
+     */
+    private boolean saveNamespace;
+
+    /**
+     * True if, in addition to the daemons recorded by 'start' goal, all Hadoop daemons found on the host should be
+     * stopped (which involves attaching to every JVM through jvmstat), false otherwise
+     * @parameter expression="${hmp.stopUntrackedDaemons}" default-value="false"
+     */
+    private boolean stopUntrackedDaemons;
+
+    /**
+     * File timings of the goals executed so far are written to (see hmp.buildReportFile of the other goals)
+     * @parameter expression="${hmp.buildReportFile}" default-value="${project.build.directory}/hadoop-build.json"
+     */
+    private File buildReportFile;
+
+    /**
+     * @parameter expression="${project.build.directory}"
+     * @readonly
+     */
+    private File buildDirectory;
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * @parameter expression="${session.startTime}"
+     * @readonly
+     */
+    private Date buildStartTime;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        Instrumentation instrumentation = Instrumentation.get(buildDirectory, buildStartTime);
+        instrumentation.startGoal("stop");
+        boolean succeeded = false;
+        try {
+            stop();
+            succeeded = true;
+        } finally {
+            instrumentation.completeGoal(succeeded);
+            instrumentation.report(getLog(), buildReportFile, project);
+        }
+    }
+
+    private void stop() throws MojoExecutionException, MojoFailureException {
+        if (!"kill".equals(runningJobPolicy) && !"wait".equals(runningJobPolicy) &&
+                !"ignore".equals(runningJobPolicy)) {
+            throw new MojoExecutionException("Unknown hmp.runningJobPolicy " + runningJobPolicy);
+        }
+        EmbeddedCluster embeddedCluster = EmbeddedCluster.getRunning();
+        if (embeddedCluster != null) {
+            shutdown(embeddedCluster);
+            return;
+        }
+        MetricsSampler sampler = MetricsSampler.getRunning();
+        if (sampler != null) {
+            stopMetricsSampler(sampler);
+        }
+        String clusterIdArgument = "-D" + IsolatedCluster.CLUSTER_ID_PROPERTY + "=";
+        String expectedClusterIdArgument = null;
+        if (isolated) {
+            try {
+                IsolatedCluster isolatedCluster = new IsolatedCluster(buildDirectory);
+                stateFile = isolatedCluster.getStateFile();
+                expectedClusterIdArgument = clusterIdArgument + isolatedCluster.getId();
+            } catch (IOException e) {
+                throw new MojoFailureException("Unable to resolve isolated cluster: " + e.getMessage());
+            }
+        }
+        Map<String, Integer> processes;
+        HadoopSettings hadoopSettings;
         try {
-            List<JavaProcess> processes = listJavaProcesses();
-            for (JavaProcess process : processes) {
-                String className = process.getClassName();
-                if (className.contains("hadoop")) {
-                    for (String cls : HADOOP_CLASSES) {
-                        if (className.contains(cls)) {
-                            int pid = process.getPid();
-                            if (getLog().isInfoEnabled()) {
-                                getLog().info("Killing " + cls + " using PID " + pid);
+            ClusterState clusterState = ClusterState.open(stateFile);
+            try {
+                if (keepWarm) {
+                    if (clusterState.isPresent()) {
+                        int leases = Math.max(clusterState.getLeases() - 1, 0);
+                        clusterState.setLeases(leases);
+                        clusterState.save();
+                        if (getLog().isInfoEnabled()) {
+                            getLog().info("Leaving warm Hadoop cluster running (leases: " + leases + ")");
+                        }
+                    }
+                    return;
+                }
+                if (clusterState.getLeases() > 0) {
+                    getLog().warn("Stopping Hadoop cluster which is still leased by " + clusterState.getLeases() +
+                            " build(s)");
+                }
+                processes = clusterState.getProcesses();
+                hadoopSettings = clusterState.getHadoopSettings();
+                clusterState.clear();
+                clusterState.save();
+            } finally {
+                clusterState.close();
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to update " + stateFile + ": " + e.getMessage());
+        }
+        Map<Integer, String> daemons = new LinkedHashMap<Integer, String>();
+        for (Map.Entry<String, Integer> entry : processes.entrySet()) {
+            int pid = entry.getValue();
+            // PID might have been reused by now (e.g. if daemons crashed or host has been rebooted)
+            String commandLine = Processes.getCommandLine(pid);
+            if (commandLine == null) {
+                if (isRunning(pid)) {
+                    getLog().warn("Unable to confirm that process " + pid + " is " + entry.getKey() +
+                            " (left running)");
+                }
+            } else
+            if (commandLine.contains("org.apache.hadoop") &&
+                    (expectedClusterIdArgument == null || commandLine.contains(expectedClusterIdArgument))) {
+                daemons.put(pid, entry.getKey());
+            }
+        }
+        if (stopUntrackedDaemons) {
+            try {
+                for (JavaProcess process : listJavaProcesses()) {
+                    String className = process.getClassName();
+                    String jvmArguments = process.getJvmArguments();
+                    boolean belongsToCluster = expectedClusterIdArgument != null ?
+                            (" " + jvmArguments + " ").contains(" " + expectedClusterIdArgument + " ") :
+                            !jvmArguments.contains(clusterIdArgument);
+                    if (className.contains("hadoop") && belongsToCluster && !daemons.containsKey(process.getPid())) {
+                        for (String cls : HADOOP_CLASSES) {
+                            if (className.contains(cls)) {
+                                daemons.put(process.getPid(), cls);
+                                break;
                             }
-                            kill(pid);
-                            break;
                         }
                     }
                 }
+            } catch (Exception e) {
+                throw new MojoFailureException(e.getMessage());
+            }
+        }
+        shutdown(daemons, hadoopSettings);
+        if (hadoopSettings != null) {
+            releaseInMemoryStorage(hadoopSettings);
+        }
+    }
+
+    private boolean isRunning(int pid) throws MojoFailureException {
+        try {
+            return Processes.isRunning(pid);
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to check whether process " + pid + " is running: " +
+                    e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop shutdown has been interrupted");
+        }
+    }
+
+    /**
+     * Shuts cluster down in stages: running jobs are killed (or waited for), NameNode namespace is saved, workers
+     * are stopped and then masters are.
+     * @param daemons PIDs mapped to the names of the daemons
+     * @param hadoopSettings settings cluster has been started with, null if unknown (in which case jobs and
+     * namespace are left as is)
+     */
+    private void shutdown(Map<Integer, String> daemons, HadoopSettings hadoopSettings)
+            throws MojoExecutionException, MojoFailureException {
+        if (daemons.isEmpty()) {
+            if (getLog().isInfoEnabled()) {
+                getLog().info("No running Hadoop daemons found");
+            }
+            return;
+        }
+        Map<Integer, String> workers = new LinkedHashMap<Integer, String>();
+        Map<Integer, String> masters = new LinkedHashMap<Integer, String>();
+        for (Map.Entry<Integer, String> entry : daemons.entrySet()) {
+            (isWorker(entry.getValue()) ? workers : masters).put(entry.getKey(), entry.getValue());
+        }
+        Map<String, Long> stageTimes = new LinkedHashMap<String, Long>();
+        long startTime = System.nanoTime();
+        if (hadoopSettings != null && (!"ignore".equals(runningJobPolicy) || saveNamespace)) {
+            HadoopAdmin admin = null;
+            try {
+                admin = new HadoopAdmin(HadoopRuntime.get(hadoopSettings), hadoopSettings.getDFSURI());
+            } catch (IOException e) {
+                getLog().warn("Unable to initialize in-process client (" + e.getMessage() + "). " +
+                        "Running jobs and NameNode namespace are left as is");
+            }
+            if (admin != null) {
+                try {
+                    if (!"ignore".equals(runningJobPolicy) && (masters.containsValue("JobTracker") ||
+                            masters.containsValue("ResourceManager"))) {
+                        long stageStartTime = System.nanoTime();
+                        drainJobs(admin, masters.containsValue("NameNode"));
+                        stageTimes.put("jobs", System.nanoTime() - stageStartTime);
+                    }
+                    if (saveNamespace && masters.containsValue("NameNode")) {
+                        long stageStartTime = System.nanoTime();
+                        try {
+                            admin.saveNamespace();
+                        } catch (IOException e) {
+                            getLog().warn("Unable to save NameNode namespace: " + e.getMessage());
+                        }
+                        stageTimes.put("namespace", System.nanoTime() - stageStartTime);
+                    }
+                } finally {
+                    try {
+                        admin.close();
+                    } catch (IOException e) {
+                        getLog().debug(e);
+                    }
+                }
+            }
+        }
+        long stageStartTime = System.nanoTime();
+        terminate(workers);
+        stageTimes.put("workers", System.nanoTime() - stageStartTime);
+        stageStartTime = System.nanoTime();
+        terminate(masters);
+        stageTimes.put("masters", System.nanoTime() - stageStartTime);
+        recordStageTimes(stageTimes);
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Hadoop stopped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) +
+                    "ms (" + daemons.size() + " daemon(s); " + formatStageTimes(stageTimes) + ")");
+        }
+    }
+
+    /**
+     * Shuts down cluster running inside of Maven JVM (see hmp.embedded of 'start' goal). Running jobs are handled
+     * the same way as with forked daemons.
+     */
+    private void shutdown(final EmbeddedCluster embeddedCluster) throws MojoExecutionException, MojoFailureException {
+        Map<String, Long> stageTimes = new LinkedHashMap<String, Long>();
+        long startTime = System.nanoTime();
+        if (!"ignore".equals(runningJobPolicy)) {
+            HadoopSettings hadoopSettings = embeddedCluster.getHadoopSettings();
+            HadoopAdmin admin = null;
+            try {
+                admin = new HadoopAdmin(HadoopRuntime.get(hadoopSettings), hadoopSettings.getDFSURI());
+            } catch (IOException e) {
+                getLog().warn("Unable to initialize in-process client (" + e.getMessage() + "). " +
+                        "Running jobs are left as is");
+            }
+            if (admin != null) {
+                try {
+                    drainJobs(admin, true);
+                } finally {
+                    try {
+                        admin.close();
+                    } catch (IOException e) {
+                        getLog().debug(e);
+                    }
+                }
+            }
+            stageTimes.put("jobs", System.nanoTime() - startTime);
+        }
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Stopping embedded Hadoop");
+        }
+        long stageStartTime = System.nanoTime();
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                embeddedCluster.shutdown();
+                return null;
+            }
+        });
+        Thread thread = new Thread(task, "hmp-shutdown");
+        thread.setDaemon(true);
+        thread.start();
+        boolean stopped = false;
+        try {
+            task.get(shutdownTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+            stopped = true;
+        } catch (TimeoutException e) {
+            // TaskTracker occasionally waits for the heartbeat to time out
+            getLog().warn("Embedded Hadoop didn't stop within " + shutdownTimeoutInMilliseconds + "ms " +
+                    "(daemons which are still running are terminated along with JVM)");
+        } catch (ExecutionException e) {
+            throw new MojoFailureException("Unable to stop embedded Hadoop: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop shutdown has been interrupted");
+        }
+        stageTimes.put("daemons", System.nanoTime() - stageStartTime);
+        recordStageTimes(stageTimes);
+        if (getLog().isInfoEnabled()) {
+            getLog().info("Embedded Hadoop stopped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) +
+                    "ms (" + formatStageTimes(stageTimes) + ")");
+        }
+        if (stopped) {
+            releaseInMemoryStorage(embeddedCluster.getHadoopSettings());
+        }
+    }
+
+    /**
+     * Removes in-memory storage of the cluster (see hmp.inMemoryStorage of 'start' goal), if there is one.
+     */
+    private void releaseInMemoryStorage(HadoopSettings hadoopSettings) {
+        try {
+            if (InMemoryStorage.release(hadoopSettings) && getLog().isInfoEnabled()) {
+                getLog().info("In-memory storage of the cluster removed");
+            }
+        } catch (IOException e) {
+            getLog().warn("Unable to remove in-memory storage of the cluster: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops sampling metrics of the daemons (see hmp.metricsSampling of 'start' goal), writes summary next to the
+     * timeline and logs it.
+     */
+    @SuppressWarnings("unchecked")
+    private void stopMetricsSampler(MetricsSampler sampler) throws MojoFailureException {
+        Map<String, Object> summary;
+        try {
+            summary = sampler.stop();
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to write " + sampler.getTimelineFile() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop shutdown has been interrupted");
+        }
+        String timelineFileName = sampler.getTimelineFile().getName();
+        File summaryFile = new File(sampler.getTimelineFile().getParentFile(), (timelineFileName.endsWith(".csv") ?
+                timelineFileName.substring(0, timelineFileName.length() - 4) : timelineFileName) + ".json");
+        try {
+            Json.write(summary, summaryFile);
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to write " + summaryFile + ": " + e.getMessage());
+        }
+        if (!getLog().isInfoEnabled()) {
+            return;
+        }
+        getLog().info("Metrics of the daemons (sampled every " + sampler.getIntervalInMilliseconds() + "ms for " +
+                summary.get("durationInMilliseconds") + "ms, timeline: " + sampler.getTimelineFile() + "):");
+        String format = "  %-16s %8s %16s %14s %18s %10s %12s %14s";
+        getLog().info(String.format(Locale.ENGLISH, format, "", "samples", "heap avg/max, MB", "GC time, ms",
+                "RPC queue max, ms", "read, MB", "written, MB", "tasks avg/max"));
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) summary.get("daemons")).entrySet()) {
+            Map<String, Object> daemon = (Map<String, Object>) entry.getValue();
+            getLog().info(String.format(Locale.ENGLISH, format, entry.getKey(),
+                    daemon.get("samples") + (((Integer) daemon.get("failedSamples")) > 0 ?
+                            "(-" + daemon.get("failedSamples") + ")" : ""),
+                    formatAverageAndMaximum(daemon.get(MetricsSampler.HEAP_USED), "%.0f/%.0f"),
+                    formatNumber(daemon.get(MetricsSampler.GC_TIME), 1, "%.0f"),
+                    formatMaximum(daemon.get(MetricsSampler.RPC_QUEUE_TIME)),
+                    formatNumber(daemon.get(MetricsSampler.BYTES_READ), 1024 * 1024, "%.1f"),
+                    formatNumber(daemon.get(MetricsSampler.BYTES_WRITTEN), 1024 * 1024, "%.1f"),
+                    formatAverageAndMaximum(daemon.get(MetricsSampler.RUNNING_TASKS), "%.1f/%.0f")));
+        }
+    }
+
+    private String formatNumber(Object value, double divisor, String format) {
+        return value == null ? "-" : String.format(Locale.ENGLISH, format, ((Number) value).doubleValue() / divisor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String formatMaximum(Object value) {
+        return value == null ? "-" : formatNumber(((Map<String, Object>) value).get("max"), 1, "%.1f");
+    }
+
+    @SuppressWarnings("unchecked")
+    private String formatAverageAndMaximum(Object value, String format) {
+        if (value == null) {
+            return "-";
+        }
+        Map<String, Object> values = (Map<String, Object>) value;
+        return String.format(Locale.ENGLISH, format, values.get("avg"), values.get("max"));
+    }
+
+    /**
+     * @param stageTimes time of each stage in nanoseconds
+     */
+    private void recordStageTimes(Map<String, Long> stageTimes) {
+        Instrumentation instrumentation = Instrumentation.get(buildDirectory, buildStartTime);
+        for (Map.Entry<String, Long> entry : stageTimes.entrySet()) {
+            instrumentation.record("shutdown." + entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param stageTimes time of each stage in nanoseconds
+     */
+    private String formatStageTimes(Map<String, Long> stageTimes) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : stageTimes.entrySet()) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ").
+                    append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+        }
+        return sb.toString();
+    }
+
+    private boolean isWorker(String name) {
+        for (String cls : WORKER_CLASSES) {
+            if (name.startsWith(cls)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the running jobs to complete (if hmp.runningJobPolicy=wait) and kills those which are still running,
+     * waiting (up to hmp.runningJobTimeoutInMilliseconds) for JobTracker to stop reporting them.
+     * @param safeMode true if NameNode should be put into safe mode first, so that no more jobs can be submitted
+     * (with hmp.runningJobPolicy=wait it's done once waiting is over, as running jobs have to write their output)
+     */
+    private void drainJobs(HadoopAdmin admin, boolean safeMode) throws MojoFailureException {
+        try {
+            boolean wait = "wait".equals(runningJobPolicy);
+            if (safeMode && !wait) {
+                enterSafeMode(admin);
+            }
+            List<String> jobs = admin.listRunningJobs();
+            if (wait && !jobs.isEmpty()) {
+                if (getLog().isInfoEnabled()) {
+                    getLog().info("Waiting for " + jobs.size() + " running job(s) to complete");
+                }
+                long deadline = System.currentTimeMillis() + runningJobTimeoutInMilliseconds;
+                while (!jobs.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(JOB_POLLING_INTERVAL_IN_MILLISECONDS);
+                    jobs = admin.listRunningJobs();
+                }
+            }
+            if (safeMode && wait) {
+                enterSafeMode(admin);
+                jobs = admin.listRunningJobs();
             }
-        } catch (Exception e) {
-            throw new MojoFailureException(e.getMessage());
+            if (jobs.isEmpty()) {
+                return;
+            }
+            for (String job : jobs) {
+                getLog().warn("Killing " + job);
+                admin.killJob(job);
+            }
+            long deadline = System.currentTimeMillis() + runningJobTimeoutInMilliseconds;
+            List<String> killedJobs = jobs;
+            while (!(jobs = listRunning(admin, killedJobs)).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(JOB_POLLING_INTERVAL_IN_MILLISECONDS);
+            }
+            if (!jobs.isEmpty()) {
+                getLog().warn(jobs + " still reported as running " + runningJobTimeoutInMilliseconds +
+                        "ms after having been killed");
+            }
+        } catch (IOException e) {
+            getLog().warn("Unable to drain running jobs: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop shutdown has been interrupted");
         }
     }
 
-    private void kill(int pid) throws IOException {
-        Executor executor = new DefaultExecutor();
-        executor.setStreamHandler(new ExecutionStreamHandler(quiet));
-        executor.execute(CommandLine.parse("kill -15 " + pid));
+    /**
+     * @return those of the jobs JobTracker still reports as running
+     */
+    private List<String> listRunning(HadoopAdmin admin, List<String> jobs) throws IOException {
+        List<String> result = admin.listRunningJobs();
+        result.retainAll(jobs);
+        return result;
+    }
+
+    private void enterSafeMode(HadoopAdmin admin) {
+        try {
+            admin.enterSafeMode();
+        } catch (IOException e) {
+            getLog().warn("Unable to put NameNode into safe mode (" + e.getMessage() + "). New jobs may still " +
+                    "be submitted");
+        }
+    }
+
+    /**
+     * Sends SIGTERM to all of the daemons at once and waits (up to hmp.shutdownTimeoutInMilliseconds) for them
+     * to exit, escalating to SIGKILL for those which don't.
+     */
+    private void terminate(Map<Integer, String> daemons) throws MojoFailureException {
+        if (getLog().isInfoEnabled()) {
+            for (Map.Entry<Integer, String> entry : daemons.entrySet()) {
+                getLog().info("Stopping " + entry.getValue() + " (PID " + entry.getKey() + ")");
+            }
+        }
+        Set<Integer> killedProcesses;
+        try {
+            killedProcesses = Processes.terminate(daemons.keySet(), shutdownTimeoutInMilliseconds);
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to stop Hadoop: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException("Hadoop shutdown has been interrupted");
+        }
+        for (Integer pid : killedProcesses) {
+            getLog().warn(daemons.get(pid) + " (PID " + pid + ") didn't exit within " +
+                    shutdownTimeoutInMilliseconds + "ms and has been killed with SIGKILL");
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -81,7 +610,8 @@ public class StopMojo extends AbstractMojo {
         for(Integer pid : activeVms) {
             MonitoredVm vm = host.getMonitoredVm(new VmIdentifier(String.valueOf(pid)));
             String mainClass = MonitoredVmUtil.mainClass(vm, true);
-            processes.add(new JavaProcess(pid, mainClass));
+            String jvmArguments = MonitoredVmUtil.jvmArgs(vm);
+            processes.add(new JavaProcess(pid, mainClass, jvmArguments == null ? "" : jvmArguments));
         }
         return processes;
     }
@@ -90,10 +620,12 @@ public class StopMojo extends AbstractMojo {
 
         private final int pid;
         private final String className;
+        private final String jvmArguments;
 
-        private JavaProcess(int pid, String className) {
+        private JavaProcess(int pid, String className, String jvmArguments) {
             this.pid = pid;
             this.className = className;
+            this.jvmArguments = jvmArguments;
         }
 
         public int getPid() {
@@ -103,6 +635,10 @@ public class StopMojo extends AbstractMojo {
         public String getClassName() {
             return className;
         }
+
+        public String getJvmArguments() {
+            return jvmArguments;
+        }
     }
 }
 
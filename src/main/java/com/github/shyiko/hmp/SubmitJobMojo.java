@@ -15,48 +15,62 @@
  */
 package com.github.shyiko.hmp;
 
-import org.apache.commons.exec.ExecuteException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @goal submitJob
  * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
  */
-public class SubmitJobMojo extends AbstractHadoopMojo {
-
-    /**
-     * Jar file containing job.
-     * @parameter expression="${hmp.jar}" default-value="${basedir}/target/${project.build.finalName}.jar"
-     * @required
-     */
-    private File jobJar;
-
-    /**
-     * Job parameters.
-     * @parameter expression="${hmp.jobParameters}"
-     */
-    private String jobParameters;
-
-    /**
-     * True indicates that any output should be suppressed, false otherwise
-     * @parameter expression="${hmp.job.quiet}" default-value="false"
-     */
-    private boolean jobQuiet;
+public class SubmitJobMojo extends AbstractJobMojo {
 
     @Override
     protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
         this.quiet = jobQuiet;
+        JobMonitor monitor = createJobMonitor(hadoopSettings);
+        FutureTask<Integer> submission = new FutureTask<Integer>(createSubmission(hadoopSettings, jobJar, null,
+                jobParameters, jobArguments, new File(buildDirectory, "hmp/job"), monitor));
+        Thread thread = new Thread(submission, "hmp-job");
+        thread.setDaemon(true);
+        thread.start();
+        int exitCode;
         try {
-            executeCommand(hadoopSettings, "bin/hadoop jar " + jobJar.getAbsolutePath() +
-                    (jobParameters == null ? "" : " " + jobParameters));
-        } catch (ExecuteException e) {
+            exitCode = await(submission, monitor);
+        } finally {
+            complete(monitor);
+        }
+        if (exitCode != 0) {
             throw new MojoExecutionException("Hadoop Job failed");
-        } catch (IOException e) {
-            throw new MojoFailureException("Hadoop Job submission failed: " + e.getMessage());
+        }
+        assertSucceeded(monitor);
+    }
+
+    /**
+     * Waits for the submission to complete, reporting progress of the jobs in the meantime.
+     * @return exit code
+     */
+    private int await(FutureTask<Integer> submission, JobMonitor monitor) throws MojoFailureException {
+        while (true) {
+            try {
+                int exitCode = submission.get(JOB_POLLING_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+                report(monitor);
+                return exitCode;
+            } catch (TimeoutException e) {
+                report(monitor);
+            } catch (ExecutionException e) {
+                report(monitor);
+                throw new MojoFailureException("Hadoop Job submission failed: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                submission.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new MojoFailureException("Hadoop Job submission has been interrupted");
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Submits a set of jobs, each one as soon as the jobs it depends on have succeeded (so that independent jobs run
+ * concurrently). First failure kills the jobs which are still running.
+ *
+ * @goal submitJobs
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class SubmitJobsMojo extends AbstractJobMojo {
+
+    /**
+     * Jobs to submit.
+     * @parameter
+     * @required
+     */
+    private List<JobDefinition> jobs;
+
+    /**
+     * Maximum number of jobs running at the same time (0 - unlimited)
+     * @parameter expression="${hmp.maximumConcurrentJobs}" default-value="4"
+     */
+    private int maximumConcurrentJobs;
+
+    @Override
+    protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
+        this.quiet = jobQuiet;
+        JobMonitor monitor = createJobMonitor(hadoopSettings);
+        final DependencyScheduler scheduler;
+        try {
+            scheduler = new DependencyScheduler(maximumConcurrentJobs);
+            for (JobDefinition job : jobs) {
+                if (job.getId() == null || job.getId().trim().isEmpty()) {
+                    throw new MojoExecutionException("Each of the jobs must have an id");
+                }
+                File jar = job.getJar() == null ? jobJar : job.getJar();
+                scheduler.schedule(job.getId(), job.getDependsOn(), createTask(job.getId(),
+                        createSubmission(hadoopSettings, jar, job.getMainClass(), job.getParameters(),
+                                job.getArguments(), new File(buildDirectory, "hmp/jobs/" + job.getId()), monitor)));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+        FutureTask<DependencyScheduler.Report> execution = new FutureTask<DependencyScheduler.Report>(
+                new Callable<DependencyScheduler.Report>() {
+
+            @Override
+            public DependencyScheduler.Report call() throws Exception {
+                return scheduler.execute(0);
+            }
+        });
+        Thread thread = new Thread(execution, "hmp-jobs");
+        thread.setDaemon(true);
+        thread.start();
+        DependencyScheduler.Report report;
+        try {
+            report = await(execution, monitor);
+        } finally {
+            complete(monitor);
+        }
+        assertSucceeded(monitor);
+        if (getLog().isInfoEnabled()) {
+            for (JobDefinition job : jobs) {
+                getLog().info(job.getId() + " completed in " + report.getTimeInMilliseconds(job.getId()) +
+                        "ms (after " + report.getWaitTimeInMilliseconds(job.getId()) + "ms of waiting)");
+            }
+            List<String> criticalPath = new ArrayList<String>();
+            for (String id : report.getCriticalPath()) {
+                criticalPath.add(id + " (" + report.getTimeInMilliseconds(id) + "ms)");
+            }
+            getLog().info(jobs.size() + " job(s) completed in " + report.getTotalTimeInMilliseconds() +
+                    "ms (critical path: " + criticalPath + ")");
+        }
+    }
+
+    private Callable<Void> createTask(final String id, final Callable<Integer> submission) {
+        return new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                if (getLog().isInfoEnabled()) {
+                    getLog().info("Submitting " + id);
+                }
+                int exitCode = submission.call();
+                if (exitCode != 0) {
+                    throw new IOException(id + " failed (exit code " + exitCode + ")");
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Waits for all the jobs to complete, reporting their progress in the meantime.
+     */
+    private DependencyScheduler.Report await(FutureTask<DependencyScheduler.Report> execution, JobMonitor monitor)
+            throws MojoExecutionException, MojoFailureException {
+        while (true) {
+            try {
+                DependencyScheduler.Report report =
+                        execution.get(JOB_POLLING_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+                report(monitor);
+                return report;
+            } catch (TimeoutException e) {
+                report(monitor);
+            } catch (ExecutionException e) {
+                report(monitor);
+                killRunningJobs(monitor);
+                Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+                throw new MojoExecutionException("Hadoop Job " + cause.getMessage());
+            } catch (InterruptedException e) {
+                execution.cancel(true);
+                killRunningJobs(monitor);
+                Thread.currentThread().interrupt();
+                throw new MojoFailureException("Hadoop Jobs submission has been interrupted");
+            }
+        }
+    }
+
+    private void killRunningJobs(JobMonitor monitor) {
+        if (monitor == null) {
+            return;
+        }
+        try {
+            for (JobMonitor.Job job : monitor.killRunningJobs()) {
+                getLog().warn("Killed " + job);
+            }
+        } catch (IOException e) {
+            getLog().warn("Unable to kill running jobs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Definition of the job (configured through &lt;job/&gt; element). Public only because Maven instantiates it.
+     */
+    public static class JobDefinition {
+
+        /**
+         * Unique (within the goal) id of the job.
+         */
+        private String id;
+
+        /**
+         * Jar file containing job (defaults to the one of the goal, see hmp.jar).
+         */
+        private File jar;
+
+        /**
+         * Class to run (defaults to Main-Class of the jar).
+         */
+        private String mainClass;
+
+        /**
+         * Job parameters (split on whitespace, quotes can be used to keep parameter containing spaces together).
+         */
+        private String parameters;
+
+        /**
+         * Job arguments passed as is (after the parameters).
+         */
+        private List<String> arguments;
+
+        /**
+         * Ids of the jobs which have to succeed before this one is submitted.
+         */
+        private List<String> dependsOn;
+
+        public String getId() {
+            return id;
+        }
+
+        public File getJar() {
+            return jar;
+        }
+
+        public String getMainClass() {
+            return mainClass;
+        }
+
+        public String getParameters() {
+            return parameters;
+        }
+
+        public List<String> getArguments() {
+            return arguments;
+        }
+
+        public List<String> getDependsOn() {
+            return dependsOn == null ? Collections.<String>emptyList() : dependsOn;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Record of the files transferred between local file system and DFS (as of the last transfer). Used to figure out
+ * which files have to be transferred again without comparing their content.
+ *
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+class TransferManifest {
+
+    private final File file;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private TransferManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return manifest loaded from the file (empty one if file doesn't exist or cannot be parsed)
+     */
+    public static TransferManifest load(File file) {
+        TransferManifest manifest = new TransferManifest(file);
+        if (file.exists()) {
+            Properties properties = new Properties();
+            try {
+                InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    properties.load(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+                for (String path : properties.stringPropertyNames()) {
+                    manifest.entries.put(path, Entry.parse(properties.getProperty(path)));
+                }
+            } catch (Exception e) {
+                manifest.entries.clear();
+            }
+        }
+        return manifest;
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    public void remove(String path) {
+        entries.remove(path);
+    }
+
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public void save() throws IOException {
+        File parentFile = file.getAbsoluteFile().getParentFile();
+        if (!parentFile.exists() && !parentFile.mkdirs()) {
+            throw new IOException("Unable to create " + parentFile);
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            properties.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * @return hex-encoded MD5 of the file content
+     */
+    public static String checksum(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream inputStream = new DigestInputStream(new FileInputStream(file), messageDigest);
+        try {
+            byte[] buffer = new byte[65536];
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1) {
+            }
+        } finally {
+            inputStream.close();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static final class Entry {
+
+        private final long localLength;
+        private final long localModificationTime;
+        private final long remoteLength;
+        private final long remoteModificationTime;
+        private final String checksum;
+
+        /**
+         * @param checksum content checksum (see {@link TransferManifest#checksum(File)}), null if unknown
+         */
+        public Entry(long localLength, long localModificationTime, long remoteLength, long remoteModificationTime,
+                     String checksum) {
+            this.localLength = localLength;
+            this.localModificationTime = localModificationTime;
+            this.remoteLength = remoteLength;
+            this.remoteModificationTime = remoteModificationTime;
+            this.checksum = checksum;
+        }
+
+        private static Entry parse(String value) {
+            String[] fields = value.split(",", -1);
+            return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3]), fields[4].isEmpty() ? null : fields[4]);
+        }
+
+        public boolean matchesLocal(File file) {
+            return file.isFile() && file.length() == localLength && file.lastModified() == localModificationTime;
+        }
+
+        public boolean matchesRemote(HadoopFileStatus fileStatus) {
+            return fileStatus != null && !fileStatus.isDirectory() && fileStatus.getLength() == remoteLength &&
+                    fileStatus.getModificationTime() == remoteModificationTime;
+        }
+
+        public long getLocalLength() {
+            return localLength;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return localLength + "," + localModificationTime + "," + remoteLength + "," + remoteModificationTime +
+                    "," + (checksum == null ? "" : checksum);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies job output by streaming it directly from DFS (without copying it to the local file system).
+ *
+ * @goal verifyOutput
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class VerifyOutputMojo extends AbstractHadoopMojo {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * DFS file/directory containing job output
+     * @parameter expression="${hmp.verifyOutputSource}"
+     * @required
+     */
+    private String verifyOutputSource;
+
+    /**
+     * Pattern which names of the output files (within verifyOutputSource directory) must match. Files are
+     * concatenated in the order of their paths
+     * @parameter expression="${hmp.verifyOutputFilePattern}" default-value="part-.*"
+     */
+    private String verifyOutputFilePattern;
+
+    /**
+     * Local file which output must be identical to
+     * @parameter expression="${hmp.expectedOutput}"
+     */
+    private File expectedOutput;
+
+    /**
+     * Number of lines output must consist of
+     * @parameter expression="${hmp.expectedOutputLineCount}"
+     */
+    private Long expectedOutputLineCount;
+
+    /**
+     * Hex-encoded MD5 of the output (actual one is logged each time goal is executed)
+     * @parameter expression="${hmp.expectedOutputChecksum}"
+     */
+    private String expectedOutputChecksum;
+
+    /**
+     * Order lines of the output must be sorted in (by key, i.e. part of the line preceding first tab):
+     * "none", "bytes" (unsigned byte-by-byte comparison, just like Text keys are sorted by Hadoop) or "numeric"
+     * @parameter expression="${hmp.verifyOutputSortOrder}" default-value="none"
+     */
+    private String verifyOutputSortOrder;
+
+    /**
+     * True if sort order should be checked within each output file (e.g. when job uses HashPartitioner),
+     * false if across all of them (total order)
+     * @parameter expression="${hmp.verifyOutputSortOrderPerFile}" default-value="false"
+     */
+    private boolean verifyOutputSortOrderPerFile;
+
+    @Override
+    protected void execute(HadoopSettings hadoopSettings) throws MojoExecutionException, MojoFailureException {
+        HadoopFileSystem fileSystem = getFileSystem(hadoopSettings);
+        List<OutputVerifier> verifiers = new ArrayList<OutputVerifier>();
+        OutputVerifier.Checksum checksum;
+        try {
+            checksum = new OutputVerifier.Checksum(expectedOutputChecksum);
+            verifiers.add(checksum);
+            if (expectedOutput != null) {
+                verifiers.add(new OutputVerifier.ExpectedContent(expectedOutput));
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to initialize verification: " + e.getMessage());
+        }
+        if (expectedOutputLineCount != null) {
+            verifiers.add(new OutputVerifier.LineCount(expectedOutputLineCount));
+        }
+        if ("bytes".equals(verifyOutputSortOrder) || "numeric".equals(verifyOutputSortOrder)) {
+            verifiers.add(new OutputVerifier.SortOrder("numeric".equals(verifyOutputSortOrder),
+                    verifyOutputSortOrderPerFile));
+        } else if (!"none".equals(verifyOutputSortOrder)) {
+            throw new MojoExecutionException("Unknown hmp.verifyOutputSortOrder " + verifyOutputSortOrder);
+        }
+        List<String> failures = new ArrayList<String>();
+        try {
+            long startTime = System.currentTimeMillis();
+            long numberOfBytes = 0;
+            List<String> files = listOutputFiles(fileSystem);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (String file : files) {
+                InputStream inputStream = fileSystem.open(file);
+                try {
+                    int numberOfBytesRead;
+                    while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                        for (OutputVerifier verifier : verifiers) {
+                            verifier.update(buffer, 0, numberOfBytesRead);
+                        }
+                        numberOfBytes += numberOfBytesRead;
+                    }
+                } finally {
+                    inputStream.close();
+                }
+                for (OutputVerifier verifier : verifiers) {
+                    verifier.endOfFile();
+                }
+            }
+            for (OutputVerifier verifier : verifiers) {
+                String failure = verifier.verify();
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+            if (getLog().isInfoEnabled()) {
+                getLog().info("Verified dfs:" + verifyOutputSource + " (" + files.size() + " file(s), " +
+                        numberOfBytes + " byte(s), MD5 " + checksum.getChecksum() + ") in " +
+                        (System.currentTimeMillis() - startTime) + "ms");
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Unable to verify dfs:" + verifyOutputSource + ": " + e.getMessage());
+        }
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Output verification failed:");
+            for (String failure : failures) {
+                sb.append("\n    ").append(failure);
+            }
+            throw new MojoFailureException(sb.toString());
+        }
+    }
+
+    private List<String> listOutputFiles(HadoopFileSystem fileSystem) throws IOException {
+        Pattern pattern = Pattern.compile(verifyOutputFilePattern);
+        List<String> result = new ArrayList<String>();
+        for (HadoopFileStatus fileStatus : HadoopFileStatus.index(fileSystem.list(verifyOutputSource)).values()) {
+            String path = fileStatus.getPath();
+            if (path.isEmpty()) {
+                result.add(verifyOutputSource);
+            } else if (!fileStatus.isDirectory() &&
+                    pattern.matcher(path.substring(path.lastIndexOf('/') + 1)).matches()) {
+                result.add(verifyOutputSource + "/" + path);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("No output files found (hmp.verifyOutputFilePattern=" + verifyOutputFilePattern +
+                    ")");
+        }
+        return result;
+    }
+}
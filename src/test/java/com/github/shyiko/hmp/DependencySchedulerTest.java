@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class DependencySchedulerTest {
+
+    private static final long TIMEOUT_IN_MILLISECONDS = 10000;
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void testTasksAreStartedOnlyAfterTheirDependencies() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("TaskTracker", Arrays.asList("JobTracker", "DataNode"), recording("TaskTracker", 0));
+        scheduler.schedule("DataNode", Arrays.asList("NameNode"), recording("DataNode", 50));
+        scheduler.schedule("JobTracker", null, recording("JobTracker", 0));
+        scheduler.schedule("NameNode", null, recording("NameNode", 50));
+        scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+        assertEquals(8, events.size());
+        assertBefore("NameNode.end", "DataNode.start");
+        assertBefore("DataNode.end", "TaskTracker.start");
+        assertBefore("JobTracker.end", "TaskTracker.start");
+    }
+
+    @Test
+    public void testIndependentTasksRunConcurrently() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Callable<Void> task = new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                latch.countDown();
+                if (!latch.await(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Tasks were not running at the same time");
+                }
+                return null;
+            }
+        };
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("a", null, task);
+        scheduler.schedule("b", null, task);
+        scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+    }
+
+    @Test
+    public void testNumberOfConcurrentTasksIsLimited() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximumRunning = new AtomicInteger();
+        Callable<Void> task = new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                int value = running.incrementAndGet();
+                synchronized (maximumRunning) {
+                    maximumRunning.set(Math.max(maximumRunning.get(), value));
+                }
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return null;
+            }
+        };
+        DependencyScheduler scheduler = new DependencyScheduler(2);
+        for (int i = 0; i < 6; i++) {
+            scheduler.schedule("task" + i, null, task);
+        }
+        scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+        assertTrue(maximumRunning.get() <= 2);
+    }
+
+    @Test
+    public void testFailureIsPropagatedAndDependentsAreSkipped() throws Exception {
+        final AtomicBoolean dependentStarted = new AtomicBoolean();
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("NameNode", null, new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                throw new IOException("NameNode has exited");
+            }
+        });
+        scheduler.schedule("DataNode", Arrays.asList("NameNode"), new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                dependentStarted.set(true);
+                return null;
+            }
+        });
+        try {
+            scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("NameNode has exited", e.getCause().getMessage());
+        }
+        try {
+            scheduler.getFuture("DataNode").get(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            // dependency has failed
+        }
+        assertFalse(dependentStarted.get());
+    }
+
+    @Test
+    public void testTimeoutReportsPendingTasks() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("fast", null, recording("fast", 0));
+        scheduler.schedule("slow", null, recording("slow", TIMEOUT_IN_MILLISECONDS));
+        try {
+            scheduler.execute(100);
+            fail();
+        } catch (TimeoutException e) {
+            assertEquals("Timed out waiting for [slow]", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCyclicDependencyIsRejected() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("a", Arrays.asList("c"), recording("a", 0));
+        scheduler.schedule("b", Arrays.asList("a"), recording("b", 0));
+        scheduler.schedule("c", Arrays.asList("b"), recording("c", 0));
+        try {
+            scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Cyclic dependency: [a, c, b] -> a", e.getMessage());
+        }
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testUnknownDependencyIsRejected() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("DataNode", Arrays.asList("NameNode"), recording("DataNode", 0));
+        try {
+            scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("DataNode depends on unknown task NameNode", e.getMessage());
+        }
+        assertTrue(events.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTaskCannotBeScheduledTwice() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("a", null, recording("a", 0));
+        scheduler.schedule("a", null, recording("a", 0));
+    }
+
+    @Test
+    public void testCriticalPath() throws Exception {
+        DependencyScheduler scheduler = new DependencyScheduler();
+        scheduler.schedule("NameNode", null, recording("NameNode", 10));
+        scheduler.schedule("JobTracker", null, recording("JobTracker", 0));
+        scheduler.schedule("DataNode", Arrays.asList("NameNode"), recording("DataNode", 300));
+        scheduler.schedule("TaskTracker", Arrays.asList("JobTracker"), recording("TaskTracker", 0));
+        DependencyScheduler.Report report = scheduler.execute(TIMEOUT_IN_MILLISECONDS);
+        assertEquals(Arrays.asList("NameNode", "DataNode"), report.getCriticalPath());
+        assertTrue(report.getWaitTimeInMilliseconds("DataNode") >= report.getTimeInMilliseconds("NameNode"));
+        assertTrue(report.getTotalTimeInMilliseconds() >= report.getTimeInMilliseconds("DataNode"));
+        assertEquals(Arrays.asList("NameNode", "JobTracker", "DataNode", "TaskTracker"),
+                new ArrayList<String>(report.getTasks()));
+    }
+
+    private Callable<Void> recording(final String name, final long durationInMilliseconds) {
+        return new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                events.add(name + ".start");
+                if (durationInMilliseconds > 0) {
+                    Thread.sleep(durationInMilliseconds);
+                }
+                events.add(name + ".end");
+                return null;
+            }
+        };
+    }
+
+    private void assertBefore(String event, String subsequentEvent) {
+        int index = events.indexOf(event);
+        int subsequentIndex = events.indexOf(subsequentEvent);
+        assertTrue(events.toString(), index > -1 && subsequentIndex > -1 && index < subsequentIndex);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class HadoopConfigurationTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testLaterResourcesOverrideEarlierOnes() throws Exception {
+        HadoopConfiguration configuration = load(
+                "<property><name>dfs.replication</name><value>3</value></property>" +
+                "<property><name>io.sort.mb</name><value>100</value></property>",
+                "<property><name>dfs.replication</name><value>1</value></property>");
+        assertEquals("1", configuration.get("dfs.replication"));
+        assertEquals("100", configuration.get("io.sort.mb"));
+        assertNull(configuration.get("undefined"));
+        assertEquals("default", configuration.get("undefined", "default"));
+    }
+
+    @Test
+    public void testFinalPropertiesAreNotOverridden() throws Exception {
+        HadoopConfiguration configuration = load(
+                "<property><name>dfs.replication</name><value>3</value><final>true</final></property>" +
+                "<property><name>io.sort.mb</name><value>100</value><final>false</final></property>",
+                "<property><name>dfs.replication</name><value>1</value></property>" +
+                "<property><name>io.sort.mb</name><value>50</value></property>",
+                "<property><name>dfs.replication</name><value>2</value><final>true</final></property>");
+        assertEquals("3", configuration.get("dfs.replication"));
+        assertEquals("50", configuration.get("io.sort.mb"));
+    }
+
+    @Test
+    public void testFinalPropertyCanBeOverriddenWithinTheSameResource() throws Exception {
+        HadoopConfiguration configuration = load(
+                "<property><name>dfs.replication</name><value>3</value><final>true</final></property>" +
+                "<property><name>dfs.replication</name><value>2</value></property>");
+        assertEquals("2", configuration.get("dfs.replication"));
+    }
+
+    @Test
+    public void testAliasesAreSetTogether() throws Exception {
+        HadoopConfiguration configuration = load(
+                "<property><name>fs.default.name</name><value>hdfs://localhost:9000</value>" +
+                        "<final>true</final></property>",
+                "<property><name>fs.defaultFS</name><value>hdfs://localhost:8020</value></property>");
+        assertEquals("hdfs://localhost:9000", configuration.get("fs.default.name"));
+        assertEquals("hdfs://localhost:9000", configuration.get("fs.defaultFS"));
+    }
+
+    @Test
+    public void testVariablesAreSubstituted() throws Exception {
+        HadoopConfiguration configuration = load(
+                "<property><name>hadoop.tmp.dir</name><value>/tmp/hadoop-${user}</value></property>" +
+                "<property><name>dfs.name.dir</name><value>${hadoop.tmp.dir}/dfs/name</value></property>" +
+                "<property><name>user</name><value>hmp</value></property>",
+                "<property><name>user</name><value>${unresolvable}</value></property>");
+        assertEquals("/tmp/hadoop-${unresolvable}", configuration.get("hadoop.tmp.dir"));
+        assertEquals("/tmp/hadoop-${unresolvable}/dfs/name", configuration.get("dfs.name.dir"));
+        assertEquals("${unresolvable}", configuration.get("user"));
+    }
+
+    @Test
+    public void testSystemPropertiesTakePrecedenceOverConfiguration() throws Exception {
+        String key = "hmp.test." + getClass().getSimpleName();
+        System.setProperty(key, "system");
+        try {
+            HadoopConfiguration configuration = load(
+                    "<property><name>" + key + "</name><value>configuration</value></property>" +
+                    "<property><name>path</name><value>/${" + key + "}/${" + key + "}</value></property>");
+            assertEquals("/system/system", configuration.get("path"));
+            assertEquals("configuration", configuration.get(key));
+        } finally {
+            System.clearProperty(key);
+        }
+    }
+
+    @Test
+    public void testSubstitutionDepthIsLimited() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            sb.append("<property><name>v").append(i).append("</name><value>${v").append(i + 1).
+                    append("}</value></property>");
+        }
+        sb.append("<property><name>v25</name><value>end</value></property>");
+        sb.append("<property><name>recursive</name><value>${recursive}x</value></property>");
+        HadoopConfiguration configuration = load(sb.toString());
+        // variables nested deeper than 20 levels are left as is (same as in org.apache.hadoop.conf.Configuration)
+        assertEquals("end", configuration.get("v5"));
+        assertEquals("${v25}", configuration.get("v4"));
+        assertEquals("${v21}", configuration.get("v0"));
+        assertEquals("${recursive}xxxxxxxxxxxxxxxxxxxxx", configuration.get("recursive"));
+    }
+
+    @Test
+    public void testDigestDependsOnContentOnly() throws Exception {
+        String properties = "<property><name>dfs.replication</name><value>1</value></property>";
+        String digest = load(properties).getDigest();
+        assertEquals(digest, load(properties).getDigest());
+        assertEquals(digest, load("<property><name>dfs.replication</name><value>2</value></property>",
+                properties).getDigest());
+        assertFalse(digest.equals(load(properties +
+                "<property><name>io.sort.mb</name><value>50</value></property>").getDigest()));
+        assertFalse(digest.equals(load("<property><name>dfs.replication</name><value>3</value></property>")
+                .getDigest()));
+    }
+
+    @Test
+    public void testMalformedResource() throws Exception {
+        try {
+            load("<property><name>dfs.replication</name>");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @param resources content of the &lt;configuration&gt; element of each resource (in order of increasing
+     * precedence)
+     */
+    private HadoopConfiguration load(String... resources) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (String resource : resources) {
+            File file = temporaryFolder.newFile();
+            Files.write(file.toPath(), ("<?xml version=\"1.0\"?>\n<configuration>" + resource + "</configuration>")
+                    .getBytes("UTF-8"));
+            urls.add(file.toURI().toURL());
+        }
+        return HadoopConfiguration.load(urls);
+    }
+}
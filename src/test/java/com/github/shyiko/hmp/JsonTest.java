@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Stanley Shyiko
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.shyiko.hmp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:stanley.shyiko@gmail.com">Stanley Shyiko</a>
+ */
+public class JsonTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("empty object", new LinkedHashMap<String, Object>());
+        nested.put("empty array", new ArrayList<Object>());
+        nested.put("null", null);
+        List<Object> array = new ArrayList<Object>();
+        array.add(1L);
+        array.add(-2.5);
+        array.add(1.0E-7);
+        array.add(true);
+        array.add(false);
+        array.add(nested);
+        Map<String, Object> document = new LinkedHashMap<String, Object>();
+        document.put("string", "quote \" backslash \\ newline \n tab \t control \u0001 unicode \u0436");
+        document.put("long", Long.MAX_VALUE);
+        document.put("array", array);
+        assertEquals(document, Json.parse(Json.toString(document)));
+    }
+
+    @Test
+    public void testRoundTripThroughFile() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "nested/directory/report.json");
+        Map<String, Object> document = Collections.<String, Object>singletonMap("runs", Arrays.asList(1L, 2L));
+        Json.write(document, file);
+        assertEquals(document, Json.parse(file));
+    }
+
+    @Test
+    public void testNumbersAreParsedAsLongsOrDoubles() throws Exception {
+        assertEquals(Arrays.asList(42L, -1L, 0.5, 100.0, 2.0E-3),
+                Json.parse("[42, -1, 0.5, 1e2, 2.0E-3]"));
+    }
+
+    @Test
+    public void testNonFiniteNumbersAreWrittenAsNull() throws Exception {
+        assertEquals("[\n  null,\n  null\n]", Json.toString(Arrays.asList(Double.NaN, Float.POSITIVE_INFINITY)));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        assertEquals("A\b\f\n\r\t/\"\\", Json.parse("\"\\u0041\\b\\f\\n\\r\\t\\/\\\"\\\\\""));
+    }
+
+    @Test
+    public void testWhitespaceAroundValues() throws Exception {
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        expected.put("a", Arrays.asList(1L, null));
+        assertEquals(expected, Json.parse(" \n{ \"a\" :\t[ 1 , null ] }\r\n"));
+    }
+
+    @Test
+    public void testMalformedInput() throws Exception {
+        String[] inputs = {
+            "",
+            "   ",
+            "{",
+            "[1, 2",
+            "[1,]",
+            "{\"a\" 1}",
+            "{\"a\": 1,}",
+            "{a: 1}",
+            "\"unterminated",
+            "\"\\u12\"",
+            "\"\\uzzzz\"",
+            "tru",
+            "nul",
+            "-",
+            "1.2.3",
+            "{} {}",
+            "[1] x"
+        };
+        for (String input : inputs) {
+            try {
+                Json.parse(input);
+                fail("Expected \"" + input + "\" to be rejected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}